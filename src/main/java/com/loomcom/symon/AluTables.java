@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+/**
+ * Precomputed results and flags for ADC and SBC.
+ * <p>
+ * Every table has one entry for each combination of carry in, accumulator
+ * and operand, found with {@link #index(int, int, int)}. An entry holds the
+ * 8-bit result in its low byte, and the C, Z, V and N flags, at their P
+ * register bit positions, in its high byte.
+ * <p>
+ * The binary ADC table serves every behavior, and binary SBC is ADC of the
+ * one's complement of the operand. Decimal mode tables differ between NMOS
+ * and CMOS parts only in the N flag, and are built the first time a CPU with
+ * that behavior asks for them.
+ */
+final class AluTables {
+
+    /* Flag bits that an ADC or SBC changes, shifted into the high byte of an entry */
+    static final int C_FLAG = Cpu.P_CARRY << 8;
+    static final int Z_FLAG = Cpu.P_ZERO << 8;
+    static final int V_FLAG = Cpu.P_OVERFLOW << 8;
+    static final int N_FLAG = Cpu.P_NEGATIVE << 8;
+
+    private static final int TABLE_SIZE = 0x20000;
+
+    private static char[] binaryAdc;
+    private static char[] nmosDecimalAdc;
+    private static char[] nmosDecimalSbc;
+    private static char[] cmosDecimalAdc;
+    private static char[] cmosDecimalSbc;
+
+    private AluTables() {}
+
+    /**
+     * @param carry   The carry flag, 0 or 1.
+     * @param acc     The accumulator.
+     * @param operand The operand.
+     * @return The index of the entry for the given inputs.
+     */
+    static int index(int carry, int acc, int operand) {
+        return (carry << 16) | ((acc & 0xff) << 8) | (operand & 0xff);
+    }
+
+    static synchronized char[] binaryAdc() {
+        if (binaryAdc == null) {
+            binaryAdc = new char[TABLE_SIZE];
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                binaryAdc[i] = adc(i >> 16, (i >> 8) & 0xff, i & 0xff);
+            }
+        }
+        return binaryAdc;
+    }
+
+    static synchronized char[] decimalAdc(InstructionTable.CpuBehavior behavior) {
+        if (isNmos(behavior)) {
+            if (nmosDecimalAdc == null) {
+                nmosDecimalAdc = buildDecimal(true, false);
+            }
+            return nmosDecimalAdc;
+        } else {
+            if (cmosDecimalAdc == null) {
+                cmosDecimalAdc = buildDecimal(true, true);
+            }
+            return cmosDecimalAdc;
+        }
+    }
+
+    static synchronized char[] decimalSbc(InstructionTable.CpuBehavior behavior) {
+        if (isNmos(behavior)) {
+            if (nmosDecimalSbc == null) {
+                nmosDecimalSbc = buildDecimal(false, false);
+            }
+            return nmosDecimalSbc;
+        } else {
+            if (cmosDecimalSbc == null) {
+                cmosDecimalSbc = buildDecimal(false, true);
+            }
+            return cmosDecimalSbc;
+        }
+    }
+
+    private static boolean isNmos(InstructionTable.CpuBehavior behavior) {
+        return behavior == InstructionTable.CpuBehavior.NMOS_6502 ||
+               behavior == InstructionTable.CpuBehavior.NMOS_WITH_ROR_BUG;
+    }
+
+    private static char[] buildDecimal(boolean add, boolean validNegative) {
+        char[] table = new char[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            int carry = i >> 16;
+            int acc = (i >> 8) & 0xff;
+            int operand = i & 0xff;
+            table[i] = add ? adcDecimal(carry, acc, operand, validNegative)
+                           : sbcDecimal(carry, acc, operand, validNegative);
+        }
+        return table;
+    }
+
+    private static char entry(int result, boolean carry, boolean zero, boolean overflow, boolean negative) {
+        int e = result & 0xff;
+        if (carry) {
+            e |= C_FLAG;
+        }
+        if (zero) {
+            e |= Z_FLAG;
+        }
+        if (overflow) {
+            e |= V_FLAG;
+        }
+        if (negative) {
+            e |= N_FLAG;
+        }
+        return (char) e;
+    }
+
+    /**
+     * Add with Carry.
+     */
+    private static char adc(int carry, int acc, int operand) {
+        int result = operand + acc + carry;
+        int carry6 = (operand & 0x7f) + (acc & 0x7f) + carry;
+        boolean carryOut = (result & 0x100) != 0;
+        result &= 0xff;
+        return entry(result, carryOut, result == 0,
+                     carryOut ^ ((carry6 & 0x80) != 0), (result & 0x80) != 0);
+    }
+
+    /**
+     * Add with Carry (BCD). BCD never sets the overflow flag, and the N flag is
+     * only valid on CMOS parts.
+     */
+    private static char adcDecimal(int carry, int acc, int operand, boolean validNegative) {
+        int l, h, result;
+        l = (acc & 0x0f) + (operand & 0x0f) + carry;
+        if ((l & 0xff) > 9) l += 6;
+        h = (acc >> 4) + (operand >> 4) + (l > 15 ? 1 : 0);
+        if ((h & 0xff) > 9) h += 6;
+        result = (l & 0x0f) | (h << 4);
+        result &= 0xff;
+        return entry(result, h > 15, result == 0, false,
+                     validNegative && (result & 0x80) != 0);
+    }
+
+    /**
+     * Subtract with Carry (BCD). BCD never sets the overflow flag, and the N flag
+     * is only valid on CMOS parts.
+     */
+    private static char sbcDecimal(int carry, int acc, int operand, boolean validNegative) {
+        int l, h, result;
+        l = (acc & 0x0f) - (operand & 0x0f) - (carry == 1 ? 0 : 1);
+        if ((l & 0x10) != 0) l -= 6;
+        h = (acc >> 4) - (operand >> 4) - ((l & 0x10) != 0 ? 1 : 0);
+        if ((h & 0x10) != 0) h -= 6;
+        result = (l & 0x0f) | (h << 4) & 0xff;
+        return entry(result, (h & 0xff) < 15, result == 0, false,
+                     validNegative && (result & 0x80) != 0);
+    }
+}
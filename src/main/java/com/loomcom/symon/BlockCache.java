@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+/**
+ * A cache of pre-decoded basic blocks.
+ * <p>
+ * Every time the CPU is asked to run a block at an address, a per-address
+ * counter is bumped. Once an address becomes hot, the straight-line run of
+ * instructions starting there is fetched and decoded once, and the CPU can
+ * then execute the whole block without going back to the Bus for opcode and
+ * operand fetches.
+ * <p>
+ * Only code in plain RAM or ROM is ever decoded; anything fetched from an I/O
+ * device always goes through the interpreter. A block ends at the first
+ * instruction that changes the flow of control, or that may enable interrupts.
+ * The CPU also leaves a block early after any write to an I/O device, since
+ * the address of a store is only known when it runs.
+ * Blocks remember the write counters of the pages they were decoded from, so
+ * self-modifying code is detected and the affected blocks are re-decoded.
+ */
+public class BlockCache {
+
+    /* The maximum number of instructions in a single block */
+    public static final int MAX_BLOCK_LENGTH = 32;
+
+    /* The number of times a block must be entered before it is decoded */
+    public static final int HOT_THRESHOLD = 16;
+
+    /* Opcodes after which a block must end */
+    private static final boolean[] endsBlock = new boolean[0x100];
+
+    static {
+        for (int op = 0; op < 0x100; op++) {
+            InstructionTable.Mode mode = InstructionTable.instructionModes[op];
+            endsBlock[op] = (mode == InstructionTable.Mode.REL ||
+                             mode == InstructionTable.Mode.ZPR);
+        }
+
+        endsBlock[0x00] = true; // BRK
+        endsBlock[0x20] = true; // JSR
+        endsBlock[0x28] = true; // PLP
+        endsBlock[0x40] = true; // RTI
+        endsBlock[0x4c] = true; // JMP Absolute
+        endsBlock[0x58] = true; // CLI
+        endsBlock[0x60] = true; // RTS
+        endsBlock[0x6c] = true; // JMP Indirect
+        endsBlock[0x7c] = true; // JMP (Absolute,X)
+        endsBlock[0xcb] = true; // WAI
+        endsBlock[0xdb] = true; // STP
+    }
+
+    /**
+     * Pairs of instructions that are common in guest hot loops, and which the
+     * CPU runs with a single specialized handler when they appear back to back
+     * in a block.
+     */
+    public enum Fusion {
+        LDA_ABS_STA_ABS("LDA abs / STA abs", 0xad, 0x8d),
+        LDA_INY_STA_INY("LDA (zp),Y / STA (zp),Y", 0xb1, 0x91),
+        DEX_BNE("DEX / BNE", 0xca, 0xd0),
+        DEY_BNE("DEY / BNE", 0x88, 0xd0),
+        CMP_IMM_BEQ("CMP # / BEQ", 0xc9, 0xf0),
+        CMP_IMM_BNE("CMP # / BNE", 0xc9, 0xd0),
+        INC_ZPG_BNE("INC zp / BNE", 0xe6, 0xd0);
+
+        private final String name;
+        final int first;
+        final int second;
+
+        Fusion(String name, int first, int second) {
+            this.name = name;
+            this.first = first;
+            this.second = second;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    /* Fusions indexed by their first and second opcodes */
+    private static final Fusion[] fusionTable = new Fusion[0x10000];
+
+    static {
+        for (Fusion f : Fusion.values()) {
+            fusionTable[(f.first << 8) | f.second] = f;
+        }
+    }
+
+    /**
+     * A single decoded basic block.
+     */
+    static class Block {
+        final int address;
+        final int length;
+        final int[] opcodes;
+        final int[] sizes;
+        final int[] arg0;
+        final int[] arg1;
+        final int[] clocks;
+
+        /* If non-null, the fused handler for the instruction and its successor */
+        final Fusion[] fusions;
+
+        /* The raw bytes of the block, used to revalidate after a page write */
+        final int[] bytes;
+
+        /* The (at most two) pages the block was decoded from */
+        final int firstPage;
+        final int lastPage;
+        int firstPageVersion;
+        int lastPageVersion;
+
+        Block(int address, int length, int[] opcodes, int[] sizes, int[] arg0,
+              int[] arg1, int[] clocks, int[] bytes) {
+            this.address = address;
+            this.length = length;
+            this.opcodes = opcodes;
+            this.sizes = sizes;
+            this.arg0 = arg0;
+            this.arg1 = arg1;
+            this.clocks = clocks;
+            this.fusions = new Fusion[length];
+            this.bytes = bytes;
+            this.firstPage = address & 0xff00;
+            this.lastPage = (address + bytes.length - 1) & 0xff00;
+        }
+    }
+
+    private final Cpu cpu;
+    private final Block[] blocks = new Block[0x10000];
+    private final int[] hotness = new int[0x10000];
+
+    private long compiledBlocks;
+    private long blockExecutions;
+    private long invalidations;
+    private final long[] fusionHits = new long[Fusion.values().length];
+
+    public BlockCache(Cpu cpu) {
+        this.cpu = cpu;
+    }
+
+    /**
+     * Return the decoded block starting at the given address, decoding it if the
+     * address has become hot.
+     *
+     * @param address The address of the first instruction in the block.
+     * @return The block, or null if the interpreter should be used instead.
+     */
+    public Block lookup(int address) {
+        Block block = blocks[address];
+
+        if (block != null) {
+            if (isCurrent(block) || revalidate(block)) {
+                blockExecutions++;
+                return block;
+            }
+            blocks[address] = null;
+            invalidations++;
+        }
+
+        if (++hotness[address] < HOT_THRESHOLD) {
+            return null;
+        }
+
+        hotness[address] = 0;
+        block = decode(address);
+
+        if (block != null) {
+            blocks[address] = block;
+            compiledBlocks++;
+            blockExecutions++;
+        }
+
+        return block;
+    }
+
+    /**
+     * @param block A decoded block.
+     * @return True if none of the pages the block was decoded from have been
+     *         written since it was decoded or last revalidated.
+     */
+    public boolean isCurrent(Block block) {
+        Bus bus = cpu.getBus();
+        return bus.getPageVersion(block.firstPage) == block.firstPageVersion &&
+               bus.getPageVersion(block.lastPage) == block.lastPageVersion;
+    }
+
+    /**
+     * Throw away all decoded blocks and execution counts.
+     */
+    public void clear() {
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = null;
+            hotness[i] = 0;
+        }
+    }
+
+    public long getCompiledBlockCount() {
+        return compiledBlocks;
+    }
+
+    public long getBlockExecutionCount() {
+        return blockExecutions;
+    }
+
+    public long getInvalidationCount() {
+        return invalidations;
+    }
+
+    /**
+     * @param fusion A fused instruction pair.
+     * @return The number of times the fused handler for the pair has run.
+     */
+    public long getFusionHits(Fusion fusion) {
+        return fusionHits[fusion.ordinal()];
+    }
+
+    void countFusion(Fusion fusion) {
+        fusionHits[fusion.ordinal()]++;
+    }
+
+    /**
+     * A page holding the block has been written, but not necessarily the
+     * block itself. Compare the bytes, and if they are unchanged, keep the block.
+     */
+    private boolean revalidate(Block block) {
+        Bus bus = cpu.getBus();
+
+        try {
+            for (int i = 0; i < block.bytes.length; i++) {
+                int addr = (block.address + i) & 0xffff;
+                if (!bus.isMemory(addr) || bus.read(addr, false) != block.bytes[i]) {
+                    return false;
+                }
+            }
+        } catch (MemoryAccessException ex) {
+            return false;
+        }
+
+        block.firstPageVersion = bus.getPageVersion(block.firstPage);
+        block.lastPageVersion = bus.getPageVersion(block.lastPage);
+        return true;
+    }
+
+    private Block decode(int address) {
+        Bus bus = cpu.getBus();
+
+        int[] opcodes = new int[MAX_BLOCK_LENGTH];
+        int[] sizes = new int[MAX_BLOCK_LENGTH];
+        int[] arg0 = new int[MAX_BLOCK_LENGTH];
+        int[] arg1 = new int[MAX_BLOCK_LENGTH];
+        int[] clocks = new int[MAX_BLOCK_LENGTH];
+        int[] bytes = new int[MAX_BLOCK_LENGTH * 3];
+
+        int length = 0;
+        int byteCount = 0;
+        int addr = address;
+
+        try {
+            decodeLoop:
+            while (length < MAX_BLOCK_LENGTH) {
+                if (!bus.isMemory(addr)) {
+                    break;
+                }
+
+                int opcode = bus.read(addr, false);
+                int size = Cpu.instructionSizes[opcode];
+
+                // Don't let a block straddle more than two pages, or wrap around.
+                if (addr + size - 1 > 0xffff ||
+                    ((addr + size - 1) & 0xff00) - (address & 0xff00) > 0x100) {
+                    break;
+                }
+
+                for (int i = 1; i < size; i++) {
+                    if (!bus.isMemory(addr + i)) {
+                        break decodeLoop;
+                    }
+                }
+
+                opcodes[length] = opcode;
+                sizes[length] = size;
+                arg0[length] = size > 1 ? bus.read(addr + 1, false) : 0;
+                arg1[length] = size > 2 ? bus.read(addr + 2, false) : 0;
+                clocks[length] = cpu.getInstructionClocks(opcode);
+
+                bytes[byteCount++] = opcode;
+                if (size > 1) {
+                    bytes[byteCount++] = arg0[length];
+                }
+                if (size > 2) {
+                    bytes[byteCount++] = arg1[length];
+                }
+
+                length++;
+                addr += size;
+
+                if (endsBlock[opcode]) {
+                    break;
+                }
+            }
+        } catch (MemoryAccessException ex) {
+            // Fall through and keep whatever was decoded so far.
+        }
+
+        if (length == 0) {
+            return null;
+        }
+
+        int[] blockBytes = new int[byteCount];
+        System.arraycopy(bytes, 0, blockBytes, 0, byteCount);
+
+        Block block = new Block(address, length, opcodes, sizes, arg0, arg1, clocks, blockBytes);
+
+        for (int i = 0; i < length - 1; i++) {
+            Fusion fusion = fusionTable[(opcodes[i] << 8) | opcodes[i + 1]];
+            if (fusion != null) {
+                block.fusions[i++] = fusion;
+            }
+        }
+
+        block.firstPageVersion = bus.getPageVersion(block.firstPage);
+        block.lastPageVersion = bus.getPageVersion(block.lastPage);
+        return block;
+    }
+}
@@ -1,10 +1,8 @@
 package com.loomcom.symon;
 
-import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.util.Utils;
 
 import javax.swing.table.AbstractTableModel;
-import java.util.ArrayList;
 import java.util.TreeSet;
 
 public class Breakpoints extends AbstractTableModel {
@@ -12,6 +10,9 @@ public class Breakpoints extends AbstractTableModel {
     private TreeSet<Integer> breakpoints;
     private Simulator simulator;
 
+    // The breakpoints in table order, rebuilt only when the set changes.
+    private int[] rows = new int[0];
+
     public Breakpoints(Simulator simulator) {
         this.breakpoints = new TreeSet<>();
         this.simulator = simulator;
@@ -21,25 +22,28 @@ public class Breakpoints extends AbstractTableModel {
         return this.breakpoints.contains(address);
     }
 
+    public boolean isEmpty() {
+        return this.breakpoints.isEmpty();
+    }
+
     public void addBreakpoint(int address) {
         this.breakpoints .add(address);
+        updateRows();
         fireTableDataChanged();
     }
 
     public void removeBreakpoint(int address) {
         this.breakpoints.remove(address);
+        updateRows();
         fireTableDataChanged();
     }
 
     public void removeBreakpointAtIndex(int index) {
-        if (index < 0) {
+        if (index < 0 || index >= rows.length) {
             return;
         }
 
-        ArrayList<Integer> values = new ArrayList<>(breakpoints);
-        int value = values.get(index);
-        this.breakpoints.remove(value);
-        fireTableDataChanged();
+        removeBreakpoint(rows[index]);
     }
 
     public void refresh() {
@@ -67,19 +71,24 @@ public class Breakpoints extends AbstractTableModel {
 
     @Override
     public Object getValueAt(int rowIndex, int columnIndex) {
-        ArrayList<Integer> values = new ArrayList<>(breakpoints);
-
         if (columnIndex == 0) {
-            return "$" + Utils.wordToHex(values.get(rowIndex));
-        } else if (columnIndex == 1) {
-            int address = values.get(rowIndex);
-            try {
-                return simulator.disassembleOpAtAddress(address);
-            } catch (MemoryAccessException ex) {
-                return "???";
+            String symbol = simulator.getSymbolTable().symbolize(rows[rowIndex]);
+            if (symbol != null) {
+                return "$" + Utils.wordToHex(rows[rowIndex]) + " " + symbol;
             }
+            return "$" + Utils.wordToHex(rows[rowIndex]);
+        } else if (columnIndex == 1) {
+            return simulator.disassembleOpAtAddress(rows[rowIndex]);
         } else {
             return null;
         }
     }
+
+    private void updateRows() {
+        rows = new int[breakpoints.size()];
+        int i = 0;
+        for (int address : breakpoints) {
+            rows[i++] = address;
+        }
+    }
 }
@@ -24,8 +24,10 @@
 package com.loomcom.symon;
 
 import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.Memory;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
+import com.loomcom.symon.profiler.HeatmapProfiler;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -57,6 +59,14 @@ public class Bus {
     // an array for quick lookup of adresses, brute-force style
     private Device[] deviceAddressArray;
 
+    // a write counter for each 256 byte page, used to detect stale decoded code
+    private int[] pageVersions;
+
+    // counts writes to I/O devices, i.e. anything other than plain RAM or ROM
+    private int deviceWriteCount;
+
+    // counts CPU reads and writes per address, or null if not profiling
+    private HeatmapProfiler profiler;
 
     public Bus(int size) {
         this(0, size - 1);
@@ -66,6 +76,7 @@ public class Bus {
         this.deviceMap = new HashMap<>();
         this.startAddress = startAddress;
         this.endAddress = endAddress;
+        this.pageVersions = new int[((endAddress - startAddress) >> 8) + 1];
     }
 
     public int startAddress() {
@@ -88,6 +99,8 @@ public class Bus {
             }
         }
 
+        // The memory map changed, so anything decoded from it may be stale.
+        invalidatePages();
     }
 
     /**
@@ -173,6 +186,12 @@ public class Bus {
         if (d != null) {
             MemoryRange range = d.getMemoryRange();
             int devAddr = address - range.startAddress();
+            if (cpuAccess) {
+                d.countBusRead();
+                if (profiler != null) {
+                    profiler.memoryRead(address);
+                }
+            }
             return d.read(devAddr, cpuAccess) & 0xff;
         }
 
@@ -184,13 +203,86 @@ public class Bus {
         if (d != null) {
             MemoryRange range = d.getMemoryRange();
             int devAddr = address - range.startAddress();
-            d.write(devAddr, value);
+            if (d instanceof Memory) {
+                // Storing the value already there leaves the page as it was,
+                // so caches of its contents, e.g. decoded code, stay valid.
+                int previous = d.read(devAddr, false);
+                d.write(devAddr, value);
+                if (previous != value) {
+                    pageVersions[(address - this.startAddress) >> 8]++;
+                }
+            } else {
+                d.write(devAddr, value);
+                pageVersions[(address - this.startAddress) >> 8]++;
+                deviceWriteCount++;
+            }
+            d.countBusWrite();
+            if (profiler != null) {
+                profiler.memoryWrite(address);
+            }
             return;
         }
 
         throw new MemoryAccessException("Bus write failed. No device at address " + String.format("$%04X", address));
     }
 
+    /**
+     * Attach a profiler to count CPU reads and writes, or detach it with null.
+     * This is normally done through {@link Cpu#setHeatmapProfiler(HeatmapProfiler)}.
+     */
+    public void setProfiler(HeatmapProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Returns the write counter of the page containing the given address.
+     * The counter changes whenever a new value is written to the page through
+     * the bus (or anything at all is written to an I/O device), so callers
+     * caching anything derived from memory contents can cheaply detect that
+     * their copy is stale.
+     *
+     * @param address The address to look up.
+     * @return The current write counter for the page.
+     */
+    public int getPageVersion(int address) {
+        return pageVersions[(address - this.startAddress) >> 8];
+    }
+
+    /**
+     * Returns a counter of writes to I/O devices, rather than to plain RAM or
+     * ROM. Anything that runs several instructions at once, such as a cached
+     * block, can check it to stop after a write that the host may need to
+     * see, e.g. a character sent to an ACIA.
+     *
+     * @return The number of writes to I/O devices so far.
+     */
+    public int getDeviceWriteCount() {
+        return deviceWriteCount;
+    }
+
+    /**
+     * Mark every page as changed. Use this after memory has been modified
+     * without going through the bus, e.g. after filling or loading a Memory
+     * device directly.
+     */
+    public void invalidatePages() {
+        for (int i = 0; i < pageVersions.length; i++) {
+            pageVersions[i]++;
+        }
+    }
+
+    /**
+     * @param address The address to look up.
+     * @return True if the address is backed by plain RAM or ROM, rather than by an
+     *         I/O device (or nothing at all).
+     */
+    public boolean isMemory(int address) {
+        if (address < startAddress || address > endAddress || deviceAddressArray == null) {
+            return false;
+        }
+        return deviceAddressArray[address - this.startAddress] instanceof Memory;
+    }
+
     public void assertIrq() {
         if (cpu != null) {
             cpu.assertIrq();
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps simulated time in step with wall clock time.
+ * <p>
+ * Rather than delaying after every instruction, the pacer compares the CPU's
+ * cycle counter against the wall clock once per slice of simulated time. When
+ * the simulation is ahead it parks the host thread for most of the difference
+ * and spins for the rest; when it is behind it simply lets the CPU run until
+ * it has caught up. Because the deadline is always computed from the start of
+ * the current window, rounding and oversleeping never accumulate, and any
+ * target frequency can be used.
+ * <p>
+ * If the simulation falls too far behind, e.g. while the simulator was stopped
+ * or the host was busy, the pacer gives up on catching up and starts a new
+ * window instead of running flat out for a long time.
+ * <p>
+ * The pacer also measures the effective clock frequency, whether throttled
+ * or not.
+ */
+public class ClockPacer {
+
+    /* Simulated time between checks of the wall clock */
+    public static final long SLICE_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /* Delays shorter than this are spun rather than parked */
+    public static final long SPIN_NS = TimeUnit.MICROSECONDS.toNanos(20);
+
+    /* Falling further behind than this starts a new window */
+    public static final long MAX_LAG_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /* The wall time over which the effective frequency is measured */
+    public static final long MEASURE_NS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /* Cycles between wall clock checks when unthrottled */
+    private static final long UNTHROTTLED_SLICE_CYCLES = 10000;
+
+    private static final long NS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /* Target frequency in Hz, or 0 to run as fast as possible */
+    private volatile long frequency;
+
+    /* Set when the window must be restarted, e.g. after a change of frequency */
+    private volatile boolean resyncRequested = true;
+
+    /* The current window, which never spans more than one simulated second */
+    private long windowStartNs;
+    private long windowStartCycles;
+
+    /* The cycle count at which the wall clock is next checked */
+    private long nextCheckCycles;
+
+    /* Effective frequency measurement */
+    private long measureStartNs;
+    private long measureStartCycles;
+    private volatile long measuredNs;
+    private volatile double measuredFrequency;
+
+    /**
+     * @param frequency The target frequency in Hz, or 0 to run unthrottled.
+     */
+    public ClockPacer(long frequency) {
+        setFrequency(frequency);
+    }
+
+    /**
+     * @param frequency The target frequency in Hz, or 0 to run unthrottled.
+     */
+    public void setFrequency(long frequency) {
+        if (frequency < 0) {
+            throw new IllegalArgumentException("Frequency must not be negative");
+        }
+        this.frequency = frequency;
+        this.resyncRequested = true;
+    }
+
+    /**
+     * @return The target frequency in Hz, or 0 if unthrottled.
+     */
+    public long getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * Forget the current window, e.g. because the cycle counter was reset.
+     * This is safe to call from any thread.
+     */
+    public void reset() {
+        resyncRequested = true;
+    }
+
+    /**
+     * @return The effective frequency in Hz measured over the last half second,
+     *         or 0 if the CPU has not run in the last second.
+     */
+    public double getMeasuredFrequency() {
+        if (nanoTime() - measuredNs > 2 * MEASURE_NS) {
+            return 0;
+        }
+        return measuredFrequency;
+    }
+
+    /**
+     * Called by the CPU thread after executing instructions. Returns quickly
+     * unless the end of a slice has been reached, in which case it may wait
+     * for the wall clock to catch up.
+     *
+     * @param cycles The CPU's cycle counter.
+     */
+    public void pace(long cycles) {
+        if (cycles < nextCheckCycles && !resyncRequested) {
+            return;
+        }
+
+        long hz = frequency;
+        long now = nanoTime();
+
+        if (resyncRequested || cycles < windowStartCycles) {
+            resyncRequested = false;
+            resync(now, cycles);
+            measureStartNs = now;
+            measureStartCycles = cycles;
+        }
+
+        measure(now, cycles);
+
+        if (hz == 0) {
+            nextCheckCycles = cycles + UNTHROTTLED_SLICE_CYCLES;
+            return;
+        }
+
+        nextCheckCycles = cycles + Math.max(1, hz * SLICE_NS / NS_PER_SECOND);
+
+        // Move the window forward a whole simulated second at a time, which
+        // keeps the arithmetic below exact and free of overflow.
+        long elapsedCycles = cycles - windowStartCycles;
+        while (elapsedCycles >= hz) {
+            elapsedCycles -= hz;
+            windowStartCycles += hz;
+            windowStartNs += NS_PER_SECOND;
+        }
+
+        long dueNs = windowStartNs + elapsedCycles * NS_PER_SECOND / hz;
+        long aheadNs = dueNs - now;
+
+        if (aheadNs < -MAX_LAG_NS) {
+            resync(now, cycles);
+            return;
+        }
+
+        if (aheadNs > SPIN_NS) {
+            sleep(aheadNs - SPIN_NS);
+        }
+        while (dueNs - nanoTime() > 0) {
+            // Spin for the last few microseconds
+        }
+    }
+
+    private void resync(long now, long cycles) {
+        windowStartNs = now;
+        windowStartCycles = cycles;
+    }
+
+    private void measure(long now, long cycles) {
+        long elapsedNs = now - measureStartNs;
+        if (elapsedNs >= MEASURE_NS) {
+            measuredFrequency = (cycles - measureStartCycles) * (double) NS_PER_SECOND / elapsedNs;
+            measuredNs = now;
+            measureStartNs = now;
+            measureStartCycles = cycles;
+        }
+    }
+
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    void sleep(long ns) {
+        LockSupport.parkNanos(ns);
+    }
+}
@@ -24,10 +24,18 @@
 package com.loomcom.symon;
 
 import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.jfr.SimulatorEvents;
+import com.loomcom.symon.profiler.CallGraphProfiler;
+import com.loomcom.symon.profiler.CoverageRecorder;
+import com.loomcom.symon.profiler.HeatmapProfiler;
 import com.loomcom.symon.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 
 /**
  * This class provides a simulation of the MOS 6502 CPU's state machine.
@@ -59,9 +67,16 @@ public class Cpu implements InstructionTable {
     public static final int IRQ_VECTOR_H = 0xffff;
 
     public static final long DEFAULT_CLOCK_PERIOD_IN_NS = 1000;
+    public static final long DEFAULT_CLOCK_FREQUENCY = 1000000;
+
+    /* The longest the host thread is parked in an idle loop or WAI before re-checking */
+    public static final long MAX_IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /* The longest the host thread is parked after STP before re-checking */
+    public static final long MAX_STOP_PARK_NS = TimeUnit.MILLISECONDS.toNanos(100);
 
-    /* Simulated clock speed (default is 1MHz) */
-    private long clockPeriodInNs = DEFAULT_CLOCK_PERIOD_IN_NS;
+    /* Keeps the simulated clock speed (default is 1MHz) */
+    private final ClockPacer clockPacer = new ClockPacer(DEFAULT_CLOCK_FREQUENCY);
 
     /* Simulated behavior */
     private CpuBehavior behavior;
@@ -72,8 +87,44 @@ public class Cpu implements InstructionTable {
     /* The CPU state */
     private final CpuState state = new CpuState();
 
-    /* start time of op execution, needed for speed simulation */
-    private long opBeginTime;
+    /* Clock cycles per opcode for the simulated behavior */
+    private int[] instructionClocks;
+
+    /* ADC/SBC results and flags. Decimal mode tables depend on the simulated behavior. */
+    private static final char[] binaryAdcTable = AluTables.binaryAdc();
+    private char[] decimalAdcTable;
+    private char[] decimalSbcTable;
+
+    /* Cache of pre-decoded basic blocks, or null if the block cache is disabled */
+    private BlockCache blockCache;
+
+    /* Guest idle loop detection, or null if disabled */
+    private IdleLoopDetector idleLoopDetector;
+
+    /* Interrupts taken since the CPU was created */
+    private long irqCount;
+    private long nmiCount;
+
+    /* Symbols used when disassembling */
+    private final SymbolTable symbolTable = new SymbolTable();
+
+    /* Per-address profiler, or null if not profiling */
+    private HeatmapProfiler heatmapProfiler;
+
+    /* Shadow call stack profiler, or null if not profiling */
+    private CallGraphProfiler callGraphProfiler;
+
+    /* Code coverage recorder, or null if not recording */
+    private CoverageRecorder coverageRecorder;
+
+    /* True if any of the above is attached, so blocks must be single stepped */
+    private boolean instrumented;
+
+    /* Used to park the host thread while the guest is idle */
+    private final ReentrantLock parkLock = new ReentrantLock();
+    private final Condition wakeCondition = parkLock.newCondition();
+    private volatile boolean parked;
+    private volatile boolean wakeRequested;
 
     /**
      * Construct a new CPU.
@@ -83,7 +134,7 @@ public class Cpu implements InstructionTable {
     }
 
     public Cpu(CpuBehavior behavior) {
-        this.behavior = behavior;
+        setBehavior(behavior);
     }
 
     /**
@@ -91,6 +142,11 @@ public class Cpu implements InstructionTable {
      */
     public void setBus(Bus bus) {
         this.bus = bus;
+        bus.setProfiler(heatmapProfiler);
+
+        if (blockCache != null) {
+            blockCache.clear();
+        }
     }
 
     /**
@@ -102,12 +158,154 @@ public class Cpu implements InstructionTable {
 
     public void setBehavior(CpuBehavior behavior) {
         this.behavior = behavior;
+
+        if (behavior == CpuBehavior.NMOS_WITH_ROR_BUG ||
+            behavior == CpuBehavior.NMOS_6502) {
+            instructionClocks = Cpu.instructionClocksNmos;
+        } else {
+            instructionClocks = Cpu.instructionClocksCmos;
+        }
+
+        decimalAdcTable = AluTables.decimalAdc(behavior);
+        decimalSbcTable = AluTables.decimalSbc(behavior);
+
+        // Decoded blocks carry behavior-specific cycle counts
+        if (blockCache != null) {
+            blockCache.clear();
+        }
     }
 
     public CpuBehavior getBehavior() {
         return behavior;
     }
 
+    /**
+     * Enable or disable the basic block cache. When enabled, {@link #stepBlock()}
+     * executes hot basic blocks from pre-decoded form instead of fetching and
+     * decoding every instruction through the Bus.
+     *
+     * @param enabled True to enable the block cache.
+     */
+    public void setBlockCacheEnabled(boolean enabled) {
+        if (enabled && blockCache == null) {
+            blockCache = new BlockCache(this);
+        } else if (!enabled) {
+            blockCache = null;
+        }
+    }
+
+    public boolean isBlockCacheEnabled() {
+        return blockCache != null;
+    }
+
+    /**
+     * @return The block cache, or null if the block cache is disabled.
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Enable or disable idle loop detection. When enabled, the host thread is
+     * parked while the guest spins in a loop that cannot make progress until a
+     * device changes state, and the cycles the loop would have taken are added
+     * to the cycle counter.
+     *
+     * @param enabled True to enable idle loop detection.
+     */
+    public void setIdleDetectionEnabled(boolean enabled) {
+        if (enabled && idleLoopDetector == null) {
+            idleLoopDetector = new IdleLoopDetector(this);
+        } else if (!enabled) {
+            idleLoopDetector = null;
+        }
+    }
+
+    /**
+     * @return The idle loop detector, or null if idle loop detection is disabled.
+     */
+    public IdleLoopDetector getIdleLoopDetector() {
+        return idleLoopDetector;
+    }
+
+    /**
+     * @return The symbols used to disassemble instructions. Load symbols into
+     *         this table to have them shown in disassembly.
+     */
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    /**
+     * Attach a per-address profiler, or detach it with null. The profiler is
+     * also attached to the Bus, to count reads and writes. While a profiler is
+     * attached, {@link #stepBlock()} runs one instruction at a time.
+     *
+     * @param profiler The profiler, or null to stop profiling.
+     */
+    public void setHeatmapProfiler(HeatmapProfiler profiler) {
+        this.heatmapProfiler = profiler;
+        if (bus != null) {
+            bus.setProfiler(profiler);
+        }
+        updateInstrumented();
+    }
+
+    public HeatmapProfiler getHeatmapProfiler() {
+        return heatmapProfiler;
+    }
+
+    /**
+     * Attach a call graph profiler, or detach it with null. While a profiler is
+     * attached, {@link #stepBlock()} runs one instruction at a time.
+     *
+     * @param profiler The profiler, or null to stop profiling.
+     */
+    public void setCallGraphProfiler(CallGraphProfiler profiler) {
+        this.callGraphProfiler = profiler;
+        updateInstrumented();
+    }
+
+    public CallGraphProfiler getCallGraphProfiler() {
+        return callGraphProfiler;
+    }
+
+    /**
+     * Attach a code coverage recorder, or detach it with null. While a recorder
+     * is attached, {@link #stepBlock()} runs one instruction at a time.
+     *
+     * @param recorder The recorder, or null to stop recording.
+     */
+    public void setCoverageRecorder(CoverageRecorder recorder) {
+        this.coverageRecorder = recorder;
+        updateInstrumented();
+    }
+
+    public CoverageRecorder getCoverageRecorder() {
+        return coverageRecorder;
+    }
+
+    private void updateInstrumented() {
+        instrumented = heatmapProfiler != null || callGraphProfiler != null || coverageRecorder != null;
+    }
+
+    /**
+     * Wake the CPU if it is parked in an idle loop. This is safe to call from any
+     * thread, and should be called whenever a device gets new input that the
+     * guest may be waiting for.
+     */
+    public void wakeUp() {
+        wakeRequested = true;
+        if (parked) {
+            parkLock.lock();
+            try {
+                wakeCondition.signalAll();
+            } finally {
+                parkLock.unlock();
+            }
+        }
+    }
+
     /**
      * Reset the CPU to known initial values.
      */
@@ -124,28 +322,36 @@ public class Cpu implements InstructionTable {
         state.ir = 0;
 
         // Clear status register bits.
-        state.carryFlag = false;
-        state.zeroFlag = false;
-        state.irqDisableFlag = false;
-        state.decimalModeFlag = false;
-        state.breakFlag = false;
-        state.overflowFlag = false;
-        state.negativeFlag = false;
+        state.p = 0;
+        state.setNZ(false, false);
 
         state.irqAsserted = false;
 
         // Clear illegal opcode trap.
         state.opTrap = false;
 
-        // Reset step counter
+        // Reset is the only way out of STP.
+        state.waiting = false;
+        state.stopped = false;
+        wakeUp();
+
+        // Reset step and cycle counters
         state.stepCounter = 0L;
+        state.cycleCounter = 0L;
+        clockPacer.reset();
+
+        // Memory may have been changed behind the Bus' back (e.g. a cold reset)
+        if (blockCache != null) {
+            blockCache.clear();
+        }
+        if (idleLoopDetector != null) {
+            idleLoopDetector.reset();
+        }
 
         // Reset registers.
         state.a = 0;
         state.x = 0;
         state.y = 0;
-
-        peekAhead();
     }
 
     public void step(int num) throws MemoryAccessException {
@@ -158,7 +364,18 @@ public class Cpu implements InstructionTable {
      * Performs an individual instruction cycle.
      */
     public void step() throws MemoryAccessException {
-        opBeginTime = System.nanoTime();
+        // A stopped or waiting 65C02 does nothing but wait to be woken up.
+        if (state.stopped || state.waiting) {
+            if (state.stopped || !(state.nmiAsserted || state.irqAsserted)) {
+                long parkedNs = park(state.stopped ? MAX_STOP_PARK_NS : MAX_IDLE_PARK_NS);
+                state.cycleCounter += cyclesIn(parkedNs);
+                clockPacer.pace(state.cycleCounter);
+                return;
+            }
+            // An interrupt ends WAI even if IRQs are disabled, in which
+            // case execution simply resumes after the WAI.
+            state.waiting = false;
+        }
 
         // Store the address from which the IR was read, for debugging
         state.lastPc = state.pc;
@@ -167,14 +384,20 @@ public class Cpu implements InstructionTable {
         // This will set the PC and jump to the interrupt vector.
         if (state.nmiAsserted) {
             handleNmi();
+            if (callGraphProfiler != null) {
+                callGraphProfiler.interrupted(CallGraphProfiler.NMI, state.pc, state.sp);
+            }
         } else if (state.irqAsserted && !getIrqDisableFlag()) {
             handleIrq(state.pc);
+            if (callGraphProfiler != null) {
+                callGraphProfiler.interrupted(CallGraphProfiler.IRQ, state.pc, state.sp);
+            }
         }
 
+        int opcodeAddress = state.pc;
+
         // Fetch memory location for this instruction.
         state.ir = bus.read(state.pc, true);
-        int irAddressMode = (state.ir >> 2) & 0x07;  // Bits 3-5 of IR:  [ | | |X|X|X| | ]
-        int irOpMode = state.ir & 0x03;              // Bits 6-7 of IR:  [ | | | | | |X|X]
 
         incrementPC();
 
@@ -190,6 +413,212 @@ public class Cpu implements InstructionTable {
 
         state.stepCounter++;
 
+        execute();
+
+        int clockSteps = instructionClocks[state.ir];
+        state.cycleCounter += clockSteps;
+
+        if (instrumented) {
+            if (heatmapProfiler != null) {
+                heatmapProfiler.instructionExecuted(opcodeAddress, clockSteps);
+            }
+            if (callGraphProfiler != null) {
+                callGraphProfiler.instructionExecuted(state.ir, state.pc, state.sp, clockSteps);
+            }
+            if (coverageRecorder != null) {
+                coverageRecorder.instructionExecuted(opcodeAddress, state.ir, state.pc);
+            }
+        }
+
+        checkIdle();
+
+        clockPacer.pace(state.cycleCounter);
+    }
+
+    /**
+     * Executes the pre-decoded basic block at the current program counter, if
+     * the block cache holds one. Otherwise, this performs a single instruction
+     * cycle exactly like {@link #step()}.
+     * <p>
+     * Interrupts are only recognized at block boundaries, and a block stops
+     * early if one of its own instructions writes to the page it was decoded
+     * from, or writes to an I/O device. The caller can then service the
+     * device, e.g. drain an ACIA, before the next write.
+     *
+     * @return The number of instructions executed.
+     */
+    public int stepBlock() throws MemoryAccessException {
+        if (state.waiting || state.stopped) {
+            long steps = state.stepCounter;
+            step();
+            return (int) (state.stepCounter - steps);
+        }
+
+        if (blockCache == null || instrumented || state.nmiAsserted ||
+            (state.irqAsserted && !getIrqDisableFlag())) {
+            step();
+            return 1;
+        }
+
+        BlockCache.Block block = blockCache.lookup(state.pc);
+
+        if (block == null) {
+            step();
+            return 1;
+        }
+
+        int executed = 0;
+        int clockSteps = 0;
+        int deviceWrites = bus.getDeviceWriteCount();
+
+        while (executed < block.length) {
+            if (block.fusions[executed] != null) {
+                int fused = executeFused(block, executed);
+
+                clockSteps += block.clocks[executed];
+                if (fused == 2) {
+                    clockSteps += block.clocks[executed + 1];
+                }
+                executed += fused;
+
+                if (fused == 1 || !blockCache.isCurrent(block) ||
+                    bus.getDeviceWriteCount() != deviceWrites) {
+                    break;
+                }
+                continue;
+            }
+
+            state.lastPc = state.pc;
+            state.ir = block.opcodes[executed];
+            state.instSize = block.sizes[executed];
+            state.args[0] = block.arg0[executed];
+            state.args[1] = block.arg1[executed];
+            state.pc = (state.pc + state.instSize) & 0xffff;
+            state.opTrap = false;
+            state.stepCounter++;
+
+            execute();
+
+            clockSteps += block.clocks[executed++];
+
+            if (state.opTrap || !blockCache.isCurrent(block) ||
+                bus.getDeviceWriteCount() != deviceWrites) {
+                // Stop on a trap, on self-modifying code (the block will be
+                // revalidated on the next lookup), or after an I/O write.
+                break;
+            }
+        }
+
+        state.cycleCounter += clockSteps;
+
+        checkIdle();
+
+        clockPacer.pace(state.cycleCounter);
+
+        return executed;
+    }
+
+    /**
+     * Run a fused pair of instructions from a block with a single specialized
+     * handler. The architectural state afterwards is exactly as if both had
+     * been run through {@link #execute()}.
+     *
+     * @return The number of instructions executed. This is 1 if the first
+     *         instruction of the pair modified the block's own code.
+     */
+    private int executeFused(BlockCache.Block block, int i) throws MemoryAccessException {
+        BlockCache.Fusion fusion = block.fusions[i];
+        int firstPc = state.pc;
+        int secondPc = (firstPc + block.sizes[i]) & 0xffff;
+        int arg = block.arg0[i];
+        int secondArg = block.arg0[i + 1];
+        int tmp;
+
+        state.pc = (secondPc + block.sizes[i + 1]) & 0xffff;
+
+        switch (fusion) {
+            case LDA_ABS_STA_ABS:
+                state.a = bus.read(Utils.address(arg, block.arg1[i]), true);
+                setArithmeticFlags(state.a);
+                bus.write(Utils.address(secondArg, block.arg1[i + 1]), state.a);
+                break;
+            case LDA_INY_STA_INY:
+                tmp = Utils.address(bus.read(arg, true), bus.read((arg + 1) & 0xff, true));
+                state.a = bus.read((tmp + state.y) & 0xffff, true);
+                setArithmeticFlags(state.a);
+                tmp = Utils.address(bus.read(secondArg, true), bus.read((secondArg + 1) & 0xff, true));
+                bus.write((tmp + state.y) & 0xffff, state.a);
+                break;
+            case DEX_BNE:
+                state.x = (state.x - 1) & 0xff;
+                setArithmeticFlags(state.x);
+                if (state.x != 0) {
+                    state.pc = relAddress(secondArg);
+                }
+                break;
+            case DEY_BNE:
+                state.y = (state.y - 1) & 0xff;
+                setArithmeticFlags(state.y);
+                if (state.y != 0) {
+                    state.pc = relAddress(secondArg);
+                }
+                break;
+            case CMP_IMM_BEQ:
+                cmp(state.a, arg);
+                if (state.a == arg) {
+                    state.pc = relAddress(secondArg);
+                }
+                break;
+            case CMP_IMM_BNE:
+                cmp(state.a, arg);
+                if (state.a != arg) {
+                    state.pc = relAddress(secondArg);
+                }
+                break;
+            case INC_ZPG_BNE:
+                tmp = (bus.read(arg, true) + 1) & 0xff;
+                bus.write(arg, tmp);
+                setArithmeticFlags(tmp);
+                if (!blockCache.isCurrent(block)) {
+                    // The increment rewrote the branch; let the interpreter run it.
+                    state.pc = secondPc;
+                    state.lastPc = firstPc;
+                    state.ir = block.opcodes[i];
+                    state.instSize = block.sizes[i];
+                    state.args[0] = arg;
+                    state.args[1] = block.arg1[i];
+                    state.opTrap = false;
+                    state.stepCounter++;
+                    return 1;
+                }
+                if (tmp != 0) {
+                    state.pc = relAddress(secondArg);
+                }
+                break;
+        }
+
+        // Leave the state as if the second instruction was the last one run.
+        state.lastPc = secondPc;
+        state.ir = block.opcodes[i + 1];
+        state.instSize = block.sizes[i + 1];
+        state.args[0] = secondArg;
+        state.args[1] = block.arg1[i + 1];
+        state.opTrap = false;
+        state.stepCounter += 2;
+
+        blockCache.countFusion(fusion);
+
+        return 2;
+    }
+
+    /**
+     * Execute the instruction in the IR, with its operands already decoded into
+     * the argument registers and the PC pointing to the following instruction.
+     */
+    private void execute() throws MemoryAccessException {
+        int irAddressMode = (state.ir >> 2) & 0x07;  // Bits 3-5 of IR:  [ | | |X|X|X| | ]
+        int irOpMode = state.ir & 0x03;              // Bits 6-7 of IR:  [ | | | | | |X|X]
+
         // Get the data from the effective address (if any)
         int effectiveAddress = 0;
         int tmp; // Temporary storage
@@ -418,6 +847,14 @@ public class Cpu implements InstructionTable {
                 state.x = --state.x & 0xff;
                 setArithmeticFlags(state.x);
                 break;
+            case 0xcb: // 65C02 WAI - Wait for Interrupt - Implied
+                if (behavior == CpuBehavior.NMOS_6502 ||
+                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
+                    setOpTrap();
+                    break;
+                }
+                state.waiting = true;
+                break;
             case 0xd0: // BNE - Branch if Not Equal to Zero - Relative
                 if (!getZeroFlag()) {
                     state.pc = relAddress(state.args[0]);
@@ -433,6 +870,14 @@ public class Cpu implements InstructionTable {
                 }
                 stackPush(state.x);
                 break;
+            case 0xdb: // 65C02 STP - Stop the Processor - Implied
+                if (behavior == CpuBehavior.NMOS_6502 ||
+                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
+                    setOpTrap();
+                    break;
+                }
+                state.stopped = true;
+                break;
             case 0xe8: // INX - Increment X Register - Implied
                 state.x = ++state.x & 0xff;
                 setArithmeticFlags(state.x);
@@ -627,7 +1072,7 @@ public class Cpu implements InstructionTable {
 
             /** ADC - Add with Carry ************************************************/
             case 0x69: // #Immediate
-                if (state.decimalModeFlag) {
+                if (getDecimalModeFlag()) {
                     state.a = adcDecimal(state.a, state.args[0]);
                 } else {
                     state.a = adc(state.a, state.args[0]);
@@ -645,7 +1090,7 @@ public class Cpu implements InstructionTable {
             case 0x75: // Zero Page,X
             case 0x79: // Absolute,Y
             case 0x7d: // Absolute,X
-                if (state.decimalModeFlag) {
+                if (getDecimalModeFlag()) {
                     state.a = adcDecimal(state.a, bus.read(effectiveAddress, true));
                 } else {
                     state.a = adc(state.a, bus.read(effectiveAddress, true));
@@ -823,7 +1268,7 @@ public class Cpu implements InstructionTable {
 
             /** SBC - Subtract with Carry (Borrow) **********************************/
             case 0xe9: // #Immediate
-                if (state.decimalModeFlag) {
+                if (getDecimalModeFlag()) {
                     state.a = sbcDecimal(state.a, state.args[0]);
                 } else {
                     state.a = sbc(state.a, state.args[0]);
@@ -841,7 +1286,7 @@ public class Cpu implements InstructionTable {
             case 0xf5: // Zero Page,X
             case 0xf9: // Absolute,Y
             case 0xfd: // Absolute,X
-                if (state.decimalModeFlag) {
+                if (getDecimalModeFlag()) {
                     state.a = sbcDecimal(state.a, bus.read(effectiveAddress, true));
                 } else {
                     state.a = sbc(state.a, bus.read(effectiveAddress, true));
@@ -1231,20 +1676,6 @@ public class Cpu implements InstructionTable {
                 setOpTrap();
                 break;
         }
-
-        delayLoop(state.ir);
-
-        // Peek ahead to the next insturction and arguments
-        peekAhead();
-    }
-
-    private void peekAhead() throws MemoryAccessException {
-        state.nextIr = bus.read(state.pc, true);
-        int nextInstSize = Cpu.instructionSizes[state.nextIr];
-        for (int i = 1; i < nextInstSize; i++) {
-            int nextRead = (state.pc + i) % bus.endAddress();
-            state.nextArgs[i-1] = bus.read(nextRead, true);
-        }
     }
 
     private void handleBrk(int returnPc) throws MemoryAccessException {
@@ -1255,11 +1686,16 @@ public class Cpu implements InstructionTable {
     private void handleIrq(int returnPc) throws MemoryAccessException {
         handleInterrupt(returnPc, IRQ_VECTOR_L, IRQ_VECTOR_H, false);
         clearIrq();
+        irqCount++;
+        SimulatorEvents.interrupt(false, returnPc, state.pc);
     }
 
     private void handleNmi() throws MemoryAccessException {
-        handleInterrupt(state.pc, NMI_VECTOR_L, NMI_VECTOR_H, false);
+        int returnPc = state.pc;
+        handleInterrupt(returnPc, NMI_VECTOR_L, NMI_VECTOR_H, false);
         clearNmi();
+        nmiCount++;
+        SimulatorEvents.interrupt(true, returnPc, state.pc);
     }
 
     /**
@@ -1307,75 +1743,42 @@ public class Cpu implements InstructionTable {
      * @return The sum of the accumulator and the operand
      */
     private int adc(int acc, int operand) {
-        int result = (operand & 0xff) + (acc & 0xff) + getCarryBit();
-        int carry6 = (operand & 0x7f) + (acc & 0x7f) + getCarryBit();
-        setCarryFlag((result & 0x100) != 0);
-        setOverflowFlag(state.carryFlag ^ ((carry6 & 0x80) != 0));
-        result &= 0xff;
-        setArithmeticFlags(result);
-        return result;
+        return aluResult(binaryAdcTable[AluTables.index(getCarryBit(), acc, operand)]);
     }
 
     /**
      * Add with Carry (BCD).
      */
-
     private int adcDecimal(int acc, int operand) {
-        int l, h, result;
-        l = (acc & 0x0f) + (operand & 0x0f) + getCarryBit();
-        if ((l & 0xff) > 9) l += 6;
-        h = (acc >> 4) + (operand >> 4) + (l > 15 ? 1 : 0);
-        if ((h & 0xff) > 9) h += 6;
-        result = (l & 0x0f) | (h << 4);
-        result &= 0xff;
-        setCarryFlag(h > 15);
-        setZeroFlag(result == 0);
-        setOverflowFlag(false); // BCD never sets overflow flag
-
-        if (behavior == CpuBehavior.NMOS_6502||
-            behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                setNegativeFlag(false); // BCD is never negative on NMOS 6502
-        }
-        else {
-            state.negativeFlag = (result & 0x80) != 0; // N Flag is valid on CMOS 6502/65816
-        }
-        return result;
+        return aluResult(decimalAdcTable[AluTables.index(getCarryBit(), acc, operand)]);
     }
 
     /**
-     * Common code for Subtract with Carry.  Just calls ADC of the
+     * Common code for Subtract with Carry.  Just uses ADC of the
      * one's complement of the operand.  This lets the N, V, C, and Z
      * flags work out nicely without any additional logic.
      */
     private int sbc(int acc, int operand) {
-        int result;
-        result = adc(acc, ~operand);
-        setArithmeticFlags(result);
-        return result;
+        return aluResult(binaryAdcTable[AluTables.index(getCarryBit(), acc, ~operand)]);
     }
 
     /**
      * Subtract with Carry, BCD mode.
      */
     private int sbcDecimal(int acc, int operand) {
-        int l, h, result;
-        l = (acc & 0x0f) - (operand & 0x0f) - (state.carryFlag ? 0 : 1);
-        if ((l & 0x10) != 0) l -= 6;
-        h = (acc >> 4) - (operand >> 4) - ((l & 0x10) != 0 ? 1 : 0);
-        if ((h & 0x10) != 0) h -= 6;
-        result = (l & 0x0f) | (h << 4) & 0xff;
-        setCarryFlag((h & 0xff) < 15);
-        setZeroFlag(result == 0);
-        setOverflowFlag(false); // BCD never sets overflow flag
-
-        if (behavior == CpuBehavior.NMOS_6502||
-            behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                setNegativeFlag(false); // BCD is never negative on NMOS 6502
-        }
-        else {
-            state.negativeFlag = (result & 0x80) != 0; // N Flag is valid on CMOS 6502/65816
-        }
-        return (result & 0xff);
+        return aluResult(decimalSbcTable[AluTables.index(getCarryBit(), acc, operand)]);
+    }
+
+    /**
+     * Set the C, Z, V and N flags from an ADC/SBC table entry.
+     *
+     * @return The 8-bit result held in the entry.
+     */
+    private int aluResult(int entry) {
+        state.p = (state.p & ~(P_CARRY | P_OVERFLOW)) |
+                  ((entry >> 8) & (P_CARRY | P_OVERFLOW));
+        state.setNZ((entry & AluTables.N_FLAG) != 0, (entry & AluTables.Z_FLAG) != 0);
+        return entry & 0xff;
     }
 
     /**
@@ -1383,10 +1786,9 @@ public class Cpu implements InstructionTable {
      * appropriately.
      */
     private void cmp(int reg, int operand) {
-        int tmp = (reg - operand) & 0xff;
         setCarryFlag(reg >= operand);
-        setZeroFlag(tmp == 0);
-        setNegativeFlag((tmp & 0x80) != 0); // Negative bit set
+        // Zero and Negative follow the difference
+        state.nz = (reg - operand) & 0xff;
     }
 
     /**
@@ -1394,8 +1796,8 @@ public class Cpu implements InstructionTable {
      * register operand.
      */
     private void setArithmeticFlags(int reg) {
-        state.zeroFlag = (reg == 0);
-        state.negativeFlag = (reg & 0x80) != 0;
+        // Evaluated lazily, when N or Z is actually asked for
+        state.nz = reg;
     }
 
     /**
@@ -1442,11 +1844,55 @@ public class Cpu implements InstructionTable {
     }
 
     /**
-     * @param clockPeriodInNs The simulated clock period, in nanoseconds
+     * @param clockPeriodInNs The simulated clock period, in nanoseconds, or 0 to run unthrottled.
      */
     public void setClockPeriodInNs(long clockPeriodInNs) {
-        logger.debug("Setting simulated clock period to {} ns.", clockPeriodInNs);
-        this.clockPeriodInNs = clockPeriodInNs;
+        setClockFrequency(clockPeriodInNs == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / clockPeriodInNs);
+    }
+
+    /**
+     * @return The simulated clock period, in nanoseconds, or 0 if unthrottled.
+     */
+    public long getClockPeriodInNs() {
+        long frequency = clockPacer.getFrequency();
+        return frequency == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / frequency;
+    }
+
+    /**
+     * @param frequency The simulated clock frequency, in Hz, or 0 to run unthrottled.
+     */
+    public void setClockFrequency(long frequency) {
+        logger.debug("Setting simulated clock frequency to {} Hz.", frequency);
+        clockPacer.setFrequency(frequency);
+    }
+
+    /**
+     * @return The simulated clock frequency, in Hz, or 0 if unthrottled.
+     */
+    public long getClockFrequency() {
+        return clockPacer.getFrequency();
+    }
+
+    /**
+     * @return The clock frequency actually achieved, in Hz, measured over the
+     *         last half second, or 0 if the CPU is not running.
+     */
+    public double getMeasuredClockFrequency() {
+        return clockPacer.getMeasuredFrequency();
+    }
+
+    /**
+     * @return The number of IRQs taken.
+     */
+    public long getIrqCount() {
+        return irqCount;
+    }
+
+    /**
+     * @return The number of NMIs taken.
+     */
+    public long getNmiCount() {
+        return nmiCount;
     }
 
     /**
@@ -1462,100 +1908,100 @@ public class Cpu implements InstructionTable {
      * @return the negative flag
      */
     public boolean getNegativeFlag() {
-        return state.negativeFlag;
+        return state.getNegativeFlag();
     }
 
     /**
      * @param negativeFlag the negative flag to set
      */
     public void setNegativeFlag(boolean negativeFlag) {
-        state.negativeFlag = negativeFlag;
+        state.setNZ(negativeFlag, state.getZeroFlag());
     }
 
     public void setNegativeFlag() {
-        state.negativeFlag = true;
+        state.setNZ(true, state.getZeroFlag());
     }
 
     public void clearNegativeFlag() {
-        state.negativeFlag = false;
+        state.setNZ(false, state.getZeroFlag());
     }
 
     /**
      * @return the carry flag
      */
     public boolean getCarryFlag() {
-        return state.carryFlag;
+        return (state.p & P_CARRY) != 0;
     }
 
     /**
      * @return 1 if the carry flag is set, 0 if it is clear.
      */
     public int getCarryBit() {
-        return (state.carryFlag ? 1 : 0);
+        return state.p & P_CARRY;
     }
 
     /**
      * @param carryFlag the carry flag to set
      */
     public void setCarryFlag(boolean carryFlag) {
-        state.carryFlag = carryFlag;
+        state.setFlag(P_CARRY, carryFlag);
     }
 
     /**
      * Sets the Carry Flag
      */
     public void setCarryFlag() {
-        state.carryFlag = true;
+        state.p |= P_CARRY;
     }
 
     /**
      * Clears the Carry Flag
      */
     public void clearCarryFlag() {
-        state.carryFlag = false;
+        state.p &= ~P_CARRY;
     }
 
     /**
      * @return the zero flag
      */
     public boolean getZeroFlag() {
-        return state.zeroFlag;
+        return state.getZeroFlag();
     }
 
     /**
      * @param zeroFlag the zero flag to set
      */
     public void setZeroFlag(boolean zeroFlag) {
-        state.zeroFlag = zeroFlag;
+        state.setNZ(state.getNegativeFlag(), zeroFlag);
     }
 
     /**
      * Sets the Zero Flag
      */
     public void setZeroFlag() {
-        state.zeroFlag = true;
+        state.setNZ(state.getNegativeFlag(), true);
     }
 
     /**
      * Clears the Zero Flag
      */
     public void clearZeroFlag() {
-        state.zeroFlag = false;
+        state.setNZ(state.getNegativeFlag(), false);
     }
 
     /**
      * @return the irq disable flag
      */
     public boolean getIrqDisableFlag() {
-        return state.irqDisableFlag;
+        return (state.p & P_IRQ_DISABLE) != 0;
     }
 
     public void setIrqDisableFlag() {
-        state.irqDisableFlag = true;
+        state.p |= P_IRQ_DISABLE;
     }
 
     public void clearIrqDisableFlag() {
-        state.irqDisableFlag = false;
+        state.p &= ~P_IRQ_DISABLE;
     }
 
 
@@ -1563,70 +2009,84 @@ public class Cpu implements InstructionTable {
      * @return the decimal mode flag
      */
     public boolean getDecimalModeFlag() {
-        return state.decimalModeFlag;
+        return (state.p & P_DECIMAL) != 0;
     }
 
     /**
      * Sets the Decimal Mode Flag to true.
      */
     public void setDecimalModeFlag() {
-        state.decimalModeFlag = true;
+        state.p |= P_DECIMAL;
     }
 
     /**
      * Clears the Decimal Mode Flag.
      */
     public void clearDecimalModeFlag() {
-        state.decimalModeFlag = false;
+        state.p &= ~P_DECIMAL;
     }
 
     /**
      * @return the break flag
      */
     public boolean getBreakFlag() {
-        return state.breakFlag;
+        return (state.p & P_BREAK) != 0;
     }
 
     /**
      * Sets the Break Flag
      */
     public void setBreakFlag() {
-        state.breakFlag = true;
+        state.p |= P_BREAK;
     }
 
     /**
      * Clears the Break Flag
      */
     public void clearBreakFlag() {
-        state.breakFlag = false;
+        state.p &= ~P_BREAK;
     }
 
     /**
      * @return the overflow flag
      */
     public boolean getOverflowFlag() {
-        return state.overflowFlag;
+        return (state.p & P_OVERFLOW) != 0;
     }
 
     /**
      * @param overflowFlag the overflow flag to set
      */
     public void setOverflowFlag(boolean overflowFlag) {
-        state.overflowFlag = overflowFlag;
+        state.setFlag(P_OVERFLOW, overflowFlag);
     }
 
     /**
      * Sets the Overflow Flag
      */
     public void setOverflowFlag() {
-        state.overflowFlag = true;
+        state.p |= P_OVERFLOW;
     }
 
     /**
      * Clears the Overflow Flag
      */
     public void clearOverflowFlag() {
-        state.overflowFlag = false;
+        state.p &= ~P_OVERFLOW;
+    }
+
+    /**
+     * @return True if a 65C02 is waiting for an interrupt after WAI.
+     */
+    public boolean isWaiting() {
+        return state.waiting;
+    }
+
+    /**
+     * @return True if a 65C02 has been stopped by STP, and will do nothing until reset.
+     */
+    public boolean isStopped() {
+        return state.stopped;
     }
 
     /**
@@ -1673,14 +2133,6 @@ public class Cpu implements InstructionTable {
 
     public void setProgramCounter(int addr) {
         state.pc = addr;
-
-        // As a side-effect of setting the program counter,
-        // we want to peek ahead at the next state.
-        try {
-            peekAhead();
-        } catch (MemoryAccessException ex) {
-            logger.error("Could not peek ahead at next instruction state.");
-        }
     }
 
     public int getStackPointer() {
@@ -1695,44 +2147,19 @@ public class Cpu implements InstructionTable {
         return state.ir;
     }
 
+    /**
+     * @param opcode An opcode.
+     * @return The number of clock cycles the opcode takes with the simulated behavior.
+     */
+    public int getInstructionClocks(int opcode) {
+        return instructionClocks[opcode & 0xff];
+    }
+
     /**
      * @value The value of the Process Status Register bits to be set.
      */
     public void setProcessorStatus(int value) {
-        if ((value & P_CARRY) != 0)
-            setCarryFlag();
-        else
-            clearCarryFlag();
-
-        if ((value & P_ZERO) != 0)
-            setZeroFlag();
-        else
-            clearZeroFlag();
-
-        if ((value & P_IRQ_DISABLE) != 0)
-            setIrqDisableFlag();
-        else
-            clearIrqDisableFlag();
-
-        if ((value & P_DECIMAL) != 0)
-            setDecimalModeFlag();
-        else
-            clearDecimalModeFlag();
-
-        if ((value & P_BREAK) != 0)
-            setBreakFlag();
-        else
-            clearBreakFlag();
-
-        if ((value & P_OVERFLOW) != 0)
-            setOverflowFlag();
-        else
-            clearOverflowFlag();
-
-        if ((value & P_NEGATIVE) != 0)
-            setNegativeFlag();
-        else
-            clearNegativeFlag();
+        state.setStatusFlag(value);
     }
 
     public String getAccumulatorStatus() {
@@ -1764,6 +2191,7 @@ public class Cpu implements InstructionTable {
      */
     public void assertIrq() {
        state.irqAsserted = true;
+       wakeUp();
     }
 
     /**
@@ -1778,6 +2206,7 @@ public class Cpu implements InstructionTable {
      */
     public void assertNmi() {
         state.nmiAsserted = true;
+        wakeUp();
     }
 
     /**
@@ -1875,29 +2304,58 @@ public class Cpu implements InstructionTable {
     }
 
     /*
-     * Perform a busy-loop until the instruction should complete on the wall clock
+     * If the last instruction closed a loop that the idle loop detector considers
+     * idle, park the host thread until woken, and account for the cycles the
+     * loop would have spent spinning in the meantime.
      */
-    private void delayLoop(int opcode) {
-        final int clockSteps;
-
-        if (behavior == CpuBehavior.NMOS_WITH_ROR_BUG ||
-            behavior == CpuBehavior.NMOS_6502) {
-            clockSteps = Cpu.instructionClocksNmos[0xff & opcode];
-        } else {
-            clockSteps = Cpu.instructionClocksCmos[0xff & opcode];
+    private void checkIdle() {
+        if (idleLoopDetector == null || state.pc >= state.lastPc ||
+            !idleLoopDetector.backwardJump(state.lastPc, state.pc)) {
+            return;
         }
 
-        if (clockSteps == 0) {
-            logger.warn("Opcode {} has clock step of 0!", String.format("0x%02x", opcode));
-            return;
+        long parkedNs = park(MAX_IDLE_PARK_NS);
+
+        long cycles = cyclesIn(parkedNs);
+        int loopCycles = idleLoopDetector.getLoopCycles();
+        state.cycleCounter += cycles - cycles % loopCycles;
+    }
+
+    /*
+     * The number of cycles the simulated clock runs in the given time. An
+     * unthrottled CPU is assumed to run at the default speed.
+     */
+    private long cyclesIn(long ns) {
+        long frequency = clockPacer.getFrequency();
+        if (frequency == 0) {
+            frequency = DEFAULT_CLOCK_FREQUENCY;
         }
+        return ns * frequency / TimeUnit.SECONDS.toNanos(1);
+    }
 
-        long interval = clockSteps * clockPeriodInNs;
-        long end;
+    /*
+     * Park the host thread until wakeUp() is called or the timeout expires.
+     * Returns the number of nanoseconds spent parked.
+     */
+    private long park(long timeoutNs) {
+        long start = System.nanoTime();
 
-        do {
-            end = System.nanoTime();
-        } while (opBeginTime + interval >= end);
+        parkLock.lock();
+        try {
+            parked = true;
+            long remaining = timeoutNs;
+            while (!wakeRequested && remaining > 0) {
+                remaining = wakeCondition.awaitNanos(remaining);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            parked = false;
+            wakeRequested = false;
+            parkLock.unlock();
+        }
+
+        return System.nanoTime() - start;
     }
 
     /**
@@ -1907,52 +2365,7 @@ public class Cpu implements InstructionTable {
      * @return A string representing the mnemonic and operands of the instruction
      */
     public static String disassembleOp(int opCode, int[] args) {
-        String mnemonic = opcodeNames[opCode];
-
-        if (mnemonic == null) {
-            return "???";
-        }
-
-        StringBuilder sb = new StringBuilder(mnemonic);
-
-        switch (instructionModes[opCode]) {
-            case ABS:
-                sb.append(" $").append(Utils.wordToHex(Utils.address(args[0], args[1])));
-                break;
-            case AIX:
-                sb.append(" ($").append(Utils.wordToHex(Utils.address(args[0], args[1]))).append(",X)");
-            case ABX:
-                sb.append(" $").append(Utils.wordToHex(Utils.address(args[0], args[1]))).append(",X");
-                break;
-            case ABY:
-                sb.append(" $").append(Utils.wordToHex(Utils.address(args[0], args[1]))).append(",Y");
-                break;
-            case IMM:
-                sb.append(" #$").append(Utils.byteToHex(args[0]));
-                break;
-            case IND:
-                sb.append(" ($").append(Utils.wordToHex(Utils.address(args[0], args[1]))).append(")");
-                break;
-            case XIN:
-                sb.append(" ($").append(Utils.byteToHex(args[0])).append(",X)");
-                break;
-            case INY:
-                sb.append(" ($").append(Utils.byteToHex(args[0])).append("),Y");
-                break;
-            case REL:
-            case ZPR:
-            case ZPG:
-                sb.append(" $").append(Utils.byteToHex(args[0]));
-                break;
-            case ZPX:
-                sb.append(" $").append(Utils.byteToHex(args[0])).append(",X");
-                break;
-            case ZPY:
-                sb.append(" $").append(Utils.byteToHex(args[0])).append(",Y");
-                break;
-        }
-
-        return sb.toString();
+        return Disassembler.appendOp(new StringBuilder(14), opCode, args[0], args[1]).toString();
     }
 
     /**
@@ -1962,22 +2375,53 @@ public class Cpu implements InstructionTable {
      * @return A string representing the mnemonic and operands of the instruction
      */
     public String disassembleNextOp() {
-        return Cpu.disassembleOp(state.nextIr, state.nextArgs);
+        try {
+            return disassembleOpAtAddress(state.pc);
+        } catch (MemoryAccessException ex) {
+            logger.error("Could not peek ahead at next instruction state.");
+            return "???";
+        }
     }
 
     /**
+     * Disassemble the instruction at an address. Memory is read without CPU
+     * access side effects, so this is safe to use on I/O devices.
+     *
      * @param address Address to disassemble
      * @return String containing the disassembled instruction and operands.
      */
     public String disassembleOpAtAddress(int address) throws MemoryAccessException {
-        int opCode = bus.read(address, true);
-        int args[] = new int[2];
+        StringBuilder sb = new StringBuilder(14);
+        disassembleOpAtAddress(address, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Disassemble the instruction at an address into a buffer, without
+     * allocating. Memory is read without CPU access side effects.
+     *
+     * @param address Address to disassemble
+     * @param sb      Buffer the mnemonic and operands are appended to
+     * @return The size of the instruction, in bytes.
+     */
+    public int disassembleOpAtAddress(int address, StringBuilder sb) throws MemoryAccessException {
+        int opCode = peek(address);
         int size = Cpu.instructionSizes[opCode];
-        for (int i = 1; i < size; i++) {
-            int nextRead = (address + i) % bus.endAddress();
-            args[i-1] = bus.read(nextRead, true);
-        }
+        int arg0 = size > 1 ? peek((address + 1) & 0xffff) : 0;
+        int arg1 = size > 2 ? peek((address + 2) & 0xffff) : 0;
 
-        return disassembleOp(opCode, args);
+        Disassembler.appendOp(sb, opCode, arg0, arg1, address, symbolTable);
+        return size;
+    }
+
+    /*
+     * Read a byte for inspection, not as a CPU bus cycle. Addresses outside the
+     * bus read as zero.
+     */
+    private int peek(int address) throws MemoryAccessException {
+        if (address < bus.startAddress() || address > bus.endAddress()) {
+            return 0;
+        }
+        return bus.read(address, false);
     }
 }
@@ -36,27 +36,32 @@ public class CpuState {
      */
     public int ir;
 
-    /**
-     * Peek-Ahead to next IR
-     */
-    public int nextIr;
     public int[] args = new int[2];
-    public int[] nextArgs = new int[2];
     public int instSize;
     public boolean opTrap;
     public boolean irqAsserted;
     public boolean nmiAsserted;
     public int lastPc;
 
-    /* Status Flag Register bits */
-    public boolean carryFlag;
-    public boolean negativeFlag;
-    public boolean zeroFlag;
-    public boolean irqDisableFlag;
-    public boolean decimalModeFlag;
-    public boolean breakFlag;
-    public boolean overflowFlag;
+    /* 65C02 WAI and STP states */
+    public boolean waiting;
+    public boolean stopped;
+
+    /**
+     * Status Flag Register bits C, I, D, B and V, packed as in the P register.
+     * The N and Z bits are never set here; see {@link #nz}.
+     */
+    public int p;
+
+    /**
+     * The value the N and Z flags are lazily derived from, which is usually
+     * just the last result. Z is set if the low byte is zero, and N if bit 7
+     * or bit 8 is set. Bit 8 allows N and Z to both be set at once.
+     */
+    public int nz = 1;
+
     public long stepCounter = 0L;
+    public long cycleCounter = 0L;
 
     public CpuState() {}
 
@@ -75,23 +80,18 @@ public class CpuState {
         this.sp = s.sp;
         this.pc = s.pc;
         this.ir = s.ir;
-        this.nextIr = s.nextIr;
         this.lastPc = s.lastPc;
         this.args[0] = s.args[0];
         this.args[1] = s.args[1];
-        this.nextArgs[0] = s.nextArgs[0];
-        this.nextArgs[1] = s.nextArgs[1];
         this.instSize = s.instSize;
         this.opTrap = s.opTrap;
         this.irqAsserted = s.irqAsserted;
-        this.carryFlag = s.carryFlag;
-        this.negativeFlag = s.negativeFlag;
-        this.zeroFlag = s.zeroFlag;
-        this.irqDisableFlag = s.irqDisableFlag;
-        this.decimalModeFlag = s.decimalModeFlag;
-        this.breakFlag = s.breakFlag;
-        this.overflowFlag = s.overflowFlag;
+        this.waiting = s.waiting;
+        this.stopped = s.stopped;
+        this.p = s.p;
+        this.nz = s.nz;
         this.stepCounter = s.stepCounter;
+        this.cycleCounter = s.cycleCounter;
     }
 
     /**
@@ -100,9 +100,28 @@ public class CpuState {
      * @return a string formatted for the trace log.
      */
     public String toTraceEvent() {
-        String opcode = Cpu.disassembleOp(ir, args);
+        return toTraceEvent(null);
+    }
+
+    /**
+     * Returns a string formatted for the trace log, with operands shown
+     * relative to symbols where possible.
+     *
+     * @param symbols The symbols to use, or null.
+     * @return a string formatted for the trace log.
+     */
+    public String toTraceEvent(SymbolTable symbols) {
+        String opcode;
+        int width;
+        if (symbols == null || symbols.isEmpty()) {
+            opcode = Cpu.disassembleOp(ir, args);
+            width = 14;
+        } else {
+            opcode = Disassembler.appendOp(new StringBuilder(), ir, args[0], args[1], lastPc, symbols).toString();
+            width = 28;
+        }
         return getInstructionByteStatus() + "  " +
-                String.format("%-14s", opcode) +
+                String.format("%-" + width + "s", opcode) +
                 "A:" + Utils.byteToHex(a) + " " +
                 "X:" + Utils.byteToHex(x) + " " +
                 "Y:" + Utils.byteToHex(y) + " " +
@@ -115,31 +134,75 @@ public class CpuState {
      * @return The value of the Process Status Register, as a byte.
      */
     public int getStatusFlag() {
-        int status = 0x20;
-        if (carryFlag) {
-            status |= Cpu.P_CARRY;
-        }
-        if (zeroFlag) {
+        int status = p | 0x20;
+        if (getZeroFlag()) {
             status |= Cpu.P_ZERO;
         }
-        if (irqDisableFlag) {
-            status |= Cpu.P_IRQ_DISABLE;
-        }
-        if (decimalModeFlag) {
-            status |= Cpu.P_DECIMAL;
-        }
-        if (breakFlag) {
-            status |= Cpu.P_BREAK;
-        }
-        if (overflowFlag) {
-            status |= Cpu.P_OVERFLOW;
-        }
-        if (negativeFlag) {
+        if (getNegativeFlag()) {
             status |= Cpu.P_NEGATIVE;
         }
         return status;
     }
 
+    /**
+     * Set all flags from a Process Status Register byte.
+     *
+     * @param value The new value of the Process Status Register.
+     */
+    public void setStatusFlag(int value) {
+        p = value & (Cpu.P_CARRY | Cpu.P_IRQ_DISABLE | Cpu.P_DECIMAL | Cpu.P_BREAK | Cpu.P_OVERFLOW);
+        setNZ((value & Cpu.P_NEGATIVE) != 0, (value & Cpu.P_ZERO) != 0);
+    }
+
+    public boolean getCarryFlag() {
+        return (p & Cpu.P_CARRY) != 0;
+    }
+
+    public boolean getZeroFlag() {
+        return (nz & 0xff) == 0;
+    }
+
+    public boolean getIrqDisableFlag() {
+        return (p & Cpu.P_IRQ_DISABLE) != 0;
+    }
+
+    public boolean getDecimalModeFlag() {
+        return (p & Cpu.P_DECIMAL) != 0;
+    }
+
+    public boolean getBreakFlag() {
+        return (p & Cpu.P_BREAK) != 0;
+    }
+
+    public boolean getOverflowFlag() {
+        return (p & Cpu.P_OVERFLOW) != 0;
+    }
+
+    public boolean getNegativeFlag() {
+        return (nz & 0x180) != 0;
+    }
+
+    /**
+     * Set or clear one of the packed C, I, D, B or V bits.
+     *
+     * @param mask  The bit to change, e.g. {@link Cpu#P_CARRY}.
+     * @param value True to set the bit, false to clear it.
+     */
+    public void setFlag(int mask, boolean value) {
+        if (value) {
+            p |= mask;
+        } else {
+            p &= ~mask;
+        }
+    }
+
+    /**
+     * Set the N and Z flags explicitly, rather than from a result.
+     */
+    public void setNZ(boolean negative, boolean zero) {
+        nz = (zero ? 0 : 1) | (negative ? 0x100 : 0);
+    }
+
     public String getInstructionByteStatus() {
         switch (Cpu.instructionSizes[ir]) {
             case 0:
@@ -164,14 +227,14 @@ public class CpuState {
      * @return A string representing the current status register state.
      */
     public String getProcessorStatusString() {
-        return "[" + (negativeFlag ? 'N' : '.') +
-                (overflowFlag ? 'V' : '.') +
+        return "[" + (getNegativeFlag() ? 'N' : '.') +
+                (getOverflowFlag() ? 'V' : '.') +
                 "-" +
-                (breakFlag ? 'B' : '.') +
-                (decimalModeFlag ? 'D' : '.') +
-                (irqDisableFlag ? 'I' : '.') +
-                (zeroFlag ? 'Z' : '.') +
-                (carryFlag ? 'C' : '.') +
+                (getBreakFlag() ? 'B' : '.') +
+                (getDecimalModeFlag() ? 'D' : '.') +
+                (getIrqDisableFlag() ? 'I' : '.') +
+                (getZeroFlag() ? 'Z' : '.') +
+                (getCarryFlag() ? 'C' : '.') +
                 "]";
     }
 }
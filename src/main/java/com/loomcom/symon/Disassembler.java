@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+/**
+ * Formats instructions into a caller-supplied <code>StringBuilder</code>, so
+ * that code disassembling many instructions, such as the disassembly window,
+ * can reuse one buffer rather than allocating a string per instruction.
+ * <p>
+ * The output format is the same as {@link Cpu#disassembleOp(int, int[])},
+ * e.g. <code>LDA ($20),Y</code>. Given a {@link SymbolTable}, operand addresses
+ * and branch targets near a symbol are shown as <code>label+offset</code>
+ * instead, e.g. <code>LDA (ptr),Y</code> or <code>BNE loop</code>.
+ */
+public final class Disassembler implements InstructionTable {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private Disassembler() {}
+
+    /**
+     * Append the mnemonic and operands of an instruction.
+     *
+     * @param sb     The buffer to append to.
+     * @param opCode The instruction opcode.
+     * @param arg0   The first operand byte, if any.
+     * @param arg1   The second operand byte, if any.
+     * @return The buffer, for chaining.
+     */
+    public static StringBuilder appendOp(StringBuilder sb, int opCode, int arg0, int arg1) {
+        return appendOp(sb, opCode, arg0, arg1, 0, null);
+    }
+
+    /**
+     * Append the mnemonic and operands of an instruction, using symbols for
+     * operand addresses and branch targets where possible.
+     *
+     * @param sb      The buffer to append to.
+     * @param opCode  The instruction opcode.
+     * @param arg0    The first operand byte, if any.
+     * @param arg1    The second operand byte, if any.
+     * @param address The address of the instruction, to resolve branch targets.
+     * @param symbols The symbols to use, or null.
+     * @return The buffer, for chaining.
+     */
+    public static StringBuilder appendOp(StringBuilder sb, int opCode, int arg0, int arg1,
+                                         int address, SymbolTable symbols) {
+        if (symbols == null || symbols.isEmpty()) {
+            return appendNumericOp(sb, opCode, arg0, arg1);
+        }
+
+        String mnemonic = opcodeNames[opCode & 0xff];
+
+        if (mnemonic == null) {
+            return sb.append("???");
+        }
+
+        sb.append(mnemonic);
+
+        int word = (arg1 << 8) | arg0;
+
+        switch (instructionModes[opCode & 0xff]) {
+            case ABS:
+                appendAddress(sb.append(' '), word, symbols);
+                break;
+            case AIX:
+                appendAddress(sb.append(" ("), word, symbols).append(",X)");
+                break;
+            case ABX:
+                appendAddress(sb.append(' '), word, symbols).append(",X");
+                break;
+            case ABY:
+                appendAddress(sb.append(' '), word, symbols).append(",Y");
+                break;
+            case IMM:
+                appendByte(sb.append(" #$"), arg0);
+                break;
+            case IND:
+                appendAddress(sb.append(" ("), word, symbols).append(')');
+                break;
+            case XIN:
+                appendZeroPage(sb.append(" ("), arg0, symbols).append(",X)");
+                break;
+            case INY:
+                appendZeroPage(sb.append(" ("), arg0, symbols).append("),Y");
+                break;
+            case REL:
+                appendAddress(sb.append(' '), address + 2 + (byte) arg0, symbols);
+                break;
+            case ZPR:
+            case ZPG:
+                appendZeroPage(sb.append(' '), arg0, symbols);
+                break;
+            case ZPX:
+                appendZeroPage(sb.append(' '), arg0, symbols).append(",X");
+                break;
+            case ZPY:
+                appendZeroPage(sb.append(' '), arg0, symbols).append(",Y");
+                break;
+        }
+
+        return sb;
+    }
+
+    private static StringBuilder appendNumericOp(StringBuilder sb, int opCode, int arg0, int arg1) {
+        String mnemonic = opcodeNames[opCode & 0xff];
+
+        if (mnemonic == null) {
+            return sb.append("???");
+        }
+
+        sb.append(mnemonic);
+
+        switch (instructionModes[opCode & 0xff]) {
+            case ABS:
+                appendWord(sb.append(" $"), arg0, arg1);
+                break;
+            case AIX:
+                appendWord(sb.append(" ($"), arg0, arg1).append(",X)");
+                break;
+            case ABX:
+                appendWord(sb.append(" $"), arg0, arg1).append(",X");
+                break;
+            case ABY:
+                appendWord(sb.append(" $"), arg0, arg1).append(",Y");
+                break;
+            case IMM:
+                appendByte(sb.append(" #$"), arg0);
+                break;
+            case IND:
+                appendWord(sb.append(" ($"), arg0, arg1).append(')');
+                break;
+            case XIN:
+                appendByte(sb.append(" ($"), arg0).append(",X)");
+                break;
+            case INY:
+                appendByte(sb.append(" ($"), arg0).append("),Y");
+                break;
+            case REL:
+            case ZPR:
+            case ZPG:
+                appendByte(sb.append(" $"), arg0);
+                break;
+            case ZPX:
+                appendByte(sb.append(" $"), arg0).append(",X");
+                break;
+            case ZPY:
+                appendByte(sb.append(" $"), arg0).append(",Y");
+                break;
+        }
+
+        return sb;
+    }
+
+    /*
+     * Append "label+offset", or "$" and four hex digits if there is no symbol
+     * close enough.
+     */
+    private static StringBuilder appendAddress(StringBuilder sb, int address, SymbolTable symbols) {
+        if (!symbols.appendSymbol(sb, address)) {
+            appendWord(sb.append('$'), address & 0xffff);
+        }
+        return sb;
+    }
+
+    private static StringBuilder appendZeroPage(StringBuilder sb, int address, SymbolTable symbols) {
+        if (!symbols.appendSymbol(sb, address)) {
+            appendByte(sb.append('$'), address);
+        }
+        return sb;
+    }
+
+    /**
+     * Append a byte as two upper-case hex digits.
+     */
+    public static StringBuilder appendByte(StringBuilder sb, int value) {
+        return sb.append(HEX_DIGITS[(value >> 4) & 0xf]).append(HEX_DIGITS[value & 0xf]);
+    }
+
+    /**
+     * Append a 16-bit word as four upper-case hex digits.
+     */
+    public static StringBuilder appendWord(StringBuilder sb, int value) {
+        return appendByte(appendByte(sb, value >> 8), value);
+    }
+
+    private static StringBuilder appendWord(StringBuilder sb, int lowByte, int hiByte) {
+        return appendByte(appendByte(sb, hiByte), lowByte);
+    }
+}
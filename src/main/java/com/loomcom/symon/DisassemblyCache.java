@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+/**
+ * Caches one disassembled line per address, so that table views which
+ * repaint often do not disassemble and allocate on every repaint.
+ * <p>
+ * A cached line is only trusted while the bus page versions of the bytes it
+ * was built from are unchanged. Lines in I/O space are never cached, since
+ * device registers can change without a bus write.
+ * <p>
+ * This class is not thread safe, and is meant to be used from the Swing
+ * event dispatch thread.
+ */
+public class DisassemblyCache {
+
+    private static final int ADDRESS_SPACE = 0x10000;
+
+    private final Cpu cpu;
+    private final StringBuilder buffer = new StringBuilder(16);
+
+    // Allocated on first use.
+    private String[] lines;
+    private long[] stamps;
+
+    public DisassemblyCache(Cpu cpu) {
+        this.cpu = cpu;
+    }
+
+    /**
+     * Return the disassembled instruction at an address, e.g. "LDA #$00".
+     *
+     * @param address The address of the instruction.
+     * @return The mnemonic and operands, or "???" if the address can't be read.
+     */
+    public String getLine(int address) {
+        address &= 0xffff;
+
+        Bus bus = cpu.getBus();
+        int lastByte = (address + 2) & 0xffff;
+        boolean cacheable = bus.isMemory(address) && bus.isMemory(lastByte);
+        long stamp = 0;
+
+        if (cacheable) {
+            if (lines == null) {
+                lines = new String[ADDRESS_SPACE];
+                stamps = new long[ADDRESS_SPACE];
+            }
+            stamp = ((long) bus.getPageVersion(address) << 32) |
+                    (bus.getPageVersion(lastByte) & 0xffffffffL);
+            String line = lines[address];
+            if (line != null && stamps[address] == stamp) {
+                return line;
+            }
+        }
+
+        String line;
+        buffer.setLength(0);
+        try {
+            cpu.disassembleOpAtAddress(address, buffer);
+            line = buffer.toString();
+        } catch (MemoryAccessException ex) {
+            line = "???";
+        }
+
+        if (cacheable) {
+            lines[address] = line;
+            stamps[address] = stamp;
+        }
+
+        return line;
+    }
+
+    /**
+     * Return the size of the instruction at an address, without side effects.
+     * Unreadable addresses count as one byte, so a linear
+     * sweep always makes progress.
+     *
+     * @param address The address of the instruction.
+     * @return The instruction size, from 1 to 3 bytes.
+     */
+    public int getInstructionSize(int address) {
+        Bus bus = cpu.getBus();
+        address &= 0xffff;
+        if (address < bus.startAddress() || address > bus.endAddress()) {
+            return 1;
+        }
+        try {
+            return Math.max(1, Cpu.instructionSizes[bus.read(address, false)]);
+        } catch (MemoryAccessException ex) {
+            return 1;
+        }
+    }
+
+    /**
+     * Drop all cached lines.
+     */
+    public void clear() {
+        lines = null;
+        stamps = null;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+/**
+ * Detects guest idle loops, such as polling an ACIA status register until a
+ * character arrives, so the CPU can park the host thread instead of spinning.
+ * <p>
+ * The CPU reports every taken backward branch or jump. The body of a short
+ * loop is inspected once: if it only loads from fixed addresses, tests and
+ * compares, and never writes memory or the stack, then each pass is fully
+ * determined by the registers and the values read. Once the registers have
+ * been identical at the bottom of the loop for several passes in a row, the
+ * loop cannot make progress until some device changes what it reads, and the
+ * detector reports it as idle.
+ */
+public class IdleLoopDetector {
+
+    /* The longest loop body, in bytes, that will be inspected */
+    public static final int MAX_LOOP_BYTES = 16;
+
+    /* The number of identical passes needed before a loop is called idle */
+    public static final int CONFIRMATIONS = 4;
+
+    /* Opcodes allowed in the body of an idle loop */
+    private static final boolean[] sideEffectFree = new boolean[0x100];
+
+    static {
+        int[] opcodes = {
+            0xa9, 0xa5, 0xad, // LDA #, zp, abs
+            0xa2, 0xa6, 0xae, // LDX #, zp, abs
+            0xa0, 0xa4, 0xac, // LDY #, zp, abs
+            0x29, 0x25, 0x2d, // AND #, zp, abs
+            0x09, 0x05, 0x0d, // ORA #, zp, abs
+            0x49, 0x45, 0x4d, // EOR #, zp, abs
+            0xc9, 0xc5, 0xcd, // CMP #, zp, abs
+            0xe0, 0xe4, 0xec, // CPX #, zp, abs
+            0xc0, 0xc4, 0xcc, // CPY #, zp, abs
+            0x24, 0x2c,       // BIT zp, abs
+            0xaa, 0xa8, 0x8a, 0x98, // TAX, TAY, TXA, TYA
+            0x18, 0x38, 0xb8, 0xea, // CLC, SEC, CLV, NOP
+            0x10, 0x30, 0x50, 0x70, 0x90, 0xb0, 0xd0, 0xf0, // Bxx
+            0x4c              // JMP abs
+        };
+        for (int op : opcodes) {
+            sideEffectFree[op] = true;
+        }
+    }
+
+    private final Cpu cpu;
+
+    /* The loop currently being watched */
+    private int loopStart = -1;
+    private int loopEnd = -1;
+    private int loopPageVersion;
+    private boolean loopIsPure;
+    private int loopCycles;
+
+    /* Register state at the bottom of the previous pass */
+    private int lastA, lastX, lastY, lastStatus;
+    private int confirmations;
+
+    private long idleCount;
+
+    public IdleLoopDetector(Cpu cpu) {
+        this.cpu = cpu;
+    }
+
+    /**
+     * Called by the CPU after it took a backward branch or jump.
+     *
+     * @param from The address of the branch or jump instruction.
+     * @param to   The target address.
+     * @return True if the loop from the target to the branch is idle.
+     */
+    public boolean backwardJump(int from, int to) {
+        Bus bus = cpu.getBus();
+
+        if (from != loopEnd || to != loopStart ||
+            bus.getPageVersion(to) != loopPageVersion) {
+            inspect(from, to);
+            return false;
+        }
+
+        if (!loopIsPure) {
+            return false;
+        }
+
+        CpuState state = cpu.getCpuState();
+        int status = state.getStatusFlag();
+
+        if (state.a != lastA || state.x != lastX || state.y != lastY || status != lastStatus) {
+            lastA = state.a;
+            lastX = state.x;
+            lastY = state.y;
+            lastStatus = status;
+            confirmations = 0;
+            return false;
+        }
+
+        if (++confirmations < CONFIRMATIONS) {
+            return false;
+        }
+
+        confirmations = 0;
+        idleCount++;
+        return true;
+    }
+
+    /**
+     * @return The number of clock cycles one pass through the current loop takes.
+     */
+    public int getLoopCycles() {
+        return loopCycles;
+    }
+
+    /**
+     * @return The number of times an idle loop has been detected.
+     */
+    public long getIdleCount() {
+        return idleCount;
+    }
+
+    /**
+     * Forget the loop currently being watched.
+     */
+    public void reset() {
+        loopStart = -1;
+        loopEnd = -1;
+        confirmations = 0;
+    }
+
+    private static boolean closesLoop(int opcode) {
+        return opcode == 0x4c || Cpu.instructionModes[opcode] == InstructionTable.Mode.REL;
+    }
+
+    private void inspect(int from, int to) {
+        Bus bus = cpu.getBus();
+
+        loopStart = to;
+        loopEnd = from;
+        loopPageVersion = bus.getPageVersion(to);
+        loopIsPure = false;
+        loopCycles = 0;
+        confirmations = 0;
+        lastStatus = -1;
+
+        if (from - to > MAX_LOOP_BYTES || (from & 0xff00) != (to & 0xff00)) {
+            return;
+        }
+
+        try {
+            int addr = to;
+            int lastAddr = to;
+            int cycles = 0;
+            while (addr <= from) {
+                if (!bus.isMemory(addr)) {
+                    return;
+                }
+                int opcode = bus.read(addr, false);
+                if (!sideEffectFree[opcode]) {
+                    return;
+                }
+                cycles += cpu.getInstructionClocks(opcode);
+                lastAddr = addr;
+                addr += Cpu.instructionSizes[opcode];
+            }
+            if (lastAddr != from || !closesLoop(bus.read(from, false))) {
+                // Not a loop we understand (e.g. an interrupt was taken).
+                return;
+            }
+            loopIsPure = true;
+            loopCycles = cycles;
+        } catch (MemoryAccessException ex) {
+            // Not inspectable, so not idle.
+        }
+    }
+}
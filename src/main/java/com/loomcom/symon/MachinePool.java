@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.machines.Machine;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs many independent machines at once, without a user interface, e.g. for
+ * regression runs.
+ * <p>
+ * Machines run unthrottled on a work-stealing {@link ForkJoinPool} with one
+ * worker per core by default. Each machine runs in slices of a fixed number
+ * of simulated cycles. At the end of a slice the machine goes to the back of
+ * its worker's queue, so every machine makes progress, and idle workers
+ * steal machines from busy ones.
+ * <p>
+ * A machine runs until it executes BRK or STP, waits (WAI) with no interrupt
+ * pending, or reaches its cycle limit. Anything it writes to its
+ * ACIA is collected, and the result is delivered through a {@link Future}.
+ * <p>
+ * A machine must not be used elsewhere while the pool is running it.
+ */
+public class MachinePool {
+
+    /* Simulated cycles a machine runs before giving way to the next */
+    public static final long DEFAULT_SLICE_CYCLES = 100000;
+
+    public enum StopReason {
+        /** The machine executed BRK. */
+        BREAK,
+        /** The CPU executed STP. */
+        STOPPED,
+        /** The CPU executed WAI with no interrupt pending. */
+        WAITING,
+        /** The machine ran for its cycle limit. */
+        CYCLE_LIMIT
+    }
+
+    /**
+     * The outcome of running one machine.
+     */
+    public static class Result {
+        private final Machine machine;
+        private final StopReason stopReason;
+        private final String output;
+        private final CpuState cpuState;
+        private final long slices;
+
+        Result(Machine machine, StopReason stopReason, String output, CpuState cpuState, long slices) {
+            this.machine = machine;
+            this.stopReason = stopReason;
+            this.output = output;
+            this.cpuState = cpuState;
+            this.slices = slices;
+        }
+
+        public Machine getMachine() {
+            return machine;
+        }
+
+        public StopReason getStopReason() {
+            return stopReason;
+        }
+
+        /**
+         * @return Everything the machine wrote to its ACIA.
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * @return A copy of the CPU state when the machine stopped.
+         */
+        public CpuState getCpuState() {
+            return cpuState;
+        }
+
+        public long getCycles() {
+            return cpuState.cycleCounter;
+        }
+
+        public long getSteps() {
+            return cpuState.stepCounter;
+        }
+
+        /**
+         * @return The number of slices the machine was scheduled for.
+         */
+        public long getSlices() {
+            return slices;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final long sliceCycles;
+
+    public MachinePool() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_SLICE_CYCLES);
+    }
+
+    /**
+     * @param parallelism The number of worker threads.
+     * @param sliceCycles The number of simulated cycles a machine runs before
+     *                    giving way to the next.
+     */
+    public MachinePool(int parallelism, long sliceCycles) {
+        if (sliceCycles < 1) {
+            throw new IllegalArgumentException("Slice must be at least one cycle");
+        }
+        this.sliceCycles = sliceCycles;
+        // In async mode each worker's own queue is first in, first out, so a
+        // machine that gives way runs again only after the others.
+        this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+                                     null, true);
+    }
+
+    /**
+     * Run a machine until it stops, or for at most the given number of cycles.
+     *
+     * @param machine   A machine that is ready to run, e.g. reset with a
+     *                  program loaded.
+     * @param maxCycles The cycle limit, counted from the machine's current
+     *                  cycle count.
+     * @return The result, when the machine stops.
+     */
+    public Future<Result> submit(Machine machine, long maxCycles) {
+        return submit(machine, maxCycles, "");
+    }
+
+    /**
+     * Run a machine until it stops, or for at most the given number of cycles.
+     *
+     * @param machine   A machine that is ready to run, e.g. reset with a
+     *                  program loaded.
+     * @param maxCycles The cycle limit, counted from the machine's current
+     *                  cycle count.
+     * @param input     Characters to type into the machine's ACIA, one at a
+     *                  time as the guest reads them.
+     * @return The result, when the machine stops.
+     */
+    public Future<Result> submit(Machine machine, long maxCycles, String input) {
+        Cpu cpu = machine.getCpu();
+        cpu.setClockPeriodInNs(0);
+        // An idle loop would park a worker that other machines could use
+        cpu.setIdleDetectionEnabled(false);
+        cpu.setBlockCacheEnabled(true);
+
+        Run run = new Run(machine, maxCycles, input);
+        pool.execute(run);
+        return run;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Finish the machines already submitted, and accept no more.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * One machine's run. Each time it is executed it runs one slice, and then
+     * either completes or puts itself back in the pool.
+     */
+    private class Run implements Runnable, Future<Result> {
+        private final Machine machine;
+        private final Cpu cpu;
+        private final Acia acia;
+        private final long cycleLimit;
+        private final String input;
+        private int inputPosition;
+
+        private final StringBuilder output = new StringBuilder();
+        private long slices;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean cancelled;
+        private Result result;
+        private Throwable failure;
+
+        Run(Machine machine, long maxCycles, String input) {
+            this.machine = machine;
+            this.cpu = machine.getCpu();
+            this.acia = machine.getAcia();
+            this.cycleLimit = cpu.getCpuState().cycleCounter + maxCycles;
+            this.input = input;
+        }
+
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            slices++;
+            StopReason stopReason;
+            try {
+                stopReason = runSlice(Math.min(cycleLimit, cpu.getCpuState().cycleCounter + sliceCycles));
+            } catch (MemoryAccessException ex) {
+                finish(null, ex);
+                return;
+            } catch (RuntimeException ex) {
+                finish(null, ex);
+                return;
+            }
+
+            if (stopReason != null) {
+                finish(new Result(machine, stopReason, output.toString(),
+                                  new CpuState(cpu.getCpuState()), slices), null);
+            } else if (!cancelled) {
+                pool.execute(this);
+            }
+        }
+
+        /**
+         * Run until the given cycle count is reached.
+         *
+         * @return Why the machine stopped, or null if it reached the end of
+         *         the slice and is not yet finished.
+         */
+        private StopReason runSlice(long sliceEnd) throws MemoryAccessException {
+            CpuState state = cpu.getCpuState();
+            while (state.cycleCounter < sliceEnd) {
+                if (acia != null && !acia.hasRxChar() && inputPosition < input.length()) {
+                    acia.rxWrite(input.charAt(inputPosition++));
+                }
+
+                if (state.stopped) {
+                    return StopReason.STOPPED;
+                }
+                if (state.waiting && !state.nmiAsserted && !state.irqAsserted) {
+                    // No device raises an interrupt by itself, so nothing can wake it
+                    return StopReason.WAITING;
+                }
+
+                // A block ends after any write to an I/O device, and at BRK, so
+                // checking after each block sees every character and every BRK.
+                cpu.stepBlock();
+
+                if (acia != null && acia.hasTxChar()) {
+                    output.append((char) acia.txRead(true));
+                }
+
+                if (state.ir == 0x00) {
+                    return StopReason.BREAK;
+                }
+            }
+            return state.cycleCounter >= cycleLimit ? StopReason.CYCLE_LIMIT : null;
+        }
+
+        private synchronized void finish(Result result, Throwable failure) {
+            if (isDone()) {
+                return;
+            }
+            this.result = result;
+            this.failure = failure;
+            done.countDown();
+        }
+
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if (isDone()) {
+                return false;
+            }
+            // A slice already running finishes, but the machine isn't run again
+            cancelled = true;
+            done.countDown();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public Result get() throws InterruptedException, ExecutionException {
+            done.await();
+            return report();
+        }
+
+        public Result get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return report();
+        }
+
+        private Result report() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+    }
+}
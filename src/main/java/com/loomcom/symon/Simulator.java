@@ -25,12 +25,15 @@ package com.loomcom.symon;
 
 import com.loomcom.symon.devices.Memory;
 import com.loomcom.symon.exceptions.*;
+import com.loomcom.symon.jfr.SimulatorEvents;
 import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.metrics.MetricsRegistry;
 import com.loomcom.symon.ui.*;
 import com.loomcom.symon.ui.Console;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
@@ -56,31 +59,56 @@ public class Simulator {
     private static final Font DEFAULT_FONT = new Font(Font.MONOSPACED, Font.PLAIN, DEFAULT_FONT_SIZE);
     private static final int CONSOLE_BORDER_WIDTH = 10;
 
-    // Clock periods, in NS, for each speed. 0MHz, 1MHz, 2MHz, 3MHz, 4MHz, 5MHz, 6MHz, 7MHz, 8MHz.
-    private static final long[] CLOCK_PERIODS = {0, 1000, 500, 333, 250, 200, 167, 143, 125};
+    // The fastest clock speed, in MHz, that can be entered as a custom speed.
+    private static final double MAX_CLOCK_SPEED_MHZ = 1000;
 
     // Since it is very expensive to update the UI with Swing's Event Dispatch Thread, we can't afford
-    // to refresh the status view on every simulated clock cycle. Instead, we will only refresh the status view
-    // after this number of steps when running normally.
-    //
-    // Since we're simulating a 1MHz 6502 here, we have a 1 us delay between steps. Setting this to 20000
-    // should give us a status update about every 100 ms.
-    //
-    // TODO: Work around the event dispatch thread with custom painting code instead of relying on Swing.
-    //
-    private static final int MAX_STEPS_BETWEEN_UPDATES = 20000;
+    // to refresh the status view on every simulated clock cycle. Instead, while running, the run thread
+    // publishes a snapshot of the CPU state when asked to, and a Swing timer renders it at this rate,
+    // however fast the simulation is going.
+    private static final int UI_FRAMES_PER_SECOND = 30;
 
     // The simulated machine
     private Machine machine;
 
-    // Number of CPU steps between CRT repaints.
-    // TODO: Dynamically refresh the value at runtime based on performance figures to reach ~ 30fps.
-    private static final long STEPS_BETWEEN_CRTC_REFRESHES = 2500;
+    // The video window is refreshed when the CRTC completes a frame in simulated time, but no more
+    // often than this in real time, so a fast clock doesn't flood the event dispatch thread.
+    private static final int MAX_VIDEO_FRAMES_PER_SECOND = 60;
+    private static final long MIN_NS_BETWEEN_VIDEO_FRAMES = 1000000000L / MAX_VIDEO_FRAMES_PER_SECOND;
 
-    // A counter to keep track of the number of UI updates that have been
-    // requested
-    private int stepsSinceLastUpdate = 0;
-    private int stepsSinceLastCrtcRefresh = 0;
+    private long lastVideoFrame = -1;
+    private long lastVideoRefreshNs;
+
+    // Characters transmitted by the ACIA are collected here, and handed to the
+    // console a chunk at a time.
+    private static final int CONSOLE_OUTPUT_SIZE = 4096;
+    private final char[] consoleOutput = new char[CONSOLE_OUTPUT_SIZE];
+    private int consoleOutputLength = 0;
+
+    /**
+     * The latest snapshot of the CPU state. Snapshots are never modified once
+     * published, so the UI can read them from the event dispatch thread while
+     * the run thread carries on.
+     */
+    private volatile CpuState publishedState;
+
+    /**
+     * Set by the UI timer when it wants the run thread to publish a new snapshot.
+     */
+    private volatile boolean stateRequested;
+
+    /**
+     * The snapshot last rendered by the UI timer. Only used on the event dispatch thread.
+     */
+    private CpuState renderedState;
+
+    private Timer uiTimer;
+
+    /**
+     * The flight recorder event for the current run of steps between UI updates,
+     * or null if it is not being recorded.
+     */
+    private Object executionBatch;
 
     // The number of steps to run per click of the "Step" button
     private int stepsPerClick = 1;
@@ -102,10 +130,23 @@ public class Simulator {
      */
     private final MemoryWindow memoryWindow;
 
+    /**
+     * The Disassembly Window shows a disassembly listing of memory.
+     */
+    private final DisassemblyWindow disassemblyWindow;
+
+    private final DisassemblyCache disassemblyCache;
+
     private final VideoWindow videoWindow;
 
+    private final FramebufferWindow framebufferWindow;
+
     private final BreakpointsWindow breakpointsWindow;
 
+    private final ProfilerWindow profilerWindow;
+
+    private final MetricsRegistry metrics;
+
     private SimulatorMenu menuBar;
 
     private RunLoop runLoop;
@@ -139,17 +180,36 @@ public class Simulator {
         this.breakpoints = new Breakpoints(this);
 
         this.machine = (Machine) machineClass.getConstructors()[0].newInstance();
+        this.machine.getCpu().setBlockCacheEnabled(true);
+        this.machine.getCpu().setIdleDetectionEnabled(true);
 
         // Initialize final fields in the constructor.
         this.traceLog = new TraceLog();
+        this.traceLog.setSymbolTable(machine.getCpu().getSymbolTable());
         this.memoryWindow = new MemoryWindow(machine.getBus());
+        this.disassemblyCache = new DisassemblyCache(machine.getCpu());
+        this.disassemblyWindow = new DisassemblyWindow(machine.getCpu(), disassemblyCache);
         this.breakpointsWindow = new BreakpointsWindow(breakpoints, mainWindow);
+        this.profilerWindow = new ProfilerWindow(machine.getCpu());
 
         if (machine.getCrtc() != null) {
             videoWindow = new VideoWindow(machine.getCrtc(), 2, 2);
         } else {
             videoWindow = null;
         }
+
+        if (machine.getFramebuffer() != null) {
+            framebufferWindow = new FramebufferWindow(machine.getFramebuffer(), 2);
+        } else {
+            framebufferWindow = null;
+        }
+
+        this.metrics = new MetricsRegistry();
+        try {
+            metrics.register(machine.getName(), machine.getCpu(), machine.getBus());
+        } catch (JMException ex) {
+            logger.warn("Unable to register JMX metrics: {}", ex.getMessage());
+        }
     }
 
     /**
@@ -167,6 +227,15 @@ public class Simulator {
 
         console.setBorderWidth(CONSOLE_BORDER_WIDTH);
 
+        // The CPU may be parked in an idle loop waiting for input, so wake it
+        // up as soon as a key lands in the type-ahead buffer.
+        console.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyTyped(KeyEvent keyEvent) {
+                machine.getCpu().wakeUp();
+            }
+        });
+
         // File Chooser
         fileChooser = new JFileChooser(System.getProperty("user.dir"));
         preferences = new PreferencesDialog(mainWindow, true);
@@ -258,6 +327,14 @@ public class Simulator {
         mainWindow.pack();
         mainWindow.setVisible(true);
 
+        uiTimer = new Timer(1000 / UI_FRAMES_PER_SECOND, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refreshFrame();
+            }
+        });
+        uiTimer.start();
+
         console.requestFocus();
         handleReset(false);
     }
@@ -303,7 +380,8 @@ public class Simulator {
             logger.debug("Reset requested. Resetting CPU.");
             // Reset CPU
             machine.getCpu().reset();
-            // Clear the console.
+            // Clear the console, and any output not yet printed.
+            consoleOutputLength = 0;
             console.reset();
             // Reset the trace log.
             traceLog.reset();
@@ -312,6 +390,7 @@ public class Simulator {
                 Memory mem = machine.getRam();
                 if (mem != null) {
                     mem.fill(0);
+                    machine.getBus().invalidatePages();
                 }
             }
             // Update status.
@@ -327,8 +406,9 @@ public class Simulator {
     private void handleStep(int numSteps) {
         try {
             for (int i = 0; i < numSteps; i++) {
-                step();
+                step(false);
             }
+            flushConsoleOutput();
             updateVisibleState();
         } catch (SymonException ex) {
             logger.error("Exception during simulator step", ex);
@@ -338,18 +418,35 @@ public class Simulator {
 
     /**
      * Perform a single step of the simulated system.
+     *
+     * @param allowBlocks If true, a whole cached basic block may be executed in one
+     *                    step. Blocks are never used while breakpoints are set or
+     *                    the trace log is open, since both need to see every
+     *                    instruction.
      */
-    private void step() throws MemoryAccessException {
-        machine.getCpu().step();
+    private void step(boolean allowBlocks) throws MemoryAccessException {
+        Cpu cpu = machine.getCpu();
+        long stepsBefore = cpu.getCpuState().stepCounter;
+
+        if (allowBlocks && breakpoints.isEmpty() && !traceLog.isVisible()) {
+            cpu.stepBlock();
+        } else {
+            cpu.step();
+        }
 
-        traceLog.append(machine.getCpu().getCpuState());
+        // Nothing is executed while the CPU is waiting (WAI) or stopped (STP).
+        int steps = (int) (cpu.getCpuState().stepCounter - stepsBefore);
+        if (steps > 0) {
+            traceLog.append(cpu.getCpuState());
+        }
 
-        // Read from the ACIA and immediately update the console if there's
-        // output ready.
+        // Read from the ACIA if there's output ready. The console is only
+        // updated when the buffer fills up, or once per frame.
         if (machine.getAcia() != null && machine.getAcia().hasTxChar()) {
-            // This is thread-safe
-            console.print(Character.toString((char) machine.getAcia().txRead(true)));
-            console.repaint();
+            consoleOutput[consoleOutputLength++] = (char) machine.getAcia().txRead(true);
+            if (consoleOutputLength == CONSOLE_OUTPUT_SIZE) {
+                flushConsoleOutput();
+            }
         }
 
         // If a key has been pressed, fill the ACIA.
@@ -361,22 +458,49 @@ public class Simulator {
             logger.error("Console type-ahead buffer underrun!");
         }
 
-        if (videoWindow != null && stepsSinceLastCrtcRefresh++ > STEPS_BETWEEN_CRTC_REFRESHES) {
-            stepsSinceLastCrtcRefresh = 0;
-            if (videoWindow.isVisible()) {
-                videoWindow.repaint();
+        // Follow the CRTC's vertical sync, at up to the maximum video frame rate.
+        if (videoWindow != null) {
+            long frame = machine.getCrtc().getFrameCount();
+            if (frame != lastVideoFrame) {
+                lastVideoFrame = frame;
+                long now = System.nanoTime();
+                if (now - lastVideoRefreshNs >= MIN_NS_BETWEEN_VIDEO_FRAMES) {
+                    lastVideoRefreshNs = now;
+                    refreshVideo();
+                }
             }
         }
 
-        // This is a very expensive update, and we're doing it without
-        // a delay, so we don't want to overwhelm the Swing event processing thread
-        // with requests. Limit the number of ui updates that can be performed.
-        if (stepsSinceLastUpdate++ > MAX_STEPS_BETWEEN_UPDATES) {
-            updateVisibleState();
-            stepsSinceLastUpdate = 0;
+        // Publish a snapshot if the UI timer has asked for one. Rendering it is
+        // left to the timer, so the event dispatch thread is never flooded.
+        if (stateRequested) {
+            stateRequested = false;
+            flushConsoleOutput();
+            SimulatorEvents.finishExecutionBatch(executionBatch, cpu.getCpuState().stepCounter,
+                                                 cpu.getCpuState().cycleCounter);
+            publishState();
+            executionBatch = SimulatorEvents.startExecutionBatch(cpu.getCpuState().stepCounter,
+                                                                 cpu.getCpuState().cycleCounter);
         }
     }
 
+    /**
+     * Hand any buffered ACIA output to the console. This is thread-safe.
+     */
+    private void flushConsoleOutput() {
+        if (consoleOutputLength > 0) {
+            console.print(consoleOutput, 0, consoleOutputLength);
+            consoleOutputLength = 0;
+        }
+    }
+
+    /**
+     * Publish a snapshot of the current CPU state for the UI.
+     */
+    private void publishState() {
+        publishedState = new CpuState(machine.getCpu().getCpuState());
+    }
+
     /**
      * Load a program into memory at the simulatorDidStart address.
      */
@@ -411,6 +535,7 @@ public class Simulator {
 
         public void requestStop() {
             isRunning = false;
+            machine.getCpu().wakeUp();
         }
 
         public void run() {
@@ -429,19 +554,38 @@ public class Simulator {
                 }
             });
 
+            CpuState cpuState = machine.getCpu().getCpuState();
+            executionBatch = SimulatorEvents.startExecutionBatch(cpuState.stepCounter, cpuState.cycleCounter);
+
             try {
                 do {
-                    step();
+                    step(true);
                 } while (shouldContinue());
             } catch (SymonException ex) {
                 logger.error("Exception in main simulator run thread. Exiting run.", ex);
             }
 
+            cpuState = machine.getCpu().getCpuState();
+            SimulatorEvents.finishExecutionBatch(executionBatch, cpuState.stepCounter, cpuState.cycleCounter);
+            executionBatch = null;
+            if (breakpoints.contains(cpuState.pc)) {
+                SimulatorEvents.breakpointHit(cpuState.pc);
+            }
+
+            flushConsoleOutput();
+            publishState();
+            refreshVideo();
+            final CpuState finalState = publishedState;
+
             SwingUtilities.invokeLater(new Runnable() {
                 @Override
                 public void run() {
-                    statusPane.updateState();
+                    renderedState = finalState;
+                    statusPane.updateState(finalState);
                     memoryWindow.updateState();
+                    if (disassemblyWindow.isVisible()) {
+                        disassemblyWindow.updateState(finalState.pc);
+                    }
                     runStopButton.setText("Run");
                     stepButton.setEnabled(true);
                     stepCountBox.setEnabled(true);
@@ -466,8 +610,12 @@ public class Simulator {
         }
     }
 
-    public String disassembleOpAtAddress(int address) throws MemoryAccessException {
-        return machine.getCpu().disassembleOpAtAddress(address);
+    public String disassembleOpAtAddress(int address) {
+        return disassemblyCache.getLine(address);
+    }
+
+    public SymbolTable getSymbolTable() {
+        return machine.getCpu().getSymbolTable();
     }
 
     class LoadProgramAction extends AbstractAction {
@@ -530,6 +678,37 @@ public class Simulator {
         }
     }
 
+    class LoadSymbolsAction extends AbstractAction {
+        public LoadSymbolsAction() {
+            super("Load Symbols...", null);
+            putValue(SHORT_DESCRIPTION, "Load symbols from an ld65 map, VICE label or listing file");
+            putValue(MNEMONIC_KEY, KeyEvent.VK_S);
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            try {
+                int retVal = fileChooser.showOpenDialog(mainWindow);
+                if (retVal == JFileChooser.APPROVE_OPTION) {
+                    File symbolFile = fileChooser.getSelectedFile();
+                    if (symbolFile.canRead()) {
+                        int count = getSymbolTable().load(symbolFile);
+
+                        // Disassembly shown so far was made without these symbols.
+                        disassemblyCache.clear();
+                        disassemblyWindow.repaint();
+                        breakpoints.refresh();
+                        updateVisibleState();
+
+                        logger.info("Loaded {} symbols from `{}'", count, symbolFile.getName());
+                    }
+                }
+            } catch (IOException ex) {
+                logger.error("Unable to read symbol file: {}", ex.getMessage());
+                JOptionPane.showMessageDialog(mainWindow, ex.getMessage(), "Failure", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
     class LoadRomAction extends AbstractAction {
         public LoadRomAction() {
             super("Load ROM...", null);
@@ -610,10 +789,17 @@ public class Simulator {
             }
 
             memoryWindow.dispose();
+            disassemblyWindow.dispose();
+            profilerWindow.dispose();
             traceLog.dispose();
+            metrics.unregister();
             if (videoWindow != null) {
                 videoWindow.dispose();
             }
+            if (framebufferWindow != null) {
+                framebufferWindow.dispose();
+            }
+            uiTimer.stop();
             mainWindow.dispose();
 
             command = MainCommand.SELECTMACHINE;
@@ -670,11 +856,44 @@ public class Simulator {
 
         @Override
         public void actionPerformed(ActionEvent actionEvent) {
-            if (speed < 1 || speed > CLOCK_PERIODS.length - 1) {
+            machine.getCpu().setClockFrequency(speed * 1000000L);
+        }
+    }
+
+    class SetCustomSpeedAction extends AbstractAction {
+        private ButtonGroup group;
+
+        public SetCustomSpeedAction(ButtonGroup group) {
+            super("Other...", null);
+            this.group = group;
+            putValue(SHORT_DESCRIPTION, "Set simulated speed to any frequency.");
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent actionEvent) {
+            String current = Double.toString(machine.getCpu().getClockFrequency() / 1000000.0);
+            String input = (String) JOptionPane.showInputDialog(mainWindow, "Clock speed in MHz:", "Clock Speed",
+                                                                JOptionPane.PLAIN_MESSAGE, null, null, current);
+            if (input == null) {
                 return;
             }
 
-            machine.getCpu().setClockPeriodInNs(CLOCK_PERIODS[speed]);
+            double mhz;
+            try {
+                mhz = Double.parseDouble(input.trim());
+            } catch (NumberFormatException ex) {
+                mhz = 0;
+            }
+
+            long frequency = Math.round(mhz * 1000000);
+            if (frequency < 1 || mhz > MAX_CLOCK_SPEED_MHZ) {
+                JOptionPane.showMessageDialog(mainWindow, "Please enter a speed between 0.000001 and " +
+                                              MAX_CLOCK_SPEED_MHZ + " MHz.", "Failure", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+
+            machine.getCpu().setClockFrequency(frequency);
+            group.clearSelection();
         }
     }
 
@@ -728,6 +947,24 @@ public class Simulator {
         }
     }
 
+    class ToggleDisassemblyWindowAction extends AbstractAction {
+        public ToggleDisassemblyWindowAction() {
+            super("Disassembly Window", null);
+            putValue(SHORT_DESCRIPTION, "Show or Hide the Disassembly Window");
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            synchronized (disassemblyWindow) {
+                if (disassemblyWindow.isVisible()) {
+                    disassemblyWindow.setVisible(false);
+                } else {
+                    disassemblyWindow.updateState();
+                    disassemblyWindow.setVisible(true);
+                }
+            }
+        }
+    }
+
     class ToggleVideoWindowAction extends AbstractAction {
         public ToggleVideoWindowAction() {
             super("Video Window", null);
@@ -745,6 +982,24 @@ public class Simulator {
         }
     }
 
+    class ToggleFramebufferWindowAction extends AbstractAction {
+        public ToggleFramebufferWindowAction() {
+            super("Bitmap Graphics Window", null);
+            putValue(SHORT_DESCRIPTION, "Show or Hide the Bitmap Graphics Window");
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            synchronized (framebufferWindow) {
+                if (framebufferWindow.isVisible()) {
+                    framebufferWindow.setVisible(false);
+                } else {
+                    framebufferWindow.setVisible(true);
+                    framebufferWindow.refreshDisplay();
+                }
+            }
+        }
+    }
+
     class ToggleBreakpointWindowAction extends AbstractAction {
         public ToggleBreakpointWindowAction() {
             super("Breakpoints...", null);
@@ -762,6 +1017,24 @@ public class Simulator {
         }
     }
 
+    class ToggleProfilerWindowAction extends AbstractAction {
+        public ToggleProfilerWindowAction() {
+            super("Profiler...", null);
+            putValue(SHORT_DESCRIPTION, "Show or Hide the Profiler");
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            synchronized (profilerWindow) {
+                if (profilerWindow.isVisible()) {
+                    profilerWindow.setVisible(false);
+                } else {
+                    profilerWindow.updateState();
+                    profilerWindow.setVisible(true);
+                }
+            }
+        }
+    }
+
     class SimulatorMenu extends JMenuBar {
         // Menu Items
         private JMenuItem loadProgramItem;
@@ -811,6 +1084,9 @@ public class Simulator {
                 fileMenu.add(loadRomItem);
             }
 
+            JMenuItem loadSymbolsItem = new JMenuItem(new LoadSymbolsAction());
+            fileMenu.add(loadSymbolsItem);
+
             JMenuItem prefsItem = new JMenuItem(new ShowPrefsAction());
             fileMenu.add(prefsItem);
 
@@ -859,6 +1135,16 @@ public class Simulator {
             });
             viewMenu.add(showMemoryTable);
 
+            final JCheckBoxMenuItem showDisassembly = new JCheckBoxMenuItem(new ToggleDisassemblyWindowAction());
+            // Un-check the menu item if the user closes the window directly
+            disassemblyWindow.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosing(WindowEvent e) {
+                    showDisassembly.setSelected(false);
+                }
+            });
+            viewMenu.add(showDisassembly);
+
             if (videoWindow != null) {
                 final JCheckBoxMenuItem showVideoWindow = new JCheckBoxMenuItem(new ToggleVideoWindowAction());
                 videoWindow.addWindowListener(new WindowAdapter() {
@@ -870,6 +1156,17 @@ public class Simulator {
                 viewMenu.add(showVideoWindow);
             }
 
+            if (framebufferWindow != null) {
+                final JCheckBoxMenuItem showFramebufferWindow = new JCheckBoxMenuItem(new ToggleFramebufferWindowAction());
+                framebufferWindow.addWindowListener(new WindowAdapter() {
+                    @Override
+                    public void windowClosing(WindowEvent e) {
+                        showFramebufferWindow.setSelected(false);
+                    }
+                });
+                viewMenu.add(showFramebufferWindow);
+            }
+
             add(viewMenu);
 
             /*
@@ -898,6 +1195,7 @@ public class Simulator {
             makeSpeedMenuItem(2, speedSubMenu, speedGroup);
             makeSpeedMenuItem(4, speedSubMenu, speedGroup);
             makeSpeedMenuItem(8, speedSubMenu, speedGroup);
+            speedSubMenu.add(new JMenuItem(new SetCustomSpeedAction(speedGroup)));
 
             simulatorMenu.add(speedSubMenu);
             simulatorMenu.add(cpuTypeMenu);
@@ -913,6 +1211,17 @@ public class Simulator {
             });
             simulatorMenu.add(showBreakpoints);
 
+            // "Profiler"
+            final JCheckBoxMenuItem showProfiler = new JCheckBoxMenuItem(new ToggleProfilerWindowAction());
+            // Un-check the menu item if the user closes the window directly
+            profilerWindow.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosing(WindowEvent e) {
+                    showProfiler.setSelected(false);
+                }
+            });
+            simulatorMenu.add(showProfiler);
+
             add(simulatorMenu);
         }
 
@@ -926,14 +1235,10 @@ public class Simulator {
         }
 
         private void makeSpeedMenuItem(int speed, JMenu subMenu, ButtonGroup group) {
-            if (speed < 1 || speed > CLOCK_PERIODS.length - 1) {
-                return;
-            }
-
             Action action = new SetSpeedAction(speed);
 
             JCheckBoxMenuItem item = new JCheckBoxMenuItem(action);
-            item.setSelected(CLOCK_PERIODS[speed] == Cpu.DEFAULT_CLOCK_PERIOD_IN_NS);
+            item.setSelected(speed * 1000000L == machine.getCpu().getClockFrequency());
             subMenu.add(item);
             group.add(item);
         }
@@ -950,19 +1255,74 @@ public class Simulator {
 
     }
 
+    /**
+     * Ask the video window, if it is showing, to catch up with video memory.
+     */
+    private void refreshVideo() {
+        if (videoWindow != null && videoWindow.isVisible()) {
+            videoWindow.refreshDisplay();
+        }
+        refreshFramebuffer();
+    }
+
+    /**
+     * Ask the bitmap graphics window, if it is showing, to redraw the
+     * scanlines written since its last refresh.
+     */
+    private void refreshFramebuffer() {
+        if (framebufferWindow != null && framebufferWindow.isVisible()) {
+            framebufferWindow.refreshDisplay();
+        }
+    }
+
+    /**
+     * Publish the current state and render it as soon as possible. This is for
+     * changes made while the simulator is stopped, such as a reset or a step.
+     */
     private void updateVisibleState() {
-        // Immediately update the UI.
+        publishState();
+        refreshVideo();
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
-                // Now update the state
-                statusPane.updateState();
-                memoryWindow.updateState();
-                if (traceLog.shouldUpdate()) {
-                    traceLog.refresh();
+                renderState(publishedState);
+                if (profilerWindow.isVisible()) {
+                    profilerWindow.updateState();
                 }
             }
         });
     }
 
+    /**
+     * Called by the UI timer on the event dispatch thread. Render the latest
+     * snapshot if it is new, and ask the run thread for the next one.
+     */
+    private void refreshFrame() {
+        console.repaintIfChanged();
+        refreshFramebuffer();
+
+        CpuState state = publishedState;
+        if (state != null && state != renderedState) {
+            renderState(state);
+        }
+        if (runLoop != null && runLoop.isRunning()) {
+            stateRequested = true;
+        }
+    }
+
+    /**
+     * Update the visible windows from a snapshot of the CPU state.
+     */
+    private void renderState(CpuState state) {
+        renderedState = state;
+        statusPane.updateState(state);
+        memoryWindow.updateState();
+        if (disassemblyWindow.isVisible()) {
+            disassemblyWindow.updateState(state.pc);
+        }
+        if (traceLog.shouldUpdate()) {
+            traceLog.refresh();
+        }
+    }
+
 }
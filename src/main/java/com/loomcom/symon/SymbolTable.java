@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import com.loomcom.symon.util.AssemblerListing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maps addresses to symbol names, so that traces, breakpoints, disassembly and
+ * profiles can show <code>label+offset</code> rather than raw addresses.
+ * <p>
+ * Symbols can be imported from ld65 map files, VICE label files (which ld65
+ * also writes with <code>-Ln</code>), and AS65 listings. At most one name is
+ * kept per address; the first one loaded wins.
+ * <p>
+ * Lookups go through a dense 64K index holding, for each address, the nearest
+ * symbol at or below it, so symbolizing an address is two array reads. The
+ * index is rebuilt lazily after symbols are added.
+ */
+public class SymbolTable {
+
+    /* Addresses further than this past a symbol are not symbolized */
+    public static final int MAX_OFFSET = 0xff;
+
+    private static final Pattern VICE_LABEL = Pattern.compile("^al\\s+([0-9A-Fa-f]{1,6})\\s+\\.?(\\S+)");
+    private static final Pattern LD65_EXPORT = Pattern.compile("(\\S+)\\s+([0-9A-Fa-f]{6})\\s+([A-Z]{3})");
+
+    private final Map<Integer, String> names = new HashMap<>();
+    private final Map<String, Integer> addresses = new HashMap<>();
+
+    // Rebuilt lazily after symbols are added; null while stale.
+    private volatile Index index;
+
+    /*
+     * Sorted symbol addresses and names, and for every address the position
+     * of the nearest symbol at or below it, or -1.
+     */
+    private static class Index {
+        final int[] addresses;
+        final String[] names;
+        final int[] nearest = new int[0x10000];
+
+        Index(int[] addresses, String[] names) {
+            this.addresses = addresses;
+            this.names = names;
+
+            int next = 0;
+            int current = -1;
+            for (int address = 0; address < nearest.length; address++) {
+                while (next < addresses.length && addresses[next] <= address) {
+                    current = next++;
+                }
+                nearest[address] = current;
+            }
+        }
+    }
+
+    /**
+     * Add a symbol. Addresses already named keep their first name.
+     */
+    public synchronized void add(int address, String name) {
+        address &= 0xffff;
+        if (!names.containsKey(address)) {
+            names.put(address, name);
+            index = null;
+        }
+        if (!addresses.containsKey(name)) {
+            addresses.put(name, address);
+        }
+    }
+
+    public synchronized void clear() {
+        names.clear();
+        addresses.clear();
+        index = null;
+    }
+
+    public synchronized int size() {
+        return names.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return names.isEmpty();
+    }
+
+    /**
+     * @return The symbol at exactly this address, or null.
+     */
+    public synchronized String getName(int address) {
+        return names.get(address & 0xffff);
+    }
+
+    /**
+     * @return The address of a symbol, or -1 if there is no such symbol.
+     */
+    public synchronized int getAddress(String name) {
+        Integer address = addresses.get(name);
+        return address == null ? -1 : address;
+    }
+
+    /**
+     * Describe an address in terms of the nearest symbol at or below it.
+     *
+     * @return "label" or "label+offset", or null if no symbol is close enough.
+     */
+    public String symbolize(int address) {
+        StringBuilder sb = new StringBuilder();
+        return appendSymbol(sb, address) ? sb.toString() : null;
+    }
+
+    /**
+     * Append "label" or "label+offset" for an address.
+     *
+     * @return False, and nothing appended, if no symbol is close enough.
+     */
+    public boolean appendSymbol(StringBuilder sb, int address) {
+        address &= 0xffff;
+        Index index = this.index;
+        if (index == null) {
+            index = buildIndex();
+        }
+
+        int i = index.nearest[address];
+        if (i < 0) {
+            return false;
+        }
+        int offset = address - index.addresses[i];
+        if (offset > MAX_OFFSET) {
+            return false;
+        }
+        sb.append(index.names[i]);
+        if (offset > 0) {
+            sb.append('+').append(offset);
+        }
+        return true;
+    }
+
+    private synchronized Index buildIndex() {
+        int[] sorted = new int[names.size()];
+        int n = 0;
+        for (int address : names.keySet()) {
+            sorted[n++] = address;
+        }
+        Arrays.sort(sorted);
+
+        String[] sortedNames = new String[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sortedNames[i] = names.get(sorted[i]);
+        }
+
+        index = new Index(sorted, sortedNames);
+        return index;
+    }
+
+    /**
+     * Load symbols from a file, recognizing AS65 listings by their ".lst"
+     * extension, and ld65 map files and VICE label files by their contents.
+     *
+     * @return The number of symbols in the file.
+     */
+    public int load(File file) throws IOException {
+        if (file.getName().toLowerCase().endsWith(".lst")) {
+            return addListing(AssemblerListing.load(file));
+        }
+
+        String text = readFully(file);
+        if (text.contains("Exports list by name:")) {
+            return loadLd65Map(new StringReader(text));
+        }
+        for (String line : text.split("\n")) {
+            if (!line.trim().isEmpty()) {
+                if (VICE_LABEL.matcher(line.trim()).find()) {
+                    return loadViceLabels(new StringReader(text));
+                }
+                break;
+            }
+        }
+        throw new IOException("Unrecognized symbol file format: " + file.getName());
+    }
+
+    /**
+     * Load the "Exports list by name" section of an ld65 map file. Only labels
+     * are loaded; equates such as segment sizes are not addresses.
+     *
+     * @return The number of symbols in the file.
+     */
+    public int loadLd65Map(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        boolean inExports = false;
+        int count = 0;
+
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("Exports list by name:")) {
+                inExports = true;
+                continue;
+            }
+            if (!inExports || line.startsWith("---")) {
+                continue;
+            }
+            if (line.endsWith(":")) {
+                // The next section
+                break;
+            }
+            Matcher m = LD65_EXPORT.matcher(line);
+            while (m.find()) {
+                if (m.group(3).charAt(1) == 'L') {
+                    add(Integer.parseInt(m.group(2), 16), m.group(1));
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Load a VICE label file, with lines like <code>al C000 .start</code>.
+     *
+     * @return The number of symbols in the file.
+     */
+    public int loadViceLabels(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        int count = 0;
+
+        while ((line = reader.readLine()) != null) {
+            Matcher m = VICE_LABEL.matcher(line.trim());
+            if (m.find()) {
+                add(Integer.parseInt(m.group(1), 16), m.group(2));
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Add the labels defined in an assembler listing. Equates are skipped,
+     * since they are usually constants rather than addresses.
+     *
+     * @return The number of labels in the listing.
+     */
+    public int addListing(AssemblerListing listing) {
+        int count = 0;
+        for (AssemblerListing.Line line : listing.getLines()) {
+            if (line.label != null && !line.equate) {
+                add(line.address, line.label);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String readFully(File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[4096];
+        try (Reader reader = new FileReader(file)) {
+            int n;
+            while ((n = reader.read(buffer)) > 0) {
+                sb.append(buffer, 0, n);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -42,6 +42,9 @@ public abstract class Acia extends Device {
     boolean receiveIrqEnabled = false;
     boolean transmitIrqEnabled = false;
     boolean overrun = false;
+
+    /* Characters lost to overruns, for metrics */
+    private long overrunCount;
     boolean interrupt = false;
 
     long lastTxWrite   = 0;
@@ -108,6 +111,14 @@ public abstract class Acia extends Device {
         return name + "@" + String.format("%04X", baseAddress);
     }
 
+    /**
+     * @return The number of received characters lost because the previous
+     *         character had not been read yet.
+     */
+    public synchronized long getOverrunCount() {
+        return overrunCount;
+    }
+
     public synchronized int rxRead(boolean cpuAccess) {
         if (cpuAccess) {
             lastRxRead = System.nanoTime();
@@ -120,6 +131,7 @@ public abstract class Acia extends Device {
     public synchronized void rxWrite(int data) {
         if (rxFull) {
             overrun = true;
+            overrunCount++;
         }
 
         rxFull = true;
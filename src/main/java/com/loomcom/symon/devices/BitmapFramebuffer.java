@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.devices;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.exceptions.MemoryRangeException;
+
+import java.util.Arrays;
+
+/**
+ * A memory-mapped bitmap graphics framebuffer of 320 x 200 pixels, at 1, 2
+ * or 4 bits per pixel, with a palette of 16 colors.
+ * <p>
+ * At 4 bits per pixel the framebuffer needs 32000 bytes of video memory,
+ * more than a 6502 system can spare, so video memory is seen through an 8K
+ * window. The bank register selects which 8K of video memory appears in the
+ * window. The registers are at the start of the device, and the window
+ * begins {@link #WINDOW_OFFSET} bytes in.
+ * <p>
+ * Pixels are packed most significant bits first, and each scanline starts
+ * on a byte boundary. Writes to video memory mark the scanlines they touch
+ * as dirty, so that a renderer need only redraw those lines.
+ */
+public class BitmapFramebuffer extends Device {
+
+    public static final int WIDTH = 320;
+    public static final int HEIGHT = 200;
+    public static final int PALETTE_SIZE = 16;
+
+    public static final int VIDEO_MEMORY_SIZE = WIDTH * HEIGHT * 4 / 8;
+    public static final int WINDOW_OFFSET = 0x0800;
+    public static final int WINDOW_SIZE = 0x2000;
+    public static final int DEVICE_SIZE = WINDOW_OFFSET + WINDOW_SIZE;
+
+    // Registers
+    public static final int MODE_REG = 0;          // Bits 0-1: 0 = 1 bpp, 1 = 2 bpp, 2 = 4 bpp
+    public static final int BANK_REG = 1;          // The 8K bank of video memory in the window
+    public static final int PALETTE_INDEX_REG = 2; // The palette entry for PALETTE_DATA_REG
+    public static final int PALETTE_DATA_REG = 3;  // Red, green, then blue; the index then moves on
+
+    // The default palette. The first two entries suit 1 bpp, and the first four 2 bpp.
+    private static final int[] DEFAULT_PALETTE = {
+        0x000000, 0xffffff, 0x880000, 0xaaffee, 0xcc44cc, 0x00cc55, 0x0000aa, 0xeeee77,
+        0xdd8855, 0x664400, 0xff7777, 0x333333, 0x777777, 0xaaff66, 0x0088ff, 0xbbbbbb
+    };
+
+    private final byte[] videoMemory = new byte[VIDEO_MEMORY_SIZE];
+    private final int[] palette = new int[PALETTE_SIZE];
+
+    private int mode;
+    private int bank;
+    private int paletteIndex;
+    private int paletteComponent;
+
+    // The scanlines changed since a renderer last took them. These are set on
+    // the CPU thread, and cleared by the renderer before it reads the line.
+    private final boolean[] dirtyLines = new boolean[HEIGHT];
+    private volatile boolean dirty;
+
+    public BitmapFramebuffer(int address) throws MemoryRangeException {
+        super(address, address + DEVICE_SIZE - 1, "Bitmap Framebuffer");
+        System.arraycopy(DEFAULT_PALETTE, 0, palette, 0, PALETTE_SIZE);
+        markAllDirty();
+    }
+
+    @Override
+    public void write(int address, int data) throws MemoryAccessException {
+        if (address >= WINDOW_OFFSET) {
+            int offset = bank * WINDOW_SIZE + address - WINDOW_OFFSET;
+            if (offset < VIDEO_MEMORY_SIZE && videoMemory[offset] != (byte) data) {
+                videoMemory[offset] = (byte) data;
+                int line = offset / getBytesPerLine();
+                if (line < HEIGHT) {
+                    dirtyLines[line] = true;
+                    dirty = true;
+                }
+            }
+            return;
+        }
+
+        switch (address) {
+            case MODE_REG:
+                // Mode 3 is reserved, and treated as 4 bpp
+                int newMode = Math.min(data & 0x03, 2);
+                if (newMode != mode) {
+                    mode = newMode;
+                    markAllDirty();
+                }
+                break;
+            case BANK_REG:
+                bank = data & 0x03;
+                break;
+            case PALETTE_INDEX_REG:
+                paletteIndex = data & 0x0f;
+                paletteComponent = 0;
+                break;
+            case PALETTE_DATA_REG:
+                int shift = 16 - paletteComponent * 8;
+                palette[paletteIndex] = (palette[paletteIndex] & ~(0xff << shift)) | ((data & 0xff) << shift);
+                if (++paletteComponent == 3) {
+                    paletteComponent = 0;
+                    paletteIndex = (paletteIndex + 1) & 0x0f;
+                    markAllDirty();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public int read(int address, boolean cpuAccess) throws MemoryAccessException {
+        if (address >= WINDOW_OFFSET) {
+            int offset = bank * WINDOW_SIZE + address - WINDOW_OFFSET;
+            return offset < VIDEO_MEMORY_SIZE ? videoMemory[offset] & 0xff : 0xff;
+        }
+
+        switch (address) {
+            case MODE_REG:
+                return mode;
+            case BANK_REG:
+                return bank;
+            case PALETTE_INDEX_REG:
+                return paletteIndex;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return The number of bits per pixel: 1, 2 or 4.
+     */
+    public int getBitsPerPixel() {
+        return 1 << mode;
+    }
+
+    public int getBytesPerLine() {
+        return WIDTH * getBitsPerPixel() / 8;
+    }
+
+    /**
+     * @return The video memory itself, which renderers may read but must not change.
+     */
+    public byte[] getVideoMemory() {
+        return videoMemory;
+    }
+
+    /**
+     * @param index The palette entry.
+     * @return The color of the palette entry, as 0xRRGGBB.
+     */
+    public int getPaletteColor(int index) {
+        return palette[index];
+    }
+
+    /**
+     * Clears and returns the flag saying that some scanline has changed.
+     * Renderers should call this before {@link #takeDirtyLine(int)}.
+     *
+     * @return True if any scanline has changed since the last call.
+     */
+    public boolean takeChanges() {
+        if (!dirty) {
+            return false;
+        }
+        dirty = false;
+        return true;
+    }
+
+    /**
+     * Clears and returns the flag saying that a scanline has changed. The flag
+     * is cleared before the line is drawn, so that a write made while it is
+     * being drawn is not lost.
+     *
+     * @param line The scanline.
+     * @return True if the scanline has changed since it was last taken.
+     */
+    public boolean takeDirtyLine(int line) {
+        if (!dirtyLines[line]) {
+            return false;
+        }
+        dirtyLines[line] = false;
+        return true;
+    }
+
+    private void markAllDirty() {
+        Arrays.fill(dirtyLines, true);
+        dirty = true;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "@" + String.format("%04X", startAddress());
+    }
+}
@@ -23,10 +23,13 @@
 
 package com.loomcom.symon.devices;
 
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.Cpu;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Simulation of a 6545 CRTC and virtual CRT output.
@@ -37,7 +40,10 @@ public class Crtc extends Device {
     public static final int REGISTER_RW              = 1;
 
     // Registers
+    public static final int HORIZONTAL_TOTAL         = 0;
     public static final int HORIZONTAL_DISPLAYED     = 1;
+    public static final int VERTICAL_TOTAL           = 4;
+    public static final int VERTICAL_TOTAL_ADJUST    = 5;
     public static final int VERTICAL_DISPLAYED       = 6;
     public static final int MODE_CONTROL             = 8;
     public static final int SCAN_LINE                = 9;
@@ -48,15 +54,28 @@ public class Crtc extends Device {
     public static final int CURSOR_POSITION_HIGH     = 14;
     public static final int CURSOR_POSITION_LOW      = 15;
 
+    // Status register bits
+    public static final int STATUS_VERTICAL_BLANK    = 0x20;
+
 
     /*
      * These will determine how the Character ROM is decoded,
      * and are Character ROM dependent.
      */
 
+    // R0 - Horizontal Total: One less than the number of character times per scan line,
+    // including retrace. Characters are clocked at the CPU clock rate.
+    private int horizontalTotal;
+
     // R1 - Horizontal Displayed
     private int horizontalDisplayed;
 
+    // R4 - Vertical Total: One less than the number of character rows per frame, including retrace.
+    private int verticalTotal;
+
+    // R5 - Vertical Total Adjust: Extra scan lines at the end of each frame.
+    private int verticalTotalAdjust;
+
     // R6 - Vertical Displayed
     private int verticalDisplayed;
 
@@ -82,6 +101,14 @@ public class Crtc extends Device {
 
     private int currentRegister = 0;
 
+    // Simulated time, in CPU cycles, at which the current frame began, and the number
+    // of frames completed before it.
+    private long frameStartCycle;
+    private long frameCount;
+
+    // The last value successfully written to each register, or -1 if none has been.
+    private final int[] registerValues = new int[16];
+
     // Status bits
     private boolean rowColumnAddressing = false;
     private boolean displayEnableSkew = false;
@@ -93,8 +120,11 @@ public class Crtc extends Device {
         super(deviceAddress, deviceAddress + 2, "CRTC");
         this.memory = memory;
 
-        // Defaults
+        // Defaults. The totals give about 60 frames per second with a 1 MHz clock.
+        this.horizontalTotal = 63;
         this.horizontalDisplayed = 40;
+        this.verticalTotal = 28;
+        this.verticalTotalAdjust = 0;
         this.verticalDisplayed = 25;
         this.scanLinesPerRow = 9;
         this.cursorStartLine = 0;
@@ -104,6 +134,7 @@ public class Crtc extends Device {
         this.pageSize = horizontalDisplayed * verticalDisplayed;
         this.cursorEnabled = true;
         this.cursorBlinkRate = 500;
+        Arrays.fill(registerValues, -1);
     }
 
     @Override
@@ -121,6 +152,9 @@ public class Crtc extends Device {
     @Override
     public int read(int address, boolean cpuAccess) throws MemoryAccessException {
         switch (address) {
+            case REGISTER_SELECT:
+                // The status register
+                return isVerticalBlanking() ? STATUS_VERTICAL_BLANK : 0;
             case REGISTER_RW:
                 switch (currentRegister) {
                     case CURSOR_POSITION_LOW:
@@ -140,11 +174,81 @@ public class Crtc extends Device {
         return null;
     }
 
+    /**
+     * @return The number of CPU cycles in one frame, including retrace.
+     */
+    public int getCyclesPerFrame() {
+        int scanLines = (verticalTotal + 1) * getTimedScanLinesPerRow() + verticalTotalAdjust;
+        return (horizontalTotal + 1) * scanLines;
+    }
+
+    /**
+     * Returns the number of frames, and so of vertical syncs, that have been
+     * completed in simulated time. This only changes as the CPU runs, so it
+     * can be polled to follow the display at the simulated frame rate.
+     *
+     * @return The number of frames completed.
+     */
+    public long getFrameCount() {
+        advanceFrames(currentCycle());
+        return frameCount;
+    }
+
+    /**
+     * @return True if the beam is in the vertical blanking interval, below the displayed rows.
+     */
+    public boolean isVerticalBlanking() {
+        long now = currentCycle();
+        advanceFrames(now);
+        long displayedCycles = (long) (horizontalTotal + 1) * verticalDisplayed * getTimedScanLinesPerRow();
+        return now - frameStartCycle >= displayedCycles;
+    }
+
+    /*
+     * The scan lines per character row used for frame timing. A row always
+     * takes at least one scan line, so the frame never has zero length.
+     */
+    private int getTimedScanLinesPerRow() {
+        return Math.max(1, scanLinesPerRow);
+    }
+
+    private long currentCycle() {
+        Bus bus = getBus();
+        Cpu cpu = (bus == null) ? null : bus.getCpu();
+        return (cpu == null) ? 0 : cpu.getCpuState().cycleCounter;
+    }
+
+    private void advanceFrames(long now) {
+        if (now < frameStartCycle) {
+            // The CPU's cycle counter has been reset
+            frameStartCycle = now;
+            return;
+        }
+        int cyclesPerFrame = getCyclesPerFrame();
+        long frames = (now - frameStartCycle) / cyclesPerFrame;
+        if (frames > 0) {
+            frameCount += frames;
+            frameStartCycle += frames * cyclesPerFrame;
+        }
+    }
+
     public int getCharAtAddress(int address) throws MemoryAccessException {
         // TODO: Row/Column addressing
         return memory.read(address, false);
     }
 
+    public int getHorizontalTotal() {
+        return horizontalTotal;
+    }
+
+    public int getVerticalTotal() {
+        return verticalTotal;
+    }
+
+    public int getVerticalTotalAdjust() {
+        return verticalTotalAdjust;
+    }
+
     public int getHorizontalDisplayed() {
         return horizontalDisplayed;
     }
@@ -202,10 +306,29 @@ public class Crtc extends Device {
     }
 
     private void writeRegisterValue(int data) throws MemoryAccessException {
+        // Software often rewrites registers, such as the cursor position,
+        // with the values they already hold. Listeners need not hear of it.
+        boolean known = currentRegister >= 0 && currentRegister < registerValues.length;
+        if (known && registerValues[currentRegister] == data) {
+            return;
+        }
+
         int oldStartAddress = startAddress;
         int oldCursorPosition = cursorPosition;
 
+        // Frames up to now were timed with the old registers.
+        advanceFrames(currentCycle());
+
         switch (currentRegister) {
+            case HORIZONTAL_TOTAL:
+                horizontalTotal = data & 0xff;
+                break;
+            case VERTICAL_TOTAL:
+                verticalTotal = data & 0x7f;
+                break;
+            case VERTICAL_TOTAL_ADJUST:
+                verticalTotalAdjust = data & 0x1f;
+                break;
             case HORIZONTAL_DISPLAYED:
                 horizontalDisplayed = data;
                 pageSize = horizontalDisplayed * verticalDisplayed;
@@ -274,6 +397,9 @@ public class Crtc extends Device {
             throw new MemoryAccessException("Cannot position cursor past end of memory.");
         }
 
+        if (known) {
+            registerValues[currentRegister] = data;
+        }
 
         notifyListeners();
     }
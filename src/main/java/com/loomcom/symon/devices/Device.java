@@ -62,6 +62,13 @@ public abstract class Device implements Comparable<Device> {
      */
     private Set<DeviceChangeListener> deviceChangeListeners;
 
+    /**
+     * CPU reads and writes through the Bus, counted by the Bus. Only the CPU
+     * thread writes these, so they are plain fields.
+     */
+    private long busReads;
+    private long busWrites;
+
     public Device(int startAddress, int endAddress, String name) throws MemoryRangeException {
         this.memoryRange = new MemoryRange(startAddress, endAddress);
         this.size = endAddress - startAddress + 1;
@@ -110,6 +117,34 @@ public abstract class Device implements Comparable<Device> {
         return size;
     }
 
+    /**
+     * @return The number of CPU reads of this device through the Bus.
+     */
+    public long getBusReadCount() {
+        return busReads;
+    }
+
+    /**
+     * @return The number of CPU writes to this device through the Bus.
+     */
+    public long getBusWriteCount() {
+        return busWrites;
+    }
+
+    /**
+     * Called by the Bus for every CPU read of this device.
+     */
+    public void countBusRead() {
+        busReads++;
+    }
+
+    /**
+     * Called by the Bus for every CPU write to this device.
+     */
+    public void countBusWrite() {
+        busWrites++;
+    }
+
     public void registerListener(DeviceChangeListener listener) {
         deviceChangeListeners.add(listener);
     }
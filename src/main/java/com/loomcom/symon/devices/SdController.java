@@ -27,6 +27,7 @@ package com.loomcom.symon.devices;
 
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
+import com.loomcom.symon.jfr.SimulatorEvents;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -61,6 +62,10 @@ public class SdController extends Device {
     private int readPosition = 0;
     private int writePosition = 0;
 
+    /* Sectors transferred, for metrics */
+    private long sectorsRead;
+    private long sectorsWritten;
+
 
     public SdController(int address) throws MemoryRangeException {
         super(address, address + CONTROLLER_SIZE - 1, "SDCONTROLLER");
@@ -115,8 +120,10 @@ public class SdController extends Device {
         this.status = Status.READ;
         this.readPosition = 0;
         computePosition();
+        sectorsRead++;
 
         if (sdImageFile != null) {
+            Object transfer = SimulatorEvents.startSdTransfer();
             try {
                 FileInputStream fis = new FileInputStream(sdImageFile);
                 fis.skip(this.position);
@@ -128,6 +135,7 @@ public class SdController extends Device {
             } catch (IOException ex) {
                 logger.log(Level.WARNING, "could not fill read buffer from SD image file", ex);
             }
+            SimulatorEvents.finishSdTransfer(transfer, false, this.position >> 9);
         }
     }
 
@@ -161,6 +169,7 @@ public class SdController extends Device {
 
         if (writePosition >= SECTOR_SIZE) {
             if (sdImageFile != null) {
+                Object transfer = SimulatorEvents.startSdTransfer();
                 try {
                     RandomAccessFile raf = new RandomAccessFile(sdImageFile, "rw");
                     raf.skipBytes(this.position);
@@ -169,7 +178,9 @@ public class SdController extends Device {
                 } catch (IOException ex) {
                     logger.log(Level.WARNING, "could not write data back to SD image file!", ex);
                 }
+                SimulatorEvents.finishSdTransfer(transfer, true, this.position >> 9);
             }
+            sectorsWritten++;
 
             this.status = Status.IDLE;
         }
@@ -202,6 +213,20 @@ public class SdController extends Device {
         }
     }
 
+    /**
+     * @return The number of sectors read from the SD image.
+     */
+    public long getSectorsRead() {
+        return sectorsRead;
+    }
+
+    /**
+     * @return The number of sectors written to the SD image.
+     */
+    public long getSectorsWritten() {
+        return sectorsWritten;
+    }
+
     @Override
     public String toString() {
         return getName() + "@" + String.format("%04X", this.getMemoryRange().startAddress);
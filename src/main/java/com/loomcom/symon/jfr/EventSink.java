@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.jfr;
+
+/**
+ * The events {@link SimulatorEvents} can emit. The Flight Recorder
+ * implementation is only built on JDK 11 and later, so the rest of the
+ * simulator refers to it only through this interface.
+ */
+interface EventSink {
+
+    Object startExecutionBatch(long instructions, long cycles);
+
+    void finishExecutionBatch(Object batch, long instructions, long cycles);
+
+    void interrupt(boolean nmi, int returnAddress, int handlerAddress);
+
+    void breakpointHit(int address);
+
+    Object startSdTransfer();
+
+    void finishSdTransfer(Object transfer, boolean write, int sector);
+
+    Object startCrtcRepaint();
+
+    void finishCrtcRepaint(Object repaint, int characters);
+
+    Object startTraceLogRefresh();
+
+    void finishTraceLogRefresh(Object refresh, int lines);
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.jfr;
+
+/**
+ * JDK Flight Recorder events for the simulator's hot paths, so that guest
+ * activity can be lined up with GC and JIT activity in the same recording.
+ * <p>
+ * The events are disabled by default. Enable them alongside the usual JDK
+ * events with, for example:
+ * <pre>
+ * java -XX:StartFlightRecording:filename=symon.jfr,+com.loomcom.symon.ExecutionBatch#enabled=true,
+ *      +com.loomcom.symon.Interrupt#enabled=true ... -jar symon.jar
+ * </pre>
+ * or with a custom <code>.jfc</code> file passed as a second <code>settings=</code> option.
+ * The events are named <code>ExecutionBatch</code>, <code>Interrupt</code>,
+ * <code>Breakpoint</code>, <code>SdTransfer</code>, <code>CrtcRepaint</code> and
+ * <code>TraceLogRefresh</code>, all in the <code>com.loomcom.symon</code> namespace.
+ * <p>
+ * The event classes are only built on JDK 11 and later, by the
+ * <code>jfr</code> Maven profile, and are loaded by name. Every method here is
+ * safe to call on a JVM without Flight Recorder, or in a build without the
+ * events: each call is then a test of a constant.
+ * Duration events are started with a <code>start</code> method, which returns
+ * null unless the event is being recorded, and finished by passing that value
+ * back; finishing null does nothing.
+ */
+public final class SimulatorEvents {
+
+    private static final String SINK_CLASS = "com.loomcom.symon.jfr.JfrEventSink";
+
+    private static final EventSink SINK = loadSink();
+    private static final boolean AVAILABLE = SINK != null;
+
+    private SimulatorEvents() {}
+
+    private static EventSink loadSink() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (EventSink) Class.forName(SINK_CLASS).newInstance();
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * @return True if this JVM supports Flight Recorder events, and the
+     *         simulator was built with them.
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    public static Object startExecutionBatch(long instructions, long cycles) {
+        return AVAILABLE ? SINK.startExecutionBatch(instructions, cycles) : null;
+    }
+
+    public static void finishExecutionBatch(Object batch, long instructions, long cycles) {
+        if (batch != null) {
+            SINK.finishExecutionBatch(batch, instructions, cycles);
+        }
+    }
+
+    public static void interrupt(boolean nmi, int returnAddress, int handlerAddress) {
+        if (AVAILABLE) {
+            SINK.interrupt(nmi, returnAddress, handlerAddress);
+        }
+    }
+
+    public static void breakpointHit(int address) {
+        if (AVAILABLE) {
+            SINK.breakpointHit(address);
+        }
+    }
+
+    public static Object startSdTransfer() {
+        return AVAILABLE ? SINK.startSdTransfer() : null;
+    }
+
+    public static void finishSdTransfer(Object transfer, boolean write, int sector) {
+        if (transfer != null) {
+            SINK.finishSdTransfer(transfer, write, sector);
+        }
+    }
+
+    public static Object startCrtcRepaint() {
+        return AVAILABLE ? SINK.startCrtcRepaint() : null;
+    }
+
+    public static void finishCrtcRepaint(Object repaint, int characters) {
+        if (repaint != null) {
+            SINK.finishCrtcRepaint(repaint, characters);
+        }
+    }
+
+    public static Object startTraceLogRefresh() {
+        return AVAILABLE ? SINK.startTraceLogRefresh() : null;
+    }
+
+    public static void finishTraceLogRefresh(Object refresh, int lines) {
+        if (refresh != null) {
+            SINK.finishTraceLogRefresh(refresh, lines);
+        }
+    }
+}
@@ -68,10 +68,10 @@ public abstract class AbstractTerminalModel implements TerminalModel {
 		if (n < 0) {
 			throw new IllegalArgumentException("n must be positive");
 		}
-		int bufferSize = getBufferSize();
+		int rows = getRows();
 		int cursorRow = getCursorRow() + n;
-		if (cursorRow >= bufferSize) {
-			cursorRow = bufferSize - 1;
+		if (cursorRow >= rows) {
+			cursorRow = rows - 1;
 		}
 		setCursorRow(cursorRow);
 	}
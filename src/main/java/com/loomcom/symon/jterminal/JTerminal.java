@@ -26,10 +26,12 @@ package com.loomcom.symon.jterminal;
 
 import com.loomcom.symon.jterminal.vt100.Vt100TerminalModel;
 import java.awt.BorderLayout;
+import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
+import java.awt.Rectangle;
 import java.awt.event.AdjustmentEvent;
 import java.awt.event.AdjustmentListener;
 import javax.swing.JComponent;
@@ -73,6 +75,22 @@ public class JTerminal extends JComponent {
 	 */
 	private int maxDescender;
 
+	/**
+	 * True if every character is as wide as a cell, so that a run of
+	 * characters can be drawn with a single call
+	 */
+	private boolean monospaced;
+
+	/**
+	 * The characters of the row being painted, with empty cells as spaces
+	 */
+	private char[] rowChars = new char[0];
+
+	/**
+	 * The cursor position when the terminal was last scheduled for repainting
+	 */
+	private int paintedCursorRow, paintedCursorColumn;
+
 	public JTerminal(Font font) {
 		this(new Vt100TerminalModel(), font);
 	}
@@ -120,12 +138,33 @@ public class JTerminal extends JComponent {
 		print(str.concat("\r\n"));
 	}
 
+	/**
+	 * Prints a string. This may be called from any thread; the model is
+	 * locked while it is changed and while it is painted.
+	 * @param str The string to print.
+	 */
 	public void print(String str) {
-		model.print(str);
+		synchronized (model) {
+			model.print(str);
+		}
+	}
+
+	/**
+	 * Prints characters from an array, e.g. a buffer of output collected
+	 * from a serial port.
+	 * @param chars The characters to print.
+	 * @param offset The index of the first character.
+	 * @param length The number of characters.
+	 */
+	public void print(char[] chars, int offset, int length) {
+		synchronized (model) {
+			model.print(chars, offset, length);
+		}
 	}
 
 	public Dimension getMinimumSize() {
-		return new Dimension(model.getColumns() * cellWidth + borderWidth * 2,
+		int scrollBarWidth = scrollBar == null ? 0 : scrollBar.getPreferredSize().width;
+		return new Dimension(model.getColumns() * cellWidth + borderWidth * 2 + scrollBarWidth,
 				model.getRows() * cellHeight + borderWidth * 2);
 	}
 
@@ -137,39 +176,159 @@ public class JTerminal extends JComponent {
 		return getMinimumSize();
 	}
 
+	/**
+	 * Schedules a repaint of only the cells that have changed since the last
+	 * call, and of the old and new cursor positions. This must be called on
+	 * the event dispatch thread.
+	 */
+	public void repaintDirty() {
+		int linesBack = getLinesBack();
+		synchronized (model) {
+			int cursorRow = model.getCursorRow();
+			int cursorColumn = model.getCursorColumn();
+			if (cursorRow != paintedCursorRow || cursorColumn != paintedCursorColumn) {
+				repaintCells(paintedCursorRow + linesBack, paintedCursorColumn, paintedCursorColumn + 1);
+				repaintCells(cursorRow + linesBack, cursorColumn, cursorColumn + 1);
+				paintedCursorRow = cursorRow;
+				paintedCursorColumn = cursorColumn;
+			}
+			int rows = model.getRows();
+			for (int row = 0; row < rows; row++) {
+				int start = model.getDirtyStart(row);
+				int end = model.getDirtyEnd(row);
+				if (start < end) {
+					if (linesBack > 0) {
+						// The scrollback is shown, and may have moved
+						repaint();
+						break;
+					}
+					repaintCells(row, start, end);
+				}
+			}
+			model.clearDirty();
+		}
+	}
+
+	private void repaintCells(int y, int start, int end) {
+		if (y >= 0 && y < model.getRows()) {
+			repaint(start * cellWidth + borderWidth, y * cellHeight + borderWidth,
+					(end - start) * cellWidth, cellHeight);
+		}
+	}
+
+	/**
+	 * The number of scrollback lines shown above the screen
+	 */
+	private int getLinesBack() {
+		return scrollBar == null ? 0 :
+				scrollBar.getMaximum() - scrollBar.getVisibleAmount() - scrollBar.getValue();
+	}
+
 	public void paint(Graphics g) {
 		g.setFont(font);
 
 		int width = model.getColumns();
-		int height = model.getBufferSize();
+		int height = model.getRows();
+
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) {
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		}
+		clip = clip.intersection(new Rectangle(0, 0, width * cellWidth + borderWidth * 2,
+				height * cellHeight + borderWidth * 2));
 
 		g.setColor(model.getDefaultBackgroundColor());
-		g.fillRect(0, 0, width * cellWidth + borderWidth * 2, height * cellHeight + borderWidth * 2);
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
 
-		int start = scrollBar == null ? 0 : scrollBar.getValue();
-		for (int y = start; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				TerminalCell cell = model.getCell(x, y);
-				boolean cursorHere = (model.getCursorRow() == y) && (model.getCursorColumn() == x);
+		int firstRow = Math.max(0, (clip.y - borderWidth) / cellHeight);
+		int lastRow = Math.min(height, (clip.y + clip.height - borderWidth + cellHeight - 1) / cellHeight);
+		int firstColumn = Math.max(0, (clip.x - borderWidth) / cellWidth);
+		int lastColumn = Math.min(width, (clip.x + clip.width - borderWidth + cellWidth - 1) / cellWidth);
 
-				if ((cursorHere) && (cell == null)) {
-					cell = new TerminalCell(' ', model.getDefaultBackgroundColor(), model.getDefaultForegroundColor());
+		int linesBack = getLinesBack();
+		synchronized (model) {
+			if (rowChars.length < width) {
+				rowChars = new char[width];
+			}
+			for (int y = firstRow; y < lastRow; y++) {
+				int row = y - linesBack;
+				if (row >= -model.getScrollbackSize()) {
+					paintRow(g, row, y, firstColumn, lastColumn);
 				}
+			}
+		}
 
-				if (cell != null) {
-					int px = x * cellWidth + borderWidth;
-					int py = (y - start) * cellHeight + borderWidth;
+		paintChildren(g);
+	}
 
-					g.setColor(cursorHere ? cell.getForegroundColor() : cell.getBackgroundColor());
-					g.fillRect(px, py, cellWidth, cellHeight);
+	/**
+	 * Paints a range of columns of one row. Backgrounds and text are each
+	 * drawn in runs of the same color.
+	 */
+	private void paintRow(Graphics g, int row, int y, int start, int end) {
+		Color defaultBackground = model.getDefaultBackgroundColor();
+		int py = y * cellHeight + borderWidth;
+		int baseline = py + cellHeight - maxDescender;
+
+		for (int x = start; x < end; x++) {
+			char ch = model.getCharacter(x, row);
+			rowChars[x] = ch == 0 ? ' ' : ch;
+		}
+
+		int x = start;
+		while (x < end) {
+			Color background = backgroundAt(x, row);
+			int runEnd = x + 1;
+			while (runEnd < end && background.equals(backgroundAt(runEnd, row))) {
+				runEnd++;
+			}
+			if (!background.equals(defaultBackground)) {
+				g.setColor(background);
+				g.fillRect(x * cellWidth + borderWidth, py, (runEnd - x) * cellWidth, cellHeight);
+			}
+			x = runEnd;
+		}
 
-					g.setColor(cursorHere ? cell.getBackgroundColor() : cell.getForegroundColor());
-					g.drawChars(new char[] { cell.getCharacter() }, 0, 1, px, py + cellHeight - maxDescender);
+		x = start;
+		while (x < end) {
+			if (rowChars[x] == ' ') {
+				x++;
+				continue;
+			}
+			Color foreground = model.getForegroundColor(x, row);
+			int runEnd = x + 1;
+			while (runEnd < end && (rowChars[runEnd] == ' ' || foreground.equals(model.getForegroundColor(runEnd, row)))) {
+				runEnd++;
+			}
+			g.setColor(foreground);
+			if (monospaced) {
+				g.drawChars(rowChars, x, runEnd - x, x * cellWidth + borderWidth, baseline);
+			} else {
+				for (int i = x; i < runEnd; i++) {
+					g.drawChars(rowChars, i, 1, i * cellWidth + borderWidth, baseline);
 				}
 			}
+			x = runEnd;
+		}
+
+		int cursorColumn = model.getCursorColumn();
+		if (row == model.getCursorRow() && cursorColumn >= start && cursorColumn < end) {
+			Color background = backgroundAt(cursorColumn, row);
+			Color foreground = model.getCharacter(cursorColumn, row) == 0 ?
+					model.getDefaultForegroundColor() : model.getForegroundColor(cursorColumn, row);
+			int px = cursorColumn * cellWidth + borderWidth;
+			g.setColor(foreground);
+			g.fillRect(px, py, cellWidth, cellHeight);
+			g.setColor(background);
+			g.drawChars(rowChars, cursorColumn, 1, px, baseline);
 		}
 	}
 
+	private Color backgroundAt(int column, int row) {
+		return model.getCharacter(column, row) == 0 ?
+				model.getDefaultBackgroundColor() : model.getBackgroundColor(column, row);
+	}
+
 	private void init() {
 		setLayout(new BorderLayout(0, 0));
 
@@ -177,7 +336,9 @@ public class JTerminal extends JComponent {
 		int bufferSize = model.getBufferSize();
 
 		if (bufferSize > rows) {
-			scrollBar = new JScrollBar(1, 0, rows, 0, bufferSize + 1);
+			// The scroll bar starts at the bottom, showing the screen
+			scrollBar = new JScrollBar(JScrollBar.VERTICAL, bufferSize - rows, rows, 0, bufferSize);
+			scrollBar.setFocusable(false);
 			scrollBar.addAdjustmentListener(new AdjustmentListener() {
 				public void adjustmentValueChanged(AdjustmentEvent evt) {
 					repaint();
@@ -194,5 +355,6 @@ public class JTerminal extends JComponent {
 		cellWidth = metrics.charWidth('W');
 		cellHeight = metrics.getHeight();
 		maxDescender = metrics.getMaxDescent();
+		monospaced = metrics.charWidth('i') == cellWidth && metrics.charWidth('.') == cellWidth;
 	}
 }
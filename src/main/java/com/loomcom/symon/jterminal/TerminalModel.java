@@ -79,7 +79,8 @@ public interface TerminalModel {
 	public void moveCursorUp(int n);
 
 	/**
-	 * Sets a cell.
+	 * Sets a cell. Rows are counted from the top of the screen; negative rows,
+	 * down to {@code -getScrollbackSize()}, are lines in the scrollback.
 	 * @param column The column.
 	 * @param row The row.
 	 * @param cell The cell.
@@ -89,15 +90,46 @@ public interface TerminalModel {
 	public void setCell(int column, int row, TerminalCell cell);
 
 	/**
-	 * Gets a cell.
+	 * Gets a cell. Rows are numbered as for {@link #setCell(int, int,
+	 * TerminalCell)}.
 	 * @param column The column.
 	 * @param row The row.
-	 * @return The cell.
+	 * @return The cell, or {@code null} if the cell is empty.
 	 * @throws IndexOutOfBoundsException if the column and/or row number(s) are
 	 * out of bounds.
 	 */
 	public TerminalCell getCell(int column, int row);
 
+	/**
+	 * Gets the character in a cell without creating a {@link TerminalCell}.
+	 * @param column The column.
+	 * @param row The row.
+	 * @return The character, or zero if the cell is empty.
+	 * @throws IndexOutOfBoundsException if the column and/or row number(s) are
+	 * out of bounds.
+	 */
+	public char getCharacter(int column, int row);
+
+	/**
+	 * Gets the background color of a cell.
+	 * @param column The column.
+	 * @param row The row.
+	 * @return The background color.
+	 * @throws IndexOutOfBoundsException if the column and/or row number(s) are
+	 * out of bounds.
+	 */
+	public Color getBackgroundColor(int column, int row);
+
+	/**
+	 * Gets the foreground color of a cell.
+	 * @param column The column.
+	 * @param row The row.
+	 * @return The foreground color.
+	 * @throws IndexOutOfBoundsException if the column and/or row number(s) are
+	 * out of bounds.
+	 */
+	public Color getForegroundColor(int column, int row);
+
 	/**
 	 * Prints the specified string to the terminal at the cursor position,
 	 * interpreting any escape sequences/special ASCII codes the model may
@@ -107,6 +139,16 @@ public interface TerminalModel {
 	 */
 	public void print(String str);
 
+	/**
+	 * Prints characters from an array to the terminal at the cursor position,
+	 * in the same way as {@link #print(String)}. An escape sequence may be
+	 * split across calls.
+	 * @param chars The array holding the characters.
+	 * @param offset The index of the first character.
+	 * @param length The number of characters.
+	 */
+	public void print(char[] chars, int offset, int length);
+
 	/**
 	 * Gets the number of columns.
 	 * @return The number of columns.
@@ -120,11 +162,41 @@ public interface TerminalModel {
 	public int getRows();
 
 	/**
-	 * Gets the buffer size.
+	 * Gets the buffer size: the number of rows plus the most lines of
+	 * scrollback that will be kept.
 	 * @return The buffer size.
 	 */
 	public int getBufferSize();
 
+	/**
+	 * Gets the number of lines currently held in the scrollback.
+	 * @return The number of scrollback lines.
+	 */
+	public int getScrollbackSize();
+
+	/**
+	 * Gets the first column of a screen row that has changed since the last
+	 * call to {@link #clearDirty()}. Scrolling changes every row.
+	 * @param row The row.
+	 * @return The first changed column, or a value not less than
+	 * {@link #getDirtyEnd(int)} if the row is unchanged.
+	 */
+	public int getDirtyStart(int row);
+
+	/**
+	 * Gets one past the last column of a screen row that has changed since
+	 * the last call to {@link #clearDirty()}.
+	 * @param row The row.
+	 * @return The end of the changed columns.
+	 */
+	public int getDirtyEnd(int row);
+
+	/**
+	 * Marks every row as unchanged, typically once the changes have been
+	 * scheduled for painting.
+	 */
+	public void clearDirty();
+
 	/**
 	 * Gets the cursor row.
 	 * @return The cursor row.
@@ -22,20 +22,43 @@
 
 package com.loomcom.symon.jterminal.vt100;
 
-import java.io.IOException;
-import java.io.Reader;
-import java.io.StringReader;
-
 /**
- * A class which parses {@link AnsiControlSequence}s from {@link String}(s).
+ * A class which parses ANSI control sequences from a stream of characters.
+ * <p>
+ * The parser is a state machine, so a sequence may be split across any
+ * number of calls to {@link #parse(char[], int, int)}. Numeric parameters are
+ * accumulated into an int array, and plain text is passed on as ranges of the
+ * caller's array, so parsing creates no objects.
  * @author Graham Edgecombe
  */
 public class AnsiControlSequenceParser {
 
 	/**
-	 * The multi-byte control sequence introducer.
+	 * The value of a parameter which was omitted, e.g. the first one in
+	 * <code>CSI ;5H</code>.
+	 */
+	public static final int DEFAULT_PARAMETER = -1;
+
+	/**
+	 * The most parameters kept for one sequence. Any more are ignored.
 	 */
-	private static final char[] MULTI_CSI = new char[] { 27, '[' };
+	public static final int MAX_PARAMETERS = 16;
+
+	/**
+	 * The largest value a parameter is allowed to reach.
+	 */
+	private static final int MAX_PARAMETER_VALUE = 9999;
+
+	/**
+	 * The escape character, which starts the multi-byte control sequence
+	 * introducer.
+	 */
+	private static final char ESCAPE = 27;
+
+	/**
+	 * The second character of the multi-byte control sequence introducer.
+	 */
+	private static final char MULTI_CSI = '[';
 
 	/**
 	 * The single-byte control sequence introducer.
@@ -43,114 +66,177 @@ public class AnsiControlSequenceParser {
 	private static final char SINGLE_CSI = 155;
 
 	/**
-	 * The buffer of data from the last call to {@link #parse()}. This is
-	 * populated with data if an escape sequence is not complete.
+	 * Parser states: reading text, after an escape character, and reading
+	 * the parameters of a control sequence.
 	 */
-	private StringBuilder buffer = new StringBuilder();
+	private static final int TEXT = 0;
+	private static final int ESCAPED = 1;
+	private static final int PARAMETERS = 2;
+
+	/**
+	 * An escape character which turned out not to introduce a control
+	 * sequence, for when it is no longer in the caller's array.
+	 */
+	private static final char[] ESCAPE_TEXT = { ESCAPE };
 
 	/**
 	 * The ANSI control sequence listener.
 	 */
-	private final AnsiControlSequenceListener listener;
+	private final AnsiStreamListener listener;
+
+	/**
+	 * The current state.
+	 */
+	private int state = TEXT;
+
+	/**
+	 * The parameters of the control sequence being parsed.
+	 */
+	private final int[] parameters = new int[MAX_PARAMETERS];
+
+	/**
+	 * The number of complete parameters.
+	 */
+	private int parameterCount;
+
+	/**
+	 * The parameter being parsed.
+	 */
+	private int parameter;
+
+	/**
+	 * Used to hold the characters of strings passed to {@link #parse(String)}.
+	 */
+	private char[] stringBuffer = new char[256];
 
 	/**
 	 * Creates the ANSI control sequence parser.
 	 * @param listener The listener.
 	 */
-	public AnsiControlSequenceParser(AnsiControlSequenceListener listener) {
+	public AnsiControlSequenceParser(AnsiStreamListener listener) {
 		this.listener = listener;
 	}
 
+	/**
+	 * Creates an ANSI control sequence parser which reports strings and
+	 * {@link AnsiControlSequence} objects.
+	 * @param listener The listener.
+	 */
+	public AnsiControlSequenceParser(final AnsiControlSequenceListener listener) {
+		this(new AnsiStreamListener() {
+			@Override
+			public void parsedControlSequence(char command, int[] parameters, int count) {
+				String[] array = new String[count];
+				for (int i = 0; i < count; i++) {
+					array[i] = parameters[i] == DEFAULT_PARAMETER ? "" : Integer.toString(parameters[i]);
+				}
+				listener.parsedControlSequence(new AnsiControlSequence(command, array));
+			}
+
+			@Override
+			public void parsedCharacters(char[] chars, int offset, int length) {
+				listener.parsedString(new String(chars, offset, length));
+			}
+		});
+	}
+
 	/**
 	 * Parses the specified string.
 	 * @param str The string to parse.
 	 */
 	public void parse(String str) {
-		if (buffer.length() > 0) {
-			str = buffer.toString().concat(str);
-			buffer = new StringBuilder();
-		}
-		Reader reader = new StringReader(str);
-		try {
-			try {
-				parse(reader);
-			} finally {
-				reader.close();
-			}
-		} catch (IOException ex) {
-			/* ignore */
+		int length = str.length();
+		if (length > stringBuffer.length) {
+			stringBuffer = new char[Math.max(length, stringBuffer.length * 2)];
 		}
+		str.getChars(0, length, stringBuffer, 0);
+		parse(stringBuffer, 0, length);
 	}
 
 	/**
-	 * Parses characters from the specified character reader.
-	 * @param reader The character reader.
-	 * @throws IOException if an I/O error occurs.
-	 */
-	private void parse(Reader reader) throws IOException {
-		StringBuilder text = new StringBuilder();
-		int character;
-		while ((character = reader.read()) != -1) {
-			boolean introducedControlSequence = false;
-			if (character == SINGLE_CSI) {
-				introducedControlSequence = true;
-			} else if (character == MULTI_CSI[0]) {
-				int nextCharacter = reader.read();
-				if (nextCharacter == -1) {
-					buffer.append((char) character);
-					break;
-				} else if (nextCharacter == MULTI_CSI[1]) {
-					introducedControlSequence = true;
+	 * Parses characters from an array.
+	 * @param chars The array holding the characters.
+	 * @param offset The index of the first character.
+	 * @param length The number of characters.
+	 */
+	public void parse(char[] chars, int offset, int length) {
+		int end = offset + length;
+		int textStart = offset;
+
+		for (int i = offset; i < end; i++) {
+			char character = chars[i];
+
+			switch (state) {
+			case TEXT:
+				if (character == SINGLE_CSI) {
+					flushText(chars, textStart, i);
+					startSequence();
+					textStart = i + 1;
+				} else if (character == ESCAPE) {
+					flushText(chars, textStart, i);
+					state = ESCAPED;
+					textStart = i + 1;
+				}
+				break;
+
+			case ESCAPED:
+				if (character == MULTI_CSI) {
+					startSequence();
+					textStart = i + 1;
 				} else {
-					text.append((char) character);
-					text.append((char) nextCharacter);
+					// Not a control sequence, so the escape character and
+					// this one are both printed.
+					if (i > offset) {
+						textStart = i - 1;
+					} else {
+						listener.parsedCharacters(ESCAPE_TEXT, 0, 1);
+						textStart = i;
+					}
+					state = TEXT;
 				}
-			} else {
-				text.append((char) character);
-			}
+				break;
 
-			if (introducedControlSequence) {
-				if (text.length() > 0) {
-					listener.parsedString(text.toString());
-					text = new StringBuilder();
+			case PARAMETERS:
+				if (character >= '0' && character <= '9') {
+					int value = parameter == DEFAULT_PARAMETER ? 0 : parameter;
+					parameter = Math.min(value * 10 + (character - '0'), MAX_PARAMETER_VALUE);
+				} else if (character == ';') {
+					endParameter();
+				} else if ((character >= 'a' && character <= 'z') || (character >= 'A' && character <= 'Z')) {
+					if (parameter != DEFAULT_PARAMETER || parameterCount > 0) {
+						endParameter();
+					}
+					listener.parsedControlSequence(character, parameters, parameterCount);
+					state = TEXT;
+					textStart = i + 1;
 				}
-				parseControlSequence(reader);
+				// Anything else, such as the '?' of a private sequence, is ignored.
+				break;
 			}
 		}
 
-		if (text.length() > 0) {
-			listener.parsedString(text.toString());
+		if (state == TEXT) {
+			flushText(chars, textStart, end);
 		}
 	}
 
-	/**
-	 * Parses a control sequence.
-	 * @param reader The character reader.
-	 * @throws IOException if an I/O error occurs.
-	 */
-	private void parseControlSequence(Reader reader) throws IOException {
-		boolean finishedSequence = false;
-		StringBuilder parameters = new StringBuilder();
-		int character;
-		while ((character = reader.read()) != -1) {
-			if ((character >= 'a' && character <= 'z') || (character >= 'A' && character <= 'Z')) {
-				String[] array = parameters.toString().split(";");
-				AnsiControlSequence seq = new AnsiControlSequence((char) character, array);
-				listener.parsedControlSequence(seq);
+	private void startSequence() {
+		state = PARAMETERS;
+		parameterCount = 0;
+		parameter = DEFAULT_PARAMETER;
+	}
 
-				finishedSequence = true;
-				break;
-			} else {
-				parameters.append((char) character);
-			}
+	private void endParameter() {
+		if (parameterCount < MAX_PARAMETERS) {
+			parameters[parameterCount++] = parameter;
 		}
-		if (!finishedSequence) {
-			// not an ideal solution if they used the two byte CSI, but it's
-			// easier and cleaner than keeping track of it
-			buffer.append((char) SINGLE_CSI);
-			buffer.append(parameters);
+		parameter = DEFAULT_PARAMETER;
+	}
+
+	private void flushText(char[] chars, int start, int end) {
+		if (end > start) {
+			listener.parsedCharacters(chars, start, end - start);
 		}
 	}
 
 }
-
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2009-2011 Graham Edgecombe.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to
+ * deal in the Software without restriction, including without limitation the
+ * rights to use, copy, modify, merge, publish, distribute, sublicense, and/or
+ * sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.jterminal.vt100;
+
+/**
+ * An interface which classes may use to listen to events from a
+ * {@link AnsiControlSequenceParser} without any objects being created.
+ * The arrays passed to these methods are owned by the caller and are only
+ * valid for the duration of the call.
+ */
+public interface AnsiStreamListener {
+
+	/**
+	 * Called when a control sequence has been parsed.
+	 * @param command The command character.
+	 * @param parameters The numeric parameters. An omitted parameter is
+	 * {@link AnsiControlSequenceParser#DEFAULT_PARAMETER}.
+	 * @param count The number of parameters.
+	 */
+	public void parsedControlSequence(char command, int[] parameters, int count);
+
+	/**
+	 * Called when a run of characters, which are not part of a control
+	 * sequence, has been parsed.
+	 * @param chars The array holding the characters.
+	 * @param offset The index of the first character.
+	 * @param length The number of characters.
+	 */
+	public void parsedCharacters(char[] chars, int offset, int length);
+
+}
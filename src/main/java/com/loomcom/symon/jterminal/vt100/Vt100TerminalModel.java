@@ -23,6 +23,7 @@
 package com.loomcom.symon.jterminal.vt100;
 
 import java.awt.Color;
+import java.util.Arrays;
 
 import com.loomcom.symon.jterminal.AbstractTerminalModel;
 import com.loomcom.symon.jterminal.TerminalCell;
@@ -37,11 +38,11 @@ import com.loomcom.symon.jterminal.bell.NopBellStrategy;
 public class Vt100TerminalModel extends AbstractTerminalModel {
 
 	/**
-	 * A {@link AnsiControlSequenceListener} which modifies the
+	 * A {@link AnsiStreamListener} which modifies the
 	 * {@link TerminalModel} appropriately when an event happens.
 	 * @author Graham Edgecombe
 	 */
-	private class Vt100Listener implements AnsiControlSequenceListener {
+	private class Vt100Listener implements AnsiStreamListener {
 
 		/**
 		 * The saved cursor row.
@@ -54,19 +55,13 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 		private int savedCursorColumn = -1;
 
 		@Override
-		public void parsedControlSequence(AnsiControlSequence seq) {
-			char command = seq.getCommand();
-			String[] parameters = seq.getParameters();
-
+		public void parsedControlSequence(char command, int[] parameters, int count) {
 			switch (command) {
 			case 'A':
 			case 'B':
 			case 'C':
 			case 'D':
-				int n = 1;
-				if (parameters.length == 1) {
-					n = Integer.parseInt(parameters[0]);
-				}
+				int n = parameter(parameters, count, 0, 1);
 				if (command == 'A') {
 					moveCursorUp(n);
 				} else if (command == 'B') {
@@ -79,10 +74,7 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 				break;
 			case 'E':
 			case 'F':
-				n = 1;
-				if (parameters.length == 1) {
-					n = Integer.parseInt(parameters[0]);
-				}
+				n = parameter(parameters, count, 0, 1);
 				if (command == 'E') {
 					moveCursorDown(n);
 				} else if (command == 'F') {
@@ -91,101 +83,67 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 				setCursorColumn(0);
 				break;
 			case 'G':
-				if (parameters.length == 1) {
-					n = Integer.parseInt(parameters[0]);
-					setCursorColumn(n - 1);
+				if (count == 1) {
+					setCursorColumn(clamp(parameter(parameters, count, 0, 1) - 1, columns));
 				}
 				break;
 			case 'H':
 			case 'f':
-				if (parameters.length == 2) {
-					n = 1;
-					int m = 1;
-					if (parameters[0].length() > 0) {
-						n = Integer.parseInt(parameters[0]);
-					}
-					if (parameters[1].length() > 0) {
-						m = Integer.parseInt(parameters[1]);
-					}
-					setCursorRow(n - 1);
-					setCursorColumn(m - 1);
-				}
+				setCursorRow(clamp(parameter(parameters, count, 0, 1) - 1, rows));
+				setCursorColumn(clamp(parameter(parameters, count, 1, 1) - 1, columns));
 				break;
 			case 'J':
-				n = 0;
-				if (parameters.length == 1) {
-					n = Integer.parseInt(parameters[0]);
-				}
+				n = parameter(parameters, count, 0, 0);
 				if (n == 0) {
-					int row = cursorRow;
-					int column = cursorColumn;
-					while(row < rows) {
-						while(column < columns) {
-							cells[row][column] = null;
-							column++;
-						}
-						column = 0;
-						row++;
+					eraseCells(cursorRow, cursorColumn, columns);
+					for (int row = cursorRow + 1; row < rows; row++) {
+						eraseCells(row, 0, columns);
 					}
 				} else if (n == 1) {
-					int row = cursorRow;
-					int column = cursorColumn;
-					while(row >= 0) {
-						while(column >= 0) {
-							cells[row][column] = null;
-							column--;
-						}
-						column = columns - 1;
-						row--;
+					for (int row = 0; row < cursorRow; row++) {
+						eraseCells(row, 0, columns);
 					}
+					eraseCells(cursorRow, 0, cursorColumn + 1);
 				} else if (n == 2) {
 					clear();
 				}
 				break;
 			case 'K':
-				n = 0;
-				if (parameters.length == 1) {
-					n = Integer.parseInt(parameters[0]);
-				}
+				n = parameter(parameters, count, 0, 0);
 				if (n == 0) {
-					for (int row = cursorRow; row < rows; row++) {
-						cells[row][cursorColumn] = null;
-					}
+					eraseCells(cursorRow, cursorColumn, columns);
 				} else if (n == 1) {
-					for (int row = cursorRow; row >= 0; row--) {
-						cells[row][cursorColumn] = null;
-					}
+					eraseCells(cursorRow, 0, cursorColumn + 1);
 				} else if (n == 2) {
-					for (int column = 0; column < columns; column++) {
-						cells[cursorRow][column] = null;
-					}
+					eraseCells(cursorRow, 0, columns);
 				}
 				break;
 			case 'm':
-				if (parameters.length == 0) {
-					parameters = new String[] { "0" };
-				}
-				for (String parameter : parameters) {
-					if (parameter.equals("0")) {
+				for (int i = 0; i < Math.max(count, 1); i++) {
+					int parameter = parameter(parameters, count, i, 0);
+					if (parameter == 0) {
 						foregroundColor = DEFAULT_FOREGROUND_COLOR;
 						backgroundColor = DEFAULT_BACKGROUND_COLOR;
 						backgroundBold = DEFAULT_BACKGROUND_BOLD;
 						foregroundBold = DEFAULT_FOREGROUND_BOLD;
-					} else if (parameter.equals("2")) {
+					} else if (parameter == 2) {
 						backgroundBold = true;
 						foregroundBold = true;
-					} else if (parameter.equals("22")) {
+					} else if (parameter == 22) {
 						backgroundBold = false;
 						foregroundBold = false;
-					} else if ((parameter.startsWith("3") || parameter.startsWith("4")) && parameter.length() == 2) {
-						int color = Integer.parseInt(parameter.substring(1));
-						if (parameter.startsWith("3")) {
-							foregroundColor = color;
-						} else if (parameter.startsWith("4")) {
-							backgroundColor = color;
-						}
+					} else if (parameter >= 30 && parameter <= 37) {
+						foregroundColor = parameter - 30;
+					} else if (parameter == 39) {
+						foregroundColor = DEFAULT_FOREGROUND_COLOR;
+					} else if (parameter >= 40 && parameter <= 47) {
+						backgroundColor = parameter - 40;
+					} else if (parameter == 49) {
+						backgroundColor = DEFAULT_BACKGROUND_COLOR;
 					}
 				}
+				attribute = attribute(foregroundBold ? foregroundColor + 8 : foregroundColor,
+						backgroundBold ? backgroundColor + 8 : backgroundColor);
 				break;
 			case 'u':
 				if (savedCursorColumn != -1 && savedCursorRow != -1) {
@@ -201,8 +159,10 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 		}
 
 		@Override
-		public void parsedString(String str) {
-			for (char ch : str.toCharArray()) {
+		public void parsedCharacters(char[] text, int offset, int length) {
+			int end = offset + length;
+			for (int i = offset; i < end; i++) {
+				char ch = text[i];
 				switch (ch) {
 				case '\0':
 					continue;
@@ -217,7 +177,8 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 					continue;
 				case 127:
 					if (cursorColumn > 0) {
-						cells[cursorRow][--cursorColumn] = null;
+						chars[offset(cursorRow) + --cursorColumn] = 0;
+						markDirty(cursorRow, cursorColumn, cursorColumn + 1);
 					}
 					continue;
 				case 7:
@@ -230,24 +191,37 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 					cursorRow++;
 				}
 
-				if (cursorRow >= bufferSize) {
-					for (int i = 1; i < bufferSize; i++) {
-						System.arraycopy(cells[i], 0, cells[i - 1], 0, columns);
-					}
-					for (int i = 0; i < columns; i++) {
-						cells[bufferSize - 1][i] = null;
-					}
+				if (cursorRow >= rows) {
+					scroll();
 					cursorRow--;
 				}
 
-				Color back = backgroundBold ? SgrColor.COLOR_BRIGHT[backgroundColor] : SgrColor.COLOR_NORMAL[backgroundColor];
-				Color fore = foregroundBold ? SgrColor.COLOR_BRIGHT[foregroundColor] : SgrColor.COLOR_NORMAL[foregroundColor];
 				if (ch != '\n') {
-					cells[cursorRow][cursorColumn++] = new TerminalCell(ch, back, fore);
+					int index = offset(cursorRow) + cursorColumn;
+					chars[index] = ch;
+					attributes[index] = attribute;
+					markDirty(cursorRow, cursorColumn, ++cursorColumn);
 				}
 			}
 		}
 
+		/**
+		 * Gets a parameter, or a default value if it was omitted.
+		 */
+		private int parameter(int[] parameters, int count, int index, int defaultValue) {
+			if (index >= count || parameters[index] == AnsiControlSequenceParser.DEFAULT_PARAMETER) {
+				return defaultValue;
+			}
+			return parameters[index];
+		}
+
+		/**
+		 * Limits a cursor position to the range 0 to limit - 1.
+		 */
+		private int clamp(int position, int limit) {
+			return Math.max(0, Math.min(position, limit - 1));
+		}
+
 	}
 
 	/**
@@ -288,7 +262,7 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 	/**
 	 * The ANSI control sequence listener.
 	 */
-	private final AnsiControlSequenceListener listener = this.new Vt100Listener();
+	private final AnsiStreamListener listener = this.new Vt100Listener();
 
 	/**
 	 * The ANSI control sequence parser.
@@ -301,9 +275,52 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 	private BellStrategy bellStrategy = new NopBellStrategy();
 
 	/**
-	 * The array of cells.
+	 * The character in each cell, or zero if the cell is empty. Lines are
+	 * stored one after another, {@code columns} characters each, in a ring
+	 * of {@code bufferSize} lines.
+	 */
+	private char[] chars;
+
+	/**
+	 * The packed attributes of each cell: the foreground palette index in the
+	 * low 16 bits and the background palette index in the high 16 bits.
+	 */
+	private int[] attributes;
+
+	/**
+	 * The colors referred to by cell attributes. The first 16 entries are the
+	 * normal and bright SGR colors, and any other colors passed to
+	 * {@link #setCell(int, int, TerminalCell)} are added after them.
 	 */
-	private TerminalCell[][] cells;
+	private Color[] palette;
+
+	/**
+	 * The number of colors in the palette.
+	 */
+	private int paletteSize;
+
+	/**
+	 * The ring index of the line at the top of the screen.
+	 */
+	private int top = 0;
+
+	/**
+	 * The number of lines above the top of the screen that have been scrolled
+	 * off and are still held in the buffer.
+	 */
+	private int scrollbackSize = 0;
+
+	/**
+	 * The first column of each screen row changed since the last call to
+	 * {@link #clearDirty()}, or {@code columns} if the row is unchanged.
+	 */
+	private int[] dirtyStart;
+
+	/**
+	 * One past the last changed column of each screen row, or zero if the row
+	 * is unchanged.
+	 */
+	private int[] dirtyEnd;
 
 	/**
 	 * The number of columns.
@@ -350,6 +367,11 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 	 */
 	private int backgroundColor = DEFAULT_BACKGROUND_COLOR;
 
+	/**
+	 * The packed attribute given to printed characters.
+	 */
+	private int attribute = attribute(DEFAULT_FOREGROUND_COLOR, DEFAULT_BACKGROUND_COLOR);
+
 	/**
 	 * Creates the terminal model with the default number of columns and rows,
 	 * and the default buffer size.
@@ -360,7 +382,8 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 
 	/**
 	 * Creates the terminal model with the specified number of columns and
-	 * rows. The buffer size is set to the number of rows.
+	 * rows. The buffer size is set to the number of rows, so no scrollback is
+	 * kept.
 	 * @param columns The number of columns.
 	 * @param rows The number of rows.
 	 * @throws IllegalArgumentException if the number of rows or columns is
@@ -372,10 +395,11 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 
 	/**
 	 * Creates the terminal model with the specified number of columns and rows
-	 * and the specified buffer size.
+	 * and the specified buffer size. Up to {@code bufferSize - rows} lines that
+	 * scroll off the top of the screen are kept as scrollback.
 	 * @param columns The number of columns.
 	 * @param rows The number of rows.
-	 * @param bufferSize The buffer size.
+	 * @param bufferSize The buffer size, in lines.
 	 * @throws IllegalArgumentException if the number of rows or columns is
 	 * negative, or if the buffer size is less than the number of rows.
 	 */
@@ -396,7 +420,120 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 	 * Initializes the terminal model.
 	 */
 	private void init() {
-		cells = new TerminalCell[bufferSize][columns];
+		chars = new char[bufferSize * columns];
+		attributes = new int[bufferSize * columns];
+		palette = new Color[32];
+		System.arraycopy(SgrColor.COLOR_NORMAL, 0, palette, 0, 8);
+		System.arraycopy(SgrColor.COLOR_BRIGHT, 0, palette, 8, 8);
+		paletteSize = 16;
+		Arrays.fill(attributes, attribute);
+		dirtyStart = new int[rows];
+		dirtyEnd = new int[rows];
+		markAllDirty();
+	}
+
+	/**
+	 * Packs foreground and background palette indices into an attribute.
+	 */
+	private static int attribute(int foreground, int background) {
+		return foreground | (background << 16);
+	}
+
+	/**
+	 * Gets the index in the cell arrays of the first cell of a row. The row
+	 * may be negative, down to {@code -scrollbackSize}.
+	 */
+	private int offset(int row) {
+		int line = top + row;
+		if (line >= bufferSize) {
+			line -= bufferSize;
+		} else if (line < 0) {
+			line += bufferSize;
+		}
+		return line * columns;
+	}
+
+	/**
+	 * Scrolls the screen up by one line. The top line becomes part of the
+	 * scrollback, or is dropped if the scrollback is full.
+	 */
+	private void scroll() {
+		if (++top == bufferSize) {
+			top = 0;
+		}
+		if (scrollbackSize < bufferSize - rows) {
+			scrollbackSize++;
+		}
+		eraseCells(rows - 1, 0, columns);
+		markAllDirty();
+	}
+
+	/**
+	 * Marks columns of a screen row, from start (inclusive) to end
+	 * (exclusive), as changed.
+	 */
+	private void markDirty(int row, int start, int end) {
+		if (start < dirtyStart[row]) {
+			dirtyStart[row] = start;
+		}
+		if (end > dirtyEnd[row]) {
+			dirtyEnd[row] = end;
+		}
+	}
+
+	/**
+	 * Marks the whole screen as changed.
+	 */
+	private void markAllDirty() {
+		Arrays.fill(dirtyStart, 0);
+		Arrays.fill(dirtyEnd, columns);
+	}
+
+	/**
+	 * Erases the cells of a screen row from the start column (inclusive) to
+	 * the end column (exclusive).
+	 */
+	private void eraseCells(int row, int start, int end) {
+		int offset = offset(row);
+		end = Math.min(end, columns);
+		if (start < end) {
+			Arrays.fill(chars, offset + start, offset + end, (char) 0);
+			Arrays.fill(attributes, offset + start, offset + end, attribute);
+			markDirty(row, start, end);
+		}
+	}
+
+	/**
+	 * Checks that a column and row are in range, allowing rows in the
+	 * scrollback.
+	 */
+	private void checkBounds(int column, int row) {
+		if (column < 0 || row < -scrollbackSize || column >= columns || row >= rows) {
+			throw new IndexOutOfBoundsException();
+		}
+	}
+
+	/**
+	 * Gets the palette index of a color, adding it to the palette if needed.
+	 */
+	private int colorIndex(Color color) {
+		for (int i = 0; i < paletteSize; i++) {
+			if (palette[i].equals(color)) {
+				return i;
+			}
+		}
+		if (paletteSize == palette.length) {
+			palette = Arrays.copyOf(palette, paletteSize * 2);
+		}
+		palette[paletteSize] = color;
+		return paletteSize++;
+	}
+
+	@Override
+	public void clear() {
+		for (int row = 0; row < rows; row++) {
+			eraseCells(row, 0, columns);
+		}
 	}
 
 	@Override
@@ -406,7 +543,7 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 
 	@Override
 	public void setCursorRow(int row) {
-		if (row < 0 || row >= bufferSize) {
+		if (row < 0 || row >= rows) {
 			throw new IllegalArgumentException("row out of range");
 		}
 		cursorRow = row;
@@ -427,18 +564,48 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 
 	@Override
 	public TerminalCell getCell(int column, int row) {
-		if (column < 0 || row < 0 || column >= columns || row >= bufferSize) {
-			throw new IndexOutOfBoundsException();
+		checkBounds(column, row);
+		int index = offset(row) + column;
+		char ch = chars[index];
+		if (ch == 0) {
+			return null;
 		}
-		return cells[row][column];
+		int packed = attributes[index];
+		return new TerminalCell(ch, palette[packed >>> 16], palette[packed & 0xFFFF]);
 	}
 
 	@Override
 	public void setCell(int column, int row, TerminalCell cell) {
-		if (column < 0 || row < 0 || column >= columns || row >= bufferSize) {
-			throw new IndexOutOfBoundsException();
+		checkBounds(column, row);
+		int index = offset(row) + column;
+		if (cell == null) {
+			chars[index] = 0;
+			attributes[index] = attribute;
+		} else {
+			chars[index] = cell.getCharacter();
+			attributes[index] = attribute(colorIndex(cell.getForegroundColor()), colorIndex(cell.getBackgroundColor()));
+		}
+		if (row >= 0) {
+			markDirty(row, column, column + 1);
 		}
-		cells[row][column] = cell;
+	}
+
+	@Override
+	public char getCharacter(int column, int row) {
+		checkBounds(column, row);
+		return chars[offset(row) + column];
+	}
+
+	@Override
+	public Color getBackgroundColor(int column, int row) {
+		checkBounds(column, row);
+		return palette[attributes[offset(row) + column] >>> 16];
+	}
+
+	@Override
+	public Color getForegroundColor(int column, int row) {
+		checkBounds(column, row);
+		return palette[attributes[offset(row) + column] & 0xFFFF];
 	}
 
 	@Override
@@ -449,6 +616,11 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 		parser.parse(str);
 	}
 
+	@Override
+	public void print(char[] chars, int offset, int length) {
+		parser.parse(chars, offset, length);
+	}
+
 	@Override
 	public int getColumns() {
 		return columns;
@@ -464,6 +636,27 @@ public class Vt100TerminalModel extends AbstractTerminalModel {
 		return bufferSize;
 	}
 
+	@Override
+	public int getScrollbackSize() {
+		return scrollbackSize;
+	}
+
+	@Override
+	public int getDirtyStart(int row) {
+		return dirtyStart[row];
+	}
+
+	@Override
+	public int getDirtyEnd(int row) {
+		return dirtyEnd[row];
+	}
+
+	@Override
+	public void clearDirty() {
+		Arrays.fill(dirtyStart, columns);
+		Arrays.fill(dirtyEnd, 0);
+	}
+
 	@Override
 	public BellStrategy getBellStrategy() {
 		return bellStrategy;
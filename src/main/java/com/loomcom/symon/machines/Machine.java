@@ -27,6 +27,7 @@ package com.loomcom.symon.machines;
 import com.loomcom.symon.Bus;
 import com.loomcom.symon.Cpu;
 import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.devices.BitmapFramebuffer;
 import com.loomcom.symon.devices.Crtc;
 import com.loomcom.symon.devices.Memory;
 import com.loomcom.symon.devices.Pia;
@@ -47,6 +48,8 @@ public interface Machine {
     
     Crtc getCrtc();
     
+    BitmapFramebuffer getFramebuffer();
+    
     Memory getRom();
     
     void setRom(Memory rom) throws MemoryRangeException;
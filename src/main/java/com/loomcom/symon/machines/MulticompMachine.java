@@ -28,6 +28,7 @@ import com.loomcom.symon.Bus;
 import com.loomcom.symon.Cpu;
 import com.loomcom.symon.devices.Acia;
 import com.loomcom.symon.devices.Acia6850;
+import com.loomcom.symon.devices.BitmapFramebuffer;
 import com.loomcom.symon.devices.Crtc;
 import com.loomcom.symon.devices.Memory;
 import com.loomcom.symon.devices.Pia;
@@ -125,6 +126,11 @@ public class MulticompMachine implements Machine {
         return null;
     }
 
+    @Override
+    public BitmapFramebuffer getFramebuffer() {
+        return null;
+    }
+
     @Override
     public Memory getRom() {
         return rom;
@@ -27,6 +27,7 @@ package com.loomcom.symon.machines;
 import com.loomcom.symon.Bus;
 import com.loomcom.symon.Cpu;
 import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.devices.BitmapFramebuffer;
 import com.loomcom.symon.devices.Crtc;
 import com.loomcom.symon.devices.Memory;
 import com.loomcom.symon.devices.Pia;
@@ -85,6 +86,11 @@ public class SimpleMachine implements Machine {
         return null;
     }
 
+    @Override
+    public BitmapFramebuffer getFramebuffer() {
+        return null;
+    }
+
     @Override
     public Memory getRom() {
         return null;
@@ -55,6 +55,9 @@ public class SymonMachine implements Machine {
     // CRTC at $9000-$9001
     private static final int CRTC_BASE = 0x9000;
 
+    // Bitmap framebuffer registers at $9800, video memory window at $A000-$BFFF
+    private static final int FRAMEBUFFER_BASE = 0x9800;
+
     // 16KB ROM at $C000-$FFFF
     private static final int ROM_BASE = 0xC000;
     private static final int ROM_SIZE = 0x4000;
@@ -66,6 +69,7 @@ public class SymonMachine implements Machine {
     private final Acia   acia;
     private final Pia    pia;
     private final Crtc   crtc;
+    private final BitmapFramebuffer framebuffer;
     private final Memory ram;
     private       Memory rom;
 
@@ -77,12 +81,14 @@ public class SymonMachine implements Machine {
         this.pia = new Via6522(PIA_BASE);
         this.acia = new Acia6551(ACIA_BASE);
         this.crtc = new Crtc(CRTC_BASE, ram);
+        this.framebuffer = new BitmapFramebuffer(FRAMEBUFFER_BASE);
 
         bus.addCpu(cpu);
         bus.addDevice(ram);
         bus.addDevice(pia);
         bus.addDevice(acia);
         bus.addDevice(crtc);
+        bus.addDevice(framebuffer);
         
         // TODO: Make this configurable, of course.
         File romImage = new File("rom.bin");
@@ -128,6 +134,11 @@ public class SymonMachine implements Machine {
         return crtc;
     }
 
+    @Override
+    public BitmapFramebuffer getFramebuffer() {
+        return framebuffer;
+    }
+
     @Override
     public Memory getRom() {
         return rom;
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.metrics;
+
+import com.loomcom.symon.Cpu;
+
+/**
+ * Exposes a CPU's counters over JMX. The counters themselves are plain fields
+ * owned by the CPU thread; this class only reads them, and derives rates from
+ * the change between two samples. An interval in which the counters went
+ * backwards, because the CPU was reset, only sets a new baseline.
+ */
+public class CpuMetrics implements CpuMetricsMBean, Sampled {
+
+    private final Cpu cpu;
+
+    private long lastSampleNs;
+    private long lastInstructions;
+    private long lastCycles;
+    private long lastIrqs;
+
+    private volatile double effectiveClockMHz;
+    private volatile double mips;
+    private volatile double irqRate;
+
+    public CpuMetrics(Cpu cpu) {
+        this.cpu = cpu;
+    }
+
+    @Override
+    public void sample(long nowNs) {
+        long instructions = getInstructions();
+        long cycles = getCycles();
+        long irqs = getIrqCount();
+
+        // A CPU reset zeroes its counters. Take this sample as the new
+        // baseline and keep the previous rates rather than report negative
+        // ones for the interval.
+        boolean resync = instructions < lastInstructions || cycles < lastCycles ||
+                         irqs < lastIrqs;
+
+        if (lastSampleNs != 0 && !resync) {
+            double elapsedUs = (nowNs - lastSampleNs) / 1000.0;
+            effectiveClockMHz = (cycles - lastCycles) / elapsedUs;
+            mips = (instructions - lastInstructions) / elapsedUs;
+            irqRate = (irqs - lastIrqs) * 1000000.0 / elapsedUs;
+        }
+
+        lastSampleNs = nowNs;
+        lastInstructions = instructions;
+        lastCycles = cycles;
+        lastIrqs = irqs;
+    }
+
+    public long getInstructions() {
+        return cpu.getCpuState().stepCounter;
+    }
+
+    public long getCycles() {
+        return cpu.getCpuState().cycleCounter;
+    }
+
+    public double getTargetClockMHz() {
+        return cpu.getClockFrequency() / 1000000.0;
+    }
+
+    public double getEffectiveClockMHz() {
+        return effectiveClockMHz;
+    }
+
+    public double getMips() {
+        return mips;
+    }
+
+    public long getIrqCount() {
+        return cpu.getIrqCount();
+    }
+
+    public long getNmiCount() {
+        return cpu.getNmiCount();
+    }
+
+    public double getIrqRate() {
+        return irqRate;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.metrics;
+
+/**
+ * CPU execution counters and rates, as seen by JMX clients.
+ */
+public interface CpuMetricsMBean {
+
+    long getInstructions();
+
+    long getCycles();
+
+    /**
+     * @return The clock rate the CPU is paced to, or 0 if unthrottled.
+     */
+    double getTargetClockMHz();
+
+    /**
+     * @return Simulated cycles per microsecond over the last sample interval.
+     */
+    double getEffectiveClockMHz();
+
+    /**
+     * @return Millions of instructions per second over the last sample interval.
+     */
+    double getMips();
+
+    long getIrqCount();
+
+    long getNmiCount();
+
+    /**
+     * @return IRQs taken per second over the last sample interval.
+     */
+    double getIrqRate();
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.metrics;
+
+import com.loomcom.symon.devices.Device;
+
+/**
+ * Exposes the Bus read and write counts of a device over JMX.
+ */
+public class DeviceMetrics implements DeviceMetricsMBean, Sampled {
+
+    private final Device device;
+
+    private long lastSampleNs;
+    private long lastReads;
+    private long lastWrites;
+
+    private volatile double readRate;
+    private volatile double writeRate;
+
+    public DeviceMetrics(Device device) {
+        this.device = device;
+    }
+
+    @Override
+    public void sample(long nowNs) {
+        long reads = getReads();
+        long writes = getWrites();
+
+        if (lastSampleNs != 0) {
+            double elapsedSeconds = (nowNs - lastSampleNs) / 1000000000.0;
+            readRate = (reads - lastReads) / elapsedSeconds;
+            writeRate = (writes - lastWrites) / elapsedSeconds;
+        }
+
+        lastSampleNs = nowNs;
+        lastReads = reads;
+        lastWrites = writes;
+    }
+
+    public String getName() {
+        return device.toString();
+    }
+
+    public long getReads() {
+        return device.getBusReadCount();
+    }
+
+    public long getWrites() {
+        return device.getBusWriteCount();
+    }
+
+    public double getReadRate() {
+        return readRate;
+    }
+
+    public double getWriteRate() {
+        return writeRate;
+    }
+}
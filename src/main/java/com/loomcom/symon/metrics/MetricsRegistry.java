@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.metrics;
+
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.SdController;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registers MBeans for a machine's CPU and bus devices, so that a local JMX
+ * client such as JConsole or VisualVM can watch the simulator run, and
+ * samples them once a second to derive rates.
+ * <p>
+ * The MBeans are named <code>com.loomcom.symon:type=Cpu,machine=...</code> and
+ * <code>com.loomcom.symon:type=Device,machine=...,name=...</code>.
+ */
+public class MetricsRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsRegistry.class);
+
+    public static final String DOMAIN = "com.loomcom.symon";
+
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+
+    private final MBeanServer server;
+    private final List<ObjectName> names = new ArrayList<>();
+    private final List<Sampled> sampled = new ArrayList<>();
+    private ScheduledExecutorService sampler;
+
+    public MetricsRegistry() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public MetricsRegistry(MBeanServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Register MBeans for a CPU and every device on its bus, and start sampling.
+     *
+     * @param machineName The name used to tell machines apart.
+     * @param cpu         The CPU.
+     * @param bus         The bus the devices are attached to.
+     */
+    public synchronized void register(String machineName, Cpu cpu, Bus bus) throws JMException {
+        String machine = uniqueMachineKey(machineName);
+
+        CpuMetrics cpuMetrics = new CpuMetrics(cpu);
+        register(new ObjectName(DOMAIN + ":type=Cpu,machine=" + machine), cpuMetrics, cpuMetrics);
+
+        for (Device device : bus.getDevices()) {
+            DeviceMetrics metrics;
+            if (device instanceof Acia) {
+                metrics = new AciaMetrics((Acia) device);
+            } else if (device instanceof SdController) {
+                metrics = new SdControllerMetrics((SdController) device);
+            } else {
+                metrics = new DeviceMetrics(device);
+            }
+            register(new ObjectName(DOMAIN + ":type=Device,machine=" + machine +
+                                    ",name=" + ObjectName.quote(device.toString())), metrics, metrics);
+        }
+
+        if (sampler == null) {
+            sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "symon-metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sampler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    sample();
+                }
+            }, 0, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sample every registered MBean now. This normally happens once a second.
+     */
+    public synchronized void sample() {
+        long now = System.nanoTime();
+        for (Sampled metrics : sampled) {
+            metrics.sample(now);
+        }
+    }
+
+    /**
+     * @return The names of the registered MBeans.
+     */
+    public synchronized List<ObjectName> getNames() {
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Unregister all MBeans and stop sampling.
+     */
+    public synchronized void unregister() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+        for (ObjectName name : names) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException ex) {
+                logger.warn("Unable to unregister MBean {}", name);
+            }
+        }
+        names.clear();
+        sampled.clear();
+    }
+
+    private void register(ObjectName name, Object mbean, Sampled metrics) throws JMException {
+        server.registerMBean(mbean, name);
+        names.add(name);
+        sampled.add(metrics);
+    }
+
+    /*
+     * Several simulators can share a JVM, so add a suffix to repeated names.
+     */
+    private String uniqueMachineKey(String machineName) throws JMException {
+        String key = ObjectName.quote(machineName);
+        int instance = 1;
+        while (server.isRegistered(new ObjectName(DOMAIN + ":type=Cpu,machine=" + key))) {
+            key = ObjectName.quote(machineName + " #" + (++instance));
+        }
+        return key;
+    }
+}
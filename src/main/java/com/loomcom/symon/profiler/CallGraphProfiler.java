@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.profiler;
+
+import com.loomcom.symon.SymbolTable;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attributes cycles to call paths by keeping a shadow call stack next to the
+ * guest's own stack.
+ * <p>
+ * JSR, BRK, IRQ and NMI push a frame; every frame remembers the stack pointer
+ * just after its return address was pushed. Frames are popped by watching the
+ * stack pointer rather than by matching RTS and RTI: whenever the stack
+ * pointer rises above a frame's entry stack pointer, that frame's return
+ * address is being pulled and the frame is gone. This handles the usual
+ * stack tricks sensibly:
+ * <ul>
+ * <li>A routine that discards its return address with PLA/PLA returns to its
+ * caller's frame at that point.</li>
+ * <li>Pushing an address and using RTS as a computed jump stays in the same
+ * frame, because the stack pointer does not rise above the frame's entry.</li>
+ * <li>Resetting the stack with TXS unwinds every frame above the new stack
+ * pointer.</li>
+ * </ul>
+ * Cycles are attributed to a call tree, so that the collapsed stacks read by
+ * flame graph tools, and inclusive and exclusive cycles per routine, can be
+ * derived after the run.
+ * <p>
+ * The public methods are synchronized, so the tree can be reported on or
+ * reset from the user interface while the CPU is running.
+ */
+public class CallGraphProfiler {
+
+    /* Frame kinds */
+    public static final int CALL = 0;
+    public static final int BRK = 1;
+    public static final int IRQ = 2;
+    public static final int NMI = 3;
+
+    private static final String[] KIND_PREFIXES = {"", "BRK:", "IRQ:", "NMI:"};
+
+    /* Deeper than any stack that fits in page 1 */
+    private static final int MAX_DEPTH = 256;
+
+    /**
+     * Cycles and calls per routine, summed over all paths.
+     */
+    public static class RoutineStats {
+        public final int address;
+        public final int kind;
+        public long calls;
+        public long inclusiveCycles;
+        public long exclusiveCycles;
+
+        RoutineStats(int address, int kind) {
+            this.address = address;
+            this.kind = kind;
+        }
+    }
+
+    /*
+     * A node in the call tree: one routine, reached through one call path.
+     */
+    private static class Node {
+        final int address;
+        final int kind;
+        final Node parent;
+        final Map<Integer, Node> children = new HashMap<>();
+        long calls;
+        long selfCycles;
+
+        Node(int address, int kind, Node parent) {
+            this.address = address;
+            this.kind = kind;
+            this.parent = parent;
+        }
+
+        Node child(int address, int kind) {
+            Integer key = (kind << 16) | address;
+            Node child = children.get(key);
+            if (child == null) {
+                child = new Node(address, kind, this);
+                children.put(key, child);
+            }
+            return child;
+        }
+    }
+
+    private Node root = new Node(-1, CALL, null);
+
+    private SymbolTable symbolTable;
+
+    private final Node[] frames = new Node[MAX_DEPTH];
+    private final int[] entrySp = new int[MAX_DEPTH];
+    private int depth;
+
+    /**
+     * Record an instruction that has just been executed.
+     *
+     * @param opcode     The opcode of the instruction.
+     * @param pc         The program counter after the instruction.
+     * @param sp         The stack pointer after the instruction.
+     * @param clockSteps The number of cycles the instruction took.
+     */
+    public synchronized void instructionExecuted(int opcode, int pc, int sp, int clockSteps) {
+        current().selfCycles += clockSteps;
+
+        if (opcode == 0x20) {
+            push(CALL, pc, sp);
+        } else if (opcode == 0x00) {
+            push(BRK, pc, sp);
+        } else {
+            unwind(sp);
+        }
+    }
+
+    /**
+     * Record a hardware interrupt, after the CPU has pushed its state and
+     * loaded the vector.
+     *
+     * @param kind {@link #IRQ} or {@link #NMI}
+     * @param pc   The address of the interrupt handler.
+     * @param sp   The stack pointer after the interrupt.
+     */
+    public synchronized void interrupted(int kind, int pc, int sp) {
+        push(kind, pc, sp);
+    }
+
+    /**
+     * Set the symbols used to name routines in reports.
+     *
+     * @param symbolTable The symbols, or null for plain addresses.
+     */
+    public synchronized void setSymbolTable(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+    }
+
+    /**
+     * @return The current depth of the shadow call stack.
+     */
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return The entry address of the routine currently executing, or -1 if
+     *         no call has been seen.
+     */
+    public synchronized int getCurrentRoutine() {
+        return current().address;
+    }
+
+    /**
+     * Forget all recorded cycles and the shadow stack.
+     */
+    public synchronized void reset() {
+        root = new Node(-1, CALL, null);
+        depth = 0;
+    }
+
+    /**
+     * Write the call tree in the collapsed stack format read by flame graph
+     * tools: one line per call path, with the frames separated by semicolons,
+     * followed by the exclusive cycles spent on that path.
+     */
+    public synchronized void writeCollapsed(Writer out) throws IOException {
+        PrintWriter writer = new PrintWriter(out);
+        writeCollapsed(writer, root, new StringBuilder("root"));
+        writer.flush();
+        if (writer.checkError()) {
+            throw new IOException("Unable to write collapsed stacks");
+        }
+    }
+
+    private void writeCollapsed(PrintWriter writer, Node node, StringBuilder path) {
+        if (node.selfCycles > 0) {
+            writer.print(path);
+            writer.print(' ');
+            writer.print(node.selfCycles);
+            writer.print('\n');
+        }
+        int length = path.length();
+        for (Node child : node.children.values()) {
+            path.append(';').append(label(child.kind, child.address));
+            writeCollapsed(writer, child, path);
+            path.setLength(length);
+        }
+    }
+
+    /**
+     * @return Calls, inclusive and exclusive cycles for every routine seen,
+     *         sorted by inclusive cycles, highest first. Cycles in recursive
+     *         calls are only counted once towards the inclusive total.
+     */
+    public synchronized List<RoutineStats> getRoutineStats() {
+        Map<Integer, RoutineStats> stats = new HashMap<>();
+        Map<Integer, Integer> onPath = new HashMap<>();
+        for (Node child : root.children.values()) {
+            collectStats(child, stats, onPath);
+        }
+
+        List<RoutineStats> result = new ArrayList<>(stats.values());
+        Collections.sort(result, new Comparator<RoutineStats>() {
+            @Override
+            public int compare(RoutineStats a, RoutineStats b) {
+                return Long.compare(b.inclusiveCycles, a.inclusiveCycles);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Write the routine statistics as CSV, with a header row.
+     */
+    public synchronized void writeRoutineCsv(Writer out) throws IOException {
+        PrintWriter writer = new PrintWriter(out);
+        writer.print("routine,calls,inclusive_cycles,exclusive_cycles\n");
+        for (RoutineStats s : getRoutineStats()) {
+            writer.print(label(s.kind, s.address) + "," + s.calls + "," +
+                         s.inclusiveCycles + "," + s.exclusiveCycles + "\n");
+        }
+        writer.flush();
+        if (writer.checkError()) {
+            throw new IOException("Unable to write routine statistics");
+        }
+    }
+
+    /*
+     * Returns the node's inclusive cycles.
+     */
+    private long collectStats(Node node, Map<Integer, RoutineStats> stats, Map<Integer, Integer> onPath) {
+        Integer key = (node.kind << 16) | node.address;
+        RoutineStats s = stats.get(key);
+        if (s == null) {
+            s = new RoutineStats(node.address, node.kind);
+            stats.put(key, s);
+        }
+
+        Integer active = onPath.get(key);
+        onPath.put(key, active == null ? 1 : active + 1);
+
+        long inclusive = node.selfCycles;
+        for (Node child : node.children.values()) {
+            inclusive += collectStats(child, stats, onPath);
+        }
+
+        if (active == null) {
+            onPath.remove(key);
+            s.inclusiveCycles += inclusive;
+        } else {
+            onPath.put(key, active);
+        }
+        s.calls += node.calls;
+        s.exclusiveCycles += node.selfCycles;
+
+        return inclusive;
+    }
+
+    private String label(int kind, int address) {
+        String symbol = symbolTable == null ? null : symbolTable.symbolize(address);
+        if (symbol != null) {
+            return KIND_PREFIXES[kind] + symbol;
+        }
+        return KIND_PREFIXES[kind] + "$" + String.format("%04X", address);
+    }
+
+    private Node current() {
+        return depth == 0 ? root : frames[depth - 1];
+    }
+
+    private void push(int kind, int pc, int sp) {
+        unwind(sp);
+        if (depth == MAX_DEPTH) {
+            return;
+        }
+        Node node = current().child(pc, kind);
+        node.calls++;
+        frames[depth] = node;
+        entrySp[depth] = sp;
+        depth++;
+    }
+
+    private void unwind(int sp) {
+        while (depth > 0 && entrySp[depth - 1] < sp) {
+            depth--;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.profiler;
+
+import com.loomcom.symon.InstructionTable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Records which addresses of the 64K space were executed as the first byte of
+ * an instruction, and for conditional branches whether they were taken, not
+ * taken, or both.
+ * <p>
+ * Everything is kept in bitsets, so recording an instruction is a couple of
+ * shifts and an OR, and recordings from separate runs, e.g. of a regression
+ * suite run in parallel, can be combined with {@link #merge(CoverageRecorder)}
+ * or saved with {@link #write(OutputStream)} and combined later.
+ */
+public class CoverageRecorder implements InstructionTable {
+
+    private static final int WORDS = 0x10000 / 64;
+
+    /* Binary file header: "SYMC" and a format version */
+    private static final int FILE_MAGIC = 0x53594d43;
+    private static final int FILE_VERSION = 1;
+
+    private static final boolean[] conditionalBranch = new boolean[0x100];
+
+    static {
+        for (int op = 0; op < 0x100; op++) {
+            Mode mode = instructionModes[op];
+            // BRA ($80) is always taken, so it has no second outcome.
+            conditionalBranch[op] = (mode == Mode.REL && op != 0x80) || mode == Mode.ZPR;
+        }
+    }
+
+    private final long[] executed = new long[WORDS];
+    private final long[] taken = new long[WORDS];
+    private final long[] notTaken = new long[WORDS];
+
+    /**
+     * Record an instruction that has just been executed.
+     *
+     * @param pc     The address of the opcode.
+     * @param opcode The opcode.
+     * @param nextPc The program counter after the instruction.
+     */
+    public void instructionExecuted(int pc, int opcode, int nextPc) {
+        long bit = 1L << pc;
+        int word = pc >>> 6;
+        executed[word] |= bit;
+
+        if (conditionalBranch[opcode]) {
+            if (nextPc == ((pc + instructionSizes[opcode]) & 0xffff)) {
+                notTaken[word] |= bit;
+            } else {
+                taken[word] |= bit;
+            }
+        }
+    }
+
+    public boolean isExecuted(int address) {
+        return isSet(executed, address);
+    }
+
+    public boolean isBranchTaken(int address) {
+        return isSet(taken, address);
+    }
+
+    public boolean isBranchNotTaken(int address) {
+        return isSet(notTaken, address);
+    }
+
+    /**
+     * @return True if the opcode is a conditional branch, with a taken and a
+     *         not taken outcome.
+     */
+    public static boolean isConditionalBranch(int opcode) {
+        return conditionalBranch[opcode & 0xff];
+    }
+
+    /**
+     * @return The number of executed instruction addresses.
+     */
+    public int getExecutedCount() {
+        int count = 0;
+        for (long word : executed) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Add the coverage recorded by another recorder to this one.
+     */
+    public void merge(CoverageRecorder other) {
+        for (int i = 0; i < WORDS; i++) {
+            executed[i] |= other.executed[i];
+            taken[i] |= other.taken[i];
+            notTaken[i] |= other.notTaken[i];
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < WORDS; i++) {
+            executed[i] = 0;
+            taken[i] = 0;
+            notTaken[i] = 0;
+        }
+    }
+
+    /**
+     * Save the bitsets, so that runs can be merged later.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(FILE_MAGIC);
+        data.writeInt(FILE_VERSION);
+        for (long[] bits : new long[][] {executed, taken, notTaken}) {
+            for (long word : bits) {
+                data.writeLong(word);
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Load bitsets saved with {@link #write(OutputStream)}.
+     */
+    public static CoverageRecorder read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != FILE_MAGIC || data.readInt() != FILE_VERSION) {
+            throw new IOException("Not a coverage file");
+        }
+        CoverageRecorder recorder = new CoverageRecorder();
+        for (long[] bits : new long[][] {recorder.executed, recorder.taken, recorder.notTaken}) {
+            for (int i = 0; i < WORDS; i++) {
+                bits[i] = data.readLong();
+            }
+        }
+        return recorder;
+    }
+
+    private static boolean isSet(long[] bits, int address) {
+        return (bits[(address & 0xffff) >>> 6] & (1L << address)) != 0;
+    }
+}
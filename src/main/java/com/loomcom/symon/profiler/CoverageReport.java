@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.profiler;
+
+import com.loomcom.symon.util.AssemblerListing;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps recorded coverage onto the instructions and labels of an assembler
+ * listing, and writes it as an lcov tracefile or as a per-routine summary.
+ * <p>
+ * The listing itself is used as the lcov source file, so line numbers refer
+ * to the listing. Every label that is directly followed by an instruction is
+ * reported as a function, running up to the next such label.
+ */
+public class CoverageReport {
+
+    /**
+     * Coverage of one labelled routine.
+     */
+    public static class Routine {
+        public final String label;
+        public final int address;
+        public final int lineNumber;
+        public int instructions;
+        public int executed;
+
+        Routine(String label, int address, int lineNumber) {
+            this.label = label;
+            this.address = address;
+            this.lineNumber = lineNumber;
+        }
+    }
+
+    private final AssemblerListing listing;
+    private final CoverageRecorder recorder;
+    private final List<Routine> routines = new ArrayList<>();
+
+    private int linesFound;
+    private int linesHit;
+    private int branchesFound;
+    private int branchesHit;
+
+    public CoverageReport(AssemblerListing listing, CoverageRecorder recorder) {
+        this.listing = listing;
+        this.recorder = recorder;
+        analyze();
+    }
+
+    private void analyze() {
+        List<AssemblerListing.Line> lines = listing.getLines();
+        Routine routine = null;
+        String pendingLabel = null;
+        int pendingLine = 0;
+
+        for (AssemblerListing.Line line : lines) {
+            if (line.equate) {
+                continue;
+            }
+
+            if (line.label != null) {
+                pendingLabel = line.label;
+                pendingLine = line.lineNumber;
+            }
+
+            if (!line.code) {
+                if (line.size > 0) {
+                    pendingLabel = null;
+                }
+                continue;
+            }
+
+            if (pendingLabel != null) {
+                routine = new Routine(pendingLabel, line.address, pendingLine);
+                routines.add(routine);
+                pendingLabel = null;
+            }
+
+            boolean hit = recorder.isExecuted(line.address);
+            linesFound++;
+            if (hit) {
+                linesHit++;
+            }
+            if (routine != null) {
+                routine.instructions++;
+                if (hit) {
+                    routine.executed++;
+                }
+            }
+
+            if (CoverageRecorder.isConditionalBranch(line.opcode)) {
+                branchesFound += 2;
+                if (recorder.isBranchTaken(line.address)) {
+                    branchesHit++;
+                }
+                if (recorder.isBranchNotTaken(line.address)) {
+                    branchesHit++;
+                }
+            }
+        }
+    }
+
+    public List<Routine> getRoutines() {
+        return routines;
+    }
+
+    public int getLinesFound() {
+        return linesFound;
+    }
+
+    public int getLinesHit() {
+        return linesHit;
+    }
+
+    public int getBranchesFound() {
+        return branchesFound;
+    }
+
+    public int getBranchesHit() {
+        return branchesHit;
+    }
+
+    /**
+     * Write an lcov tracefile, as read by genhtml and most CI coverage tools.
+     *
+     * @param out      Where to write the tracefile.
+     * @param testName The test name recorded in the file.
+     */
+    public void writeLcov(Writer out, String testName) throws IOException {
+        PrintWriter writer = new PrintWriter(out);
+
+        writer.print("TN:" + testName + "\n");
+        writer.print("SF:" + listing.getName() + "\n");
+
+        int functionsHit = 0;
+        for (Routine routine : routines) {
+            writer.print("FN:" + routine.lineNumber + "," + routine.label + "\n");
+        }
+        for (Routine routine : routines) {
+            boolean hit = recorder.isExecuted(routine.address);
+            if (hit) {
+                functionsHit++;
+            }
+            writer.print("FNDA:" + (hit ? 1 : 0) + "," + routine.label + "\n");
+        }
+        writer.print("FNF:" + routines.size() + "\n");
+        writer.print("FNH:" + functionsHit + "\n");
+
+        for (AssemblerListing.Line line : listing.getLines()) {
+            if (!line.code || !CoverageRecorder.isConditionalBranch(line.opcode)) {
+                continue;
+            }
+            // lcov uses "-" for branches that were never reached.
+            String taken = "-";
+            String notTaken = "-";
+            if (recorder.isExecuted(line.address)) {
+                taken = recorder.isBranchTaken(line.address) ? "1" : "0";
+                notTaken = recorder.isBranchNotTaken(line.address) ? "1" : "0";
+            }
+            writer.print("BRDA:" + line.lineNumber + ",0,0," + taken + "\n");
+            writer.print("BRDA:" + line.lineNumber + ",0,1," + notTaken + "\n");
+        }
+        writer.print("BRF:" + branchesFound + "\n");
+        writer.print("BRH:" + branchesHit + "\n");
+
+        for (AssemblerListing.Line line : listing.getLines()) {
+            if (line.code) {
+                writer.print("DA:" + line.lineNumber + "," + (recorder.isExecuted(line.address) ? 1 : 0) + "\n");
+            }
+        }
+        writer.print("LF:" + linesFound + "\n");
+        writer.print("LH:" + linesHit + "\n");
+        writer.print("end_of_record\n");
+
+        writer.flush();
+        if (writer.checkError()) {
+            throw new IOException("Unable to write lcov tracefile");
+        }
+    }
+
+    /**
+     * Write a plain text summary with one line per routine.
+     */
+    public void writeSummary(Writer out) throws IOException {
+        PrintWriter writer = new PrintWriter(out);
+        writer.printf("%-24s %-6s %12s %7s\n", "Routine", "Addr", "Executed", "Cover");
+        for (Routine routine : routines) {
+            writer.printf("%-24s $%04X %5d / %4d %6.1f%%\n", routine.label, routine.address,
+                          routine.executed, routine.instructions,
+                          100.0 * routine.executed / routine.instructions);
+        }
+        writer.printf("Instructions: %d / %d, branches: %d / %d\n",
+                      linesHit, linesFound, branchesHit, branchesFound);
+        writer.flush();
+        if (writer.checkError()) {
+            throw new IOException("Unable to write coverage summary");
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.profiler;
+
+import com.loomcom.symon.Bus;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Counts, for every address on the bus, how often the CPU executed an
+ * instruction there, how many cycles those instructions took, and how often
+ * the CPU read and wrote the address.
+ * <p>
+ * The counters are flat arrays indexed by address, so recording an event is
+ * a single array increment. The profiler is attached with
+ * {@link com.loomcom.symon.Cpu#setHeatmapProfiler(HeatmapProfiler)}; while it
+ * is detached, the CPU and the bus only pay for a null check.
+ * <p>
+ * Reads include the CPU's own instruction and operand fetches. Reads made on
+ * behalf of the UI, e.g. by the memory window, are not counted.
+ */
+public class HeatmapProfiler {
+
+    public enum Metric {
+        EXECUTIONS("Executions"),
+        CYCLES("Cycles"),
+        READS("Reads"),
+        WRITES("Writes");
+
+        private final String label;
+
+        Metric(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /* Binary export header: "SYMH" and a format version */
+    private static final int BINARY_MAGIC = 0x53594d48;
+    private static final int BINARY_VERSION = 1;
+
+    private final int startAddress;
+    private final int endAddress;
+
+    private final long[] executions;
+    private final long[] cycles;
+    private final long[] reads;
+    private final long[] writes;
+
+    public HeatmapProfiler(Bus bus) {
+        this(bus.startAddress(), bus.endAddress());
+    }
+
+    public HeatmapProfiler(int startAddress, int endAddress) {
+        int size = endAddress - startAddress + 1;
+        this.startAddress = startAddress;
+        this.endAddress = endAddress;
+        this.executions = new long[size];
+        this.cycles = new long[size];
+        this.reads = new long[size];
+        this.writes = new long[size];
+    }
+
+    /**
+     * Record an instruction.
+     *
+     * @param pc          The address of the opcode.
+     * @param clockSteps  The number of cycles the instruction took.
+     */
+    public void instructionExecuted(int pc, int clockSteps) {
+        int i = pc - startAddress;
+        executions[i]++;
+        cycles[i] += clockSteps;
+    }
+
+    public void memoryRead(int address) {
+        reads[address - startAddress]++;
+    }
+
+    public void memoryWrite(int address) {
+        writes[address - startAddress]++;
+    }
+
+    public int getStartAddress() {
+        return startAddress;
+    }
+
+    public int getEndAddress() {
+        return endAddress;
+    }
+
+    /**
+     * @return The count of the given metric at an address, or 0 if the address
+     *         is outside the profiled range.
+     */
+    public long getCount(Metric metric, int address) {
+        if (address < startAddress || address > endAddress) {
+            return 0;
+        }
+        return counters(metric)[address - startAddress];
+    }
+
+    /**
+     * @return The largest count of the given metric at any address.
+     */
+    public long getMaxCount(Metric metric) {
+        long max = 0;
+        for (long count : counters(metric)) {
+            if (count > max) {
+                max = count;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Clear all counters.
+     */
+    public void reset() {
+        for (int i = 0; i < executions.length; i++) {
+            executions[i] = 0;
+            cycles[i] = 0;
+            reads[i] = 0;
+            writes[i] = 0;
+        }
+    }
+
+    /**
+     * Write one CSV row per address with a non-zero counter, after a header
+     * row. Addresses are in hex.
+     */
+    public void writeCsv(Writer out) throws IOException {
+        PrintWriter writer = new PrintWriter(out);
+        writer.print("address,executions,cycles,reads,writes\n");
+        for (int i = 0; i < executions.length; i++) {
+            if ((executions[i] | cycles[i] | reads[i] | writes[i]) != 0) {
+                writer.printf("%04X,%d,%d,%d,%d\n", startAddress + i,
+                              executions[i], cycles[i], reads[i], writes[i]);
+            }
+        }
+        writer.flush();
+        if (writer.checkError()) {
+            throw new IOException("Unable to write profile CSV");
+        }
+    }
+
+    /**
+     * Write all counters in a compact big-endian binary form: the magic number
+     * "SYMH", a format version, the start and end address, then the execution,
+     * cycle, read and write counters for every address as longs.
+     */
+    public void writeBinary(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(BINARY_MAGIC);
+        data.writeInt(BINARY_VERSION);
+        data.writeInt(startAddress);
+        data.writeInt(endAddress);
+        for (Metric metric : Metric.values()) {
+            for (long count : counters(metric)) {
+                data.writeLong(count);
+            }
+        }
+        data.flush();
+    }
+
+    private long[] counters(Metric metric) {
+        switch (metric) {
+            case CYCLES:
+                return cycles;
+            case READS:
+                return reads;
+            case WRITES:
+                return writes;
+            default:
+                return executions;
+        }
+    }
+}
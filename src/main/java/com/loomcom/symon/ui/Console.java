@@ -47,6 +47,9 @@ public class Console extends JTerminal implements KeyListener, MouseListener {
 	private static final long serialVersionUID = 6633818486963338126L;
 	
 	private static final int     DEFAULT_BORDER_WIDTH = 10;
+    // Lines of output kept above the screen, to be scrolled back to
+    public static final int DEFAULT_SCROLLBACK_LINES = 1000;
+
     // If true, swap CR and LF characters.
     private static final boolean SWAP_CR_AND_LF       = true;
 
@@ -54,8 +57,19 @@ public class Console extends JTerminal implements KeyListener, MouseListener {
     private boolean sendCrForLf;
     private FifoRingBuffer<Character> typeAheadBuffer;
 
+    // Set when output has been printed since the last repaint
+    private volatile boolean changed;
+
     public Console(int columns, int rows, Font font, boolean sendCrForLf) {
-        super(new Vt100TerminalModel(columns, rows), font);
+        this(columns, rows, DEFAULT_SCROLLBACK_LINES, font, sendCrForLf);
+    }
+
+    /**
+     * Create a console that keeps the given number of lines of output that
+     * have scrolled off the top of the screen.
+     */
+    public Console(int columns, int rows, int scrollbackLines, Font font, boolean sendCrForLf) {
+        super(new Vt100TerminalModel(columns, rows, rows + scrollbackLines), font);
     		//super(new Vt100TerminalModel(columns, rows));
         // A small type-ahead buffer, as might be found in any real
         // VT100-style serial terminal.
@@ -76,12 +90,40 @@ public class Console extends JTerminal implements KeyListener, MouseListener {
      */
     public void reset() {
         typeAheadBuffer.reset();
-        getModel().clear();
-        getModel().setCursorColumn(0);
-        getModel().setCursorRow(0);
+        synchronized (getModel()) {
+            getModel().clear();
+            getModel().setCursorColumn(0);
+            getModel().setCursorRow(0);
+        }
         repaint();
     }
 
+    /**
+     * Print a chunk of output. The console is not repainted until the next
+     * call to {@link #repaintIfChanged()}, so that any amount of output costs
+     * at most one repaint per frame.
+     *
+     * @param chars  The characters to print.
+     * @param offset The index of the first character.
+     * @param length The number of characters.
+     */
+    @Override
+    public void print(char[] chars, int offset, int length) {
+        super.print(chars, offset, length);
+        changed = true;
+    }
+
+    /**
+     * Repaint the parts of the console that have changed, if anything has been
+     * printed since it was last repainted.
+     */
+    public void repaintIfChanged() {
+        if (changed) {
+            changed = false;
+            repaintDirty();
+        }
+    }
+
     /**
      * Returns true if a key has been pressed since the last time input was read.
      *
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.ui;
+
+import com.loomcom.symon.devices.Crtc;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.jfr.SimulatorEvents;
+
+import javax.imageio.ImageIO;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * CrtcRenderer draws the output of a 6545 CRTC into an off-screen image. It
+ * needs no display, so it can be used headless, for example to check the
+ * screen contents of a machine in a test.
+ * <p>
+ * Each character is pre-rendered as a tile of pixels at the requested scale.
+ * On each {@link #update()}, video memory is compared against the character
+ * last drawn in each cell, and only the cells that changed are redrawn.
+ * <p>
+ * A renderer is not thread safe, and should be used from one thread at a time.
+ */
+public class CrtcRenderer {
+
+    private static final int CHAR_WIDTH = 8;
+    private static final int CHAR_HEIGHT = 8;
+
+    private static final String CHAR_ROM = "/ascii.rom";
+
+    public static final int FOREGROUND = 0xffffff;
+    public static final int BACKGROUND = 0x000000;
+
+    // FNV-1a, 64 bit
+    private static final long HASH_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long HASH_PRIME = 0x100000001b3L;
+    private static final int UNDRAWN_CELL = 0x100;
+
+    private final Crtc crtc;
+    private final int scaleX, scaleY;
+    private final int[] charRom;
+
+    // The CRTC state the image was built for
+    private int horizontalDisplayed;
+    private int verticalDisplayed;
+    private int scanLinesPerRow;
+    private int cursorStartLine;
+    private int cursorStopLine;
+
+    private BufferedImage image;
+    private int[] pixels;
+
+    // Each character's glyph, scaled, as a tile of pixels ready to copy into the image
+    private int[][] glyphTiles;
+    private int[] cursorTile;
+    private int tileWidth, tileHeight;
+
+    // The character last drawn in each cell, or -1 if the cell must be redrawn
+    private int[] drawnChars;
+    private int drawnStartAddress = -1;
+    private int drawnCursorCell = -1;
+
+    private boolean cursorHidden;
+
+    public CrtcRenderer(Crtc crtc) throws IOException {
+        this(crtc, 1, 1);
+    }
+
+    public CrtcRenderer(Crtc crtc, int scaleX, int scaleY) throws IOException {
+        if (scaleX < 1 || scaleY < 1) {
+            throw new IllegalArgumentException("Scale must be at least 1");
+        }
+        this.crtc = crtc;
+        this.scaleX = scaleX;
+        this.scaleY = scaleY;
+        this.charRom = loadCharRom(CHAR_ROM);
+        captureGeometry();
+        buildImage();
+    }
+
+    /**
+     * Bring the image up to date with the CRTC and video memory.
+     *
+     * @return The area of the image that changed, or null if nothing changed.
+     * @throws MemoryAccessException if video memory can't be read.
+     */
+    public Rectangle update() throws MemoryAccessException {
+        if (horizontalDisplayed != crtc.getHorizontalDisplayed() ||
+            verticalDisplayed != crtc.getVerticalDisplayed() ||
+            scanLinesPerRow != crtc.getScanLinesPerRow()) {
+            captureGeometry();
+            buildImage();
+        }
+
+        if (cursorStartLine != crtc.getCursorStartLine() || cursorStopLine != crtc.getCursorStopLine()) {
+            cursorStartLine = crtc.getCursorStartLine();
+            cursorStopLine = crtc.getCursorStopLine();
+            if (drawnCursorCell >= 0) {
+                drawnChars[drawnCursorCell] = -1;
+            }
+        }
+
+        Object repaint = SimulatorEvents.startCrtcRepaint();
+        int redrawn = 0;
+        Rectangle changed = null;
+        try {
+            int startAddress = crtc.getStartAddress();
+            if (startAddress != drawnStartAddress) {
+                forgetDrawnCells();
+                drawnStartAddress = startAddress;
+            }
+
+            int cells = drawnChars.length;
+            int cursorCell = -1;
+            if (!cursorHidden && crtc.isCursorEnabled()) {
+                cursorCell = crtc.getCursorPosition() - startAddress;
+                if (cursorCell < 0 || cursorCell >= cells) {
+                    cursorCell = -1;
+                }
+            }
+            if (cursorCell != drawnCursorCell) {
+                if (drawnCursorCell >= 0) {
+                    drawnChars[drawnCursorCell] = -1;
+                }
+                if (cursorCell >= 0) {
+                    drawnChars[cursorCell] = -1;
+                }
+                drawnCursorCell = cursorCell;
+            }
+
+            int minColumn = horizontalDisplayed, maxColumn = -1;
+            int minRow = verticalDisplayed, maxRow = -1;
+            for (int i = 0; i < cells; i++) {
+                int chr = crtc.getCharAtAddress(startAddress + i) & 0xff;
+                if (chr != drawnChars[i]) {
+                    drawnChars[i] = chr;
+                    int column = i % horizontalDisplayed;
+                    int row = i / horizontalDisplayed;
+                    drawTile(column, row, i == cursorCell ? getCursorTile(chr) : glyphTiles[chr]);
+                    minColumn = Math.min(minColumn, column);
+                    maxColumn = Math.max(maxColumn, column);
+                    minRow = Math.min(minRow, row);
+                    maxRow = Math.max(maxRow, row);
+                    redrawn++;
+                }
+            }
+
+            if (redrawn > 0) {
+                changed = new Rectangle(minColumn * tileWidth, minRow * tileHeight,
+                                        (maxColumn - minColumn + 1) * tileWidth,
+                                        (maxRow - minRow + 1) * tileHeight);
+            }
+        } finally {
+            SimulatorEvents.finishCrtcRepaint(repaint, redrawn);
+        }
+        return changed;
+    }
+
+    /**
+     * @return The image, as of the last update. It is replaced when the CRTC's
+     *         geometry changes.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int getColumns() {
+        return horizontalDisplayed;
+    }
+
+    public int getRows() {
+        return verticalDisplayed;
+    }
+
+    /**
+     * Hide or show the cursor, e.g. to make it blink.
+     */
+    public void setCursorHidden(boolean cursorHidden) {
+        this.cursorHidden = cursorHidden;
+    }
+
+    public boolean isCursorHidden() {
+        return cursorHidden;
+    }
+
+    /**
+     * Returns the character shown in a cell, as of the last update.
+     *
+     * @param column The column.
+     * @param row    The row.
+     * @return The character code, or -1 if the cell hasn't been drawn yet.
+     */
+    public int getCharacter(int column, int row) {
+        if (column < 0 || column >= horizontalDisplayed || row < 0 || row >= verticalDisplayed) {
+            throw new IndexOutOfBoundsException();
+        }
+        return drawnChars[row * horizontalDisplayed + column];
+    }
+
+    /**
+     * Returns the screen as text, as of the last update. Each row is ended by
+     * a newline, and characters outside printable ASCII are shown as '.'.
+     */
+    public String getText() {
+        StringBuilder sb = new StringBuilder(drawnChars.length + verticalDisplayed);
+        for (int i = 0; i < drawnChars.length; i++) {
+            int chr = drawnChars[i];
+            sb.append(chr >= 0x20 && chr < 0x7f ? (char) chr : '.');
+            if (i % horizontalDisplayed == horizontalDisplayed - 1) {
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a hash of the frame as of the last update. The image is
+     * determined by the characters shown, the cursor cell and the geometry, so
+     * those are hashed rather than the pixels. Equal frames always have equal
+     * hashes.
+     */
+    public long getFrameHash() {
+        long hash = HASH_OFFSET_BASIS;
+        hash = (hash ^ horizontalDisplayed) * HASH_PRIME;
+        hash = (hash ^ verticalDisplayed) * HASH_PRIME;
+        hash = (hash ^ scanLinesPerRow) * HASH_PRIME;
+        if (drawnCursorCell >= 0) {
+            hash = (hash ^ drawnCursorCell) * HASH_PRIME;
+            hash = (hash ^ cursorStartLine) * HASH_PRIME;
+            hash = (hash ^ cursorStopLine) * HASH_PRIME;
+        }
+        for (int chr : drawnChars) {
+            // Each cell is hashed as two bytes, so that an undrawn cell
+            // differs from every character
+            int cell = chr < 0 ? UNDRAWN_CELL : chr;
+            hash = (hash ^ (cell & 0xff)) * HASH_PRIME;
+            hash = (hash ^ (cell >> 8)) * HASH_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Write the image, as of the last update, as a PNG.
+     */
+    public void writePng(OutputStream out) throws IOException {
+        ImageIO.write(image, "png", out);
+    }
+
+    private void captureGeometry() {
+        horizontalDisplayed = crtc.getHorizontalDisplayed();
+        verticalDisplayed = crtc.getVerticalDisplayed();
+        scanLinesPerRow = crtc.getScanLinesPerRow();
+        cursorStartLine = crtc.getCursorStartLine();
+        cursorStopLine = crtc.getCursorStopLine();
+    }
+
+    /**
+     * Mark every cell as needing to be redrawn.
+     */
+    private void forgetDrawnCells() {
+        Arrays.fill(drawnChars, -1);
+        drawnCursorCell = -1;
+    }
+
+    private void drawTile(int column, int row, int[] tile) {
+        int imageWidth = image.getWidth();
+        int offset = row * tileHeight * imageWidth + column * tileWidth;
+        for (int y = 0; y < tileHeight; y++) {
+            System.arraycopy(tile, y * tileWidth, pixels, offset, tileWidth);
+            offset += imageWidth;
+        }
+    }
+
+    /**
+     * Returns the tile for a character with the cursor overlaid. The cursor
+     * overlay simulates an XOR of the Character Rom output and the 6545 Cursor
+     * output.
+     *
+     * @param chr The character under the cursor.
+     * @return A tile of pixels, valid until the next call.
+     */
+    private int[] getCursorTile(int chr) {
+        System.arraycopy(glyphTiles[chr], 0, cursorTile, 0, cursorTile.length);
+
+        int cursorStart = Math.min(cursorTile.length, cursorStartLine * scaleY * tileWidth);
+        int cursorStop = Math.min(cursorTile.length, (cursorStopLine + 1) * scaleY * tileWidth);
+
+        for (int i = cursorStart; i < cursorStop; i++) {
+            cursorTile[i] ^= FOREGROUND ^ BACKGROUND;
+        }
+
+        return cursorTile;
+    }
+
+    private void buildImage() {
+        int rasterWidth = CHAR_WIDTH * horizontalDisplayed;
+        int rasterHeight = scanLinesPerRow * verticalDisplayed;
+        this.image = new BufferedImage(Math.max(1, rasterWidth * scaleX), Math.max(1, rasterHeight * scaleY),
+                                       BufferedImage.TYPE_INT_RGB);
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        this.drawnChars = new int[horizontalDisplayed * verticalDisplayed];
+        buildGlyphTiles();
+        forgetDrawnCells();
+    }
+
+    /**
+     * Render every character in the Character ROM, including extra scanlines
+     * (if any), at the renderer's scale.
+     */
+    private void buildGlyphTiles() {
+        tileWidth = CHAR_WIDTH * scaleX;
+        tileHeight = scanLinesPerRow * scaleY;
+        glyphTiles = new int[256][];
+        cursorTile = new int[tileWidth * tileHeight];
+
+        for (int chr = 0; chr < 256; chr++) {
+            int[] tile = new int[tileWidth * tileHeight];
+            int romOffset = chr * (CHAR_HEIGHT * CHAR_WIDTH);
+            for (int y = 0; y < tileHeight; y++) {
+                int line = y / scaleY;
+                for (int x = 0; x < tileWidth; x++) {
+                    int romIndex = romOffset + line * CHAR_WIDTH + x / scaleX;
+                    boolean lit = line < CHAR_HEIGHT && romIndex < charRom.length && charRom[romIndex] != 0;
+                    tile[y * tileWidth + x] = lit ? FOREGROUND : BACKGROUND;
+                }
+            }
+            glyphTiles[chr] = tile;
+        }
+    }
+
+    /**
+     * Load a Character ROM file and convert it into an array of pixel data from
+     * which the glyph tiles are built.
+     * <p>
+     * Each bit of the ROM is converted into a single value per pixel, 0 for
+     * black and 255 for white.
+
+     * @param resource The ROM file resource to load.
+     * @return An array of glyphs, each ready for insertion.
+     * @throws IOException
+     */
+    private static int[] loadCharRom(String resource) throws IOException {
+        BufferedInputStream bis = null;
+        try {
+            bis = new BufferedInputStream(CrtcRenderer.class.getResourceAsStream(resource));
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            while (bis.available() > 0) {
+                bos.write(bis.read());
+            }
+            bos.flush();
+            bos.close();
+
+            byte[] raw = bos.toByteArray();
+
+            // Now convert the raw ROM image into one value per pixel.
+            int[] converted = new int[raw.length * CHAR_WIDTH];
+
+            int romIndex = 0;
+            for (int i = 0; i < converted.length;) {
+                byte charRow = raw[romIndex++];
+
+                for (int j = 7; j >= 0; j--) {
+                    converted[i++] = ((charRow & (1 << j)) == 0) ? 0 : 0xff;
+                }
+            }
+            return converted;
+        } finally {
+            if (bis != null) {
+                bis.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.ui;
+
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.DisassemblyCache;
+import com.loomcom.symon.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+/**
+ * This Frame shows a disassembly listing, from a selectable origin address
+ * to the top of memory.
+ * <p>
+ * The listing is a linear sweep over the address space. Only the rows that
+ * are on screen are ever disassembled, through a {@link DisassemblyCache},
+ * and the sweep is only redone from the first page whose contents changed.
+ */
+public class DisassemblyWindow extends JFrame implements ActionListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(DisassemblyWindow.class);
+
+    private static final Dimension MINIMUM_SIZE = new Dimension(280, 480);
+
+    // The width of the PC marker and address columns, in pixels
+    private static final int MARKER_COL_WIDTH = 16;
+    private static final int ADDR_COL_WIDTH = 56;
+
+    private final Cpu cpu;
+    private final DisassemblyTableModel model;
+
+    private JTable table;
+    private JTextField addressTextField;
+    private JButton followPcButton;
+
+    /**
+     * Initialize a new DisassemblyWindow. The window will not be visible.
+     *
+     * @param cpu   The CPU whose memory is disassembled.
+     * @param cache The cache used to disassemble lines.
+     */
+    public DisassemblyWindow(Cpu cpu, DisassemblyCache cache) {
+        this.cpu = cpu;
+        this.model = new DisassemblyTableModel(cache);
+        createUi();
+    }
+
+    private void createUi() {
+        setTitle("Disassembly");
+
+        table = new JTable(model);
+        table.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        table.setShowGrid(false);
+        table.setIntercellSpacing(new Dimension(0, 0));
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        table.getTableHeader().setReorderingAllowed(false);
+        table.getColumnModel().getColumn(0).setMaxWidth(MARKER_COL_WIDTH);
+        table.getColumnModel().getColumn(1).setMaxWidth(ADDR_COL_WIDTH);
+
+        // Tool-tips would query every cell under the mouse.
+        ToolTipManager.sharedInstance().unregisterComponent(table);
+
+        addressTextField = new JTextField(5);
+        addressTextField.addActionListener(this);
+        followPcButton = new JButton("PC");
+        followPcButton.addActionListener(this);
+
+        JPanel controlPanel = new JPanel();
+        controlPanel.add(new JLabel("Address"));
+        controlPanel.add(addressTextField);
+        controlPanel.add(followPcButton);
+
+        JPanel tablePanel = new JPanel();
+        tablePanel.setLayout(new BorderLayout());
+        tablePanel.setBorder(new EmptyBorder(10, 10, 10, 10));
+
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
+        scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        tablePanel.add(scrollPane, BorderLayout.CENTER);
+
+        setLayout(new BorderLayout());
+        getContentPane().add(controlPanel, BorderLayout.NORTH);
+        getContentPane().add(tablePanel, BorderLayout.CENTER);
+
+        setMinimumSize(MINIMUM_SIZE);
+        setPreferredSize(MINIMUM_SIZE);
+
+        pack();
+    }
+
+    /**
+     * Handle the address field and the PC button.
+     *
+     * @param e The action event
+     */
+    public void actionPerformed(ActionEvent e) {
+        if (e.getSource() == addressTextField) {
+            String addressInput = addressTextField.getText();
+            try {
+                showAddress(Integer.parseInt(addressInput, 16) & 0xffff);
+            } catch (NumberFormatException ex) {
+                logger.warn("Can't parse address {}", addressInput);
+            }
+        } else if (e.getSource() == followPcButton) {
+            showAddress(cpu.getProgramCounter());
+        }
+    }
+
+    /**
+     * Scroll to an address. If no row of the current sweep starts there, the
+     * listing is re-swept with that address as its origin.
+     *
+     * @param address The address to show.
+     */
+    public void showAddress(int address) {
+        int row = model.rowOf(address);
+        if (row < 0) {
+            model.setOrigin(address);
+            row = 0;
+        }
+        table.getSelectionModel().setSelectionInterval(row, row);
+        table.scrollRectToVisible(table.getCellRect(row, 0, true));
+    }
+
+    /**
+     * Refresh the listing. This is cheap if memory has not changed.
+     */
+    public void updateState() {
+        updateState(cpu.getProgramCounter());
+    }
+
+    /**
+     * Refresh the view with the program counter from a snapshot of the CPU state.
+     *
+     * @param pc The program counter.
+     */
+    public void updateState(int pc) {
+        model.update(pc);
+    }
+
+    /**
+     * The model that backs the disassembly table.
+     */
+    private class DisassemblyTableModel extends AbstractTableModel {
+
+        private static final int PAGES = 0x100;
+
+        private final DisassemblyCache cache;
+
+        // Start address of each row, from the origin to the top of memory.
+        private final int[] rowAddresses = new int[0x10000];
+        private int rowCount;
+        private int origin;
+        private boolean swept;
+
+        // Page versions at the time of the last sweep.
+        private final int[] pageVersions = new int[PAGES];
+        private final boolean[] changedPages = new boolean[PAGES];
+        private int lastPc = -1;
+
+        private final String[] addressLabels = new String[0x10000];
+
+        public DisassemblyTableModel(DisassemblyCache cache) {
+            this.cache = cache;
+        }
+
+        public void setOrigin(int origin) {
+            this.origin = origin & 0xffff;
+            this.swept = false;
+            update(cpu.getProgramCounter());
+        }
+
+        /**
+         * Re-sweep from the first page that changed since the last sweep, and
+         * repaint what could have changed on screen. The whole table is only
+         * redrawn when the rows themselves moved; if the instructions still
+         * start where they did, just the rows in changed pages are updated,
+         * along with the rows the program counter moved between.
+         */
+        public void update(int pc) {
+            int firstChangedPage = swept ? -1 : origin >> 8;
+
+            Bus bus = cpu.getBus();
+            for (int page = 0; page < PAGES; page++) {
+                int version = pageVersion(bus, page);
+                changedPages[page] = version != pageVersions[page];
+                if (changedPages[page]) {
+                    pageVersions[page] = version;
+                    if (firstChangedPage < 0 && page >= (origin >> 8)) {
+                        firstChangedPage = page;
+                    }
+                }
+            }
+
+            if (firstChangedPage >= 0) {
+                boolean wasSwept = swept;
+                boolean moved = sweepFrom(swept ? firstRowAtOrAfter(firstChangedPage << 8) : 0);
+                swept = true;
+                if (!wasSwept || moved) {
+                    lastPc = pc;
+                    fireTableDataChanged();
+                    return;
+                }
+                fireChangedPagesUpdated(firstChangedPage);
+            }
+
+            if (pc != lastPc) {
+                int oldRow = rowOf(lastPc);
+                lastPc = pc;
+                fireRowUpdated(oldRow);
+                fireRowUpdated(rowOf(pc));
+            }
+        }
+
+        /*
+         * Fire an update for each run of changed pages, starting from the row
+         * that holds its first byte, which may have begun in the page before.
+         */
+        private void fireChangedPagesUpdated(int firstChangedPage) {
+            int page = firstChangedPage;
+            while (page < PAGES) {
+                if (!changedPages[page]) {
+                    page++;
+                    continue;
+                }
+                int start = page;
+                while (page < PAGES && changedPages[page]) {
+                    page++;
+                }
+                int firstRow = firstRowAtOrAfter(start << 8);
+                if (firstRow > 0 && (firstRow == rowCount || rowAddresses[firstRow] != start << 8)) {
+                    firstRow--;
+                }
+                int lastRow = firstRowAtOrAfter(page << 8) - 1;
+                if (firstRow <= lastRow) {
+                    fireTableRowsUpdated(firstRow, lastRow);
+                }
+            }
+        }
+
+        private void fireRowUpdated(int row) {
+            if (row >= 0) {
+                fireTableRowsUpdated(row, row);
+            }
+        }
+
+        /**
+         * @return The row starting at the address, or -1 if there is none.
+         */
+        public int rowOf(int address) {
+            int row = firstRowAtOrAfter(address);
+            return (row < rowCount && rowAddresses[row] == address) ? row : -1;
+        }
+
+        /*
+         * Rows before this one started in unchanged pages, so their sizes and
+         * therefore this row's address are still right. Returns true if any
+         * row now starts at a different address than before.
+         */
+        private boolean sweepFrom(int row) {
+            boolean moved = false;
+            int address = row == 0 ? origin : rowAddresses[row];
+            while (address <= 0xffff) {
+                if (row >= rowCount || rowAddresses[row] != address) {
+                    rowAddresses[row] = address;
+                    moved = true;
+                }
+                row++;
+                address += cache.getInstructionSize(address);
+            }
+            if (row != rowCount) {
+                moved = true;
+            }
+            rowCount = row;
+            return moved;
+        }
+
+        private int firstRowAtOrAfter(int address) {
+            int low = 0;
+            int high = rowCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (rowAddresses[mid] < address) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private int pageVersion(Bus bus, int page) {
+            int address = page << 8;
+            if (address < bus.startAddress() || address > bus.endAddress()) {
+                return 0;
+            }
+            return bus.getPageVersion(address);
+        }
+
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        public int getColumnCount() {
+            return 3;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            switch (column) {
+                case 1:
+                    return "Address";
+                case 2:
+                    return "Instruction";
+                default:
+                    return "";
+            }
+        }
+
+        public Object getValueAt(int row, int column) {
+            int address = rowAddresses[row];
+            switch (column) {
+                case 0:
+                    return address == lastPc ? ">" : "";
+                case 1:
+                    String label = addressLabels[address];
+                    if (label == null) {
+                        label = "$" + Utils.wordToHex(address);
+                        addressLabels[address] = label;
+                    }
+                    return label;
+                default:
+                    return cache.getLine(address);
+            }
+        }
+    }
+}
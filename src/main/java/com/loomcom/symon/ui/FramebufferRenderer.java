@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.ui;
+
+import com.loomcom.symon.devices.BitmapFramebuffer;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * FramebufferRenderer draws the video memory of a {@link BitmapFramebuffer}
+ * into an off-screen image, one pixel per framebuffer pixel. It needs no
+ * display, so it can be used headless.
+ * <p>
+ * On each {@link #update()}, only the scanlines the framebuffer has marked
+ * dirty are converted through the palette, straight into the image's pixel
+ * array.
+ * <p>
+ * A renderer is not thread safe, and should be used from one thread at a time.
+ */
+public class FramebufferRenderer {
+
+    private final BitmapFramebuffer framebuffer;
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final int[] palette = new int[BitmapFramebuffer.PALETTE_SIZE];
+
+    public FramebufferRenderer(BitmapFramebuffer framebuffer) {
+        this.framebuffer = framebuffer;
+        this.image = new BufferedImage(BitmapFramebuffer.WIDTH, BitmapFramebuffer.HEIGHT,
+                                       BufferedImage.TYPE_INT_RGB);
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Bring the image up to date with the framebuffer.
+     *
+     * @return The band of scanlines that changed, or null if nothing changed.
+     */
+    public Rectangle update() {
+        if (!framebuffer.takeChanges()) {
+            return null;
+        }
+
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = framebuffer.getPaletteColor(i);
+        }
+        int bitsPerPixel = framebuffer.getBitsPerPixel();
+        int bytesPerLine = framebuffer.getBytesPerLine();
+        int pixelsPerByte = 8 / bitsPerPixel;
+        int mask = (1 << bitsPerPixel) - 1;
+        byte[] videoMemory = framebuffer.getVideoMemory();
+
+        int firstLine = -1, lastLine = -1;
+        for (int line = 0; line < BitmapFramebuffer.HEIGHT; line++) {
+            if (!framebuffer.takeDirtyLine(line)) {
+                continue;
+            }
+            int src = line * bytesPerLine;
+            int dst = line * BitmapFramebuffer.WIDTH;
+            for (int i = 0; i < bytesPerLine; i++) {
+                int b = videoMemory[src + i];
+                for (int shift = 8 - bitsPerPixel; shift >= 0; shift -= bitsPerPixel) {
+                    pixels[dst++] = palette[(b >> shift) & mask];
+                }
+            }
+            if (firstLine < 0) {
+                firstLine = line;
+            }
+            lastLine = line;
+        }
+
+        if (firstLine < 0) {
+            return null;
+        }
+        return new Rectangle(0, firstLine, BitmapFramebuffer.WIDTH, lastLine - firstLine + 1);
+    }
+
+    /**
+     * @return The image, as of the last update.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.ui;
+
+import com.loomcom.symon.devices.BitmapFramebuffer;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * FramebufferWindow shows the display of a {@link BitmapFramebuffer}. The
+ * display is drawn by a {@link FramebufferRenderer}, which converts only the
+ * scanlines written since the last refresh, and only the band of the window
+ * they cover is then repainted, scaled.
+ */
+public class FramebufferWindow extends JFrame {
+
+    private final FramebufferRenderer renderer;
+    private final int scale;
+    private final Dimension dimensions;
+
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+
+    private FramebufferPanel framebufferPanel;
+
+    /**
+     * A panel showing the framebuffer's image, scaled.
+     */
+    private class FramebufferPanel extends JPanel {
+        @Override
+        public void paintComponent(Graphics g) {
+            g.drawImage(renderer.getImage(), 0, 0, dimensions.width, dimensions.height, null);
+        }
+
+        @Override
+        public Dimension getMinimumSize() {
+            return dimensions;
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            return dimensions;
+        }
+    }
+
+    public FramebufferWindow(BitmapFramebuffer framebuffer, int scale) {
+        this.renderer = new FramebufferRenderer(framebuffer);
+        this.scale = scale;
+        this.dimensions = new Dimension(BitmapFramebuffer.WIDTH * scale, BitmapFramebuffer.HEIGHT * scale);
+
+        createAndShowUi();
+
+        refreshDisplay();
+    }
+
+    /**
+     * Bring the window up to date with the framebuffer. This may be called
+     * from any thread, and any number of calls made before the event dispatch
+     * thread gets to the refresh are served by it.
+     */
+    public void refreshDisplay() {
+        if (refreshPending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    refreshPending.set(false);
+                    Rectangle changed = renderer.update();
+                    if (changed != null) {
+                        framebufferPanel.repaint(changed.x * scale, changed.y * scale,
+                                                 changed.width * scale, changed.height * scale);
+                    }
+                }
+            });
+        }
+    }
+
+    private void createAndShowUi() {
+        setTitle("Bitmap Graphics");
+
+        int borderWidth = 20;
+        int borderHeight = 20;
+
+        JPanel containerPane = new JPanel();
+        containerPane.setBorder(BorderFactory.createEmptyBorder(borderHeight, borderWidth, borderHeight, borderWidth));
+        containerPane.setLayout(new BorderLayout());
+        containerPane.setBackground(Color.black);
+
+        framebufferPanel = new FramebufferPanel();
+        containerPane.add(framebufferPanel, BorderLayout.CENTER);
+
+        getContentPane().add(containerPane, BorderLayout.CENTER);
+        setResizable(false);
+        pack();
+    }
+}
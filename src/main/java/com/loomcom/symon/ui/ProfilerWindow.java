@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.ui;
+
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.profiler.CallGraphProfiler;
+import com.loomcom.symon.profiler.HeatmapProfiler;
+import com.loomcom.symon.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * This Frame shows a heatmap of the 64K address space, one pixel per address
+ * with one page per row, colored by how hot the address is for the selected
+ * profiler metric. It also controls the call graph profiler, whose results
+ * can be exported for flame graph tools, or as inclusive and exclusive cycles
+ * per routine.
+ */
+public class ProfilerWindow extends JFrame implements ActionListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProfilerWindow.class);
+
+    private static final int MAP_SIZE = 256;
+    private static final int MAP_SCALE = 2;
+
+    // How often the heatmap is redrawn while profiling, in milliseconds
+    private static final int REFRESH_INTERVAL_MS = 500;
+
+    private final Cpu cpu;
+    private final HeatmapProfiler profiler;
+    private final CallGraphProfiler callGraphProfiler = new CallGraphProfiler();
+
+    private final BufferedImage image = new BufferedImage(MAP_SIZE, MAP_SIZE, BufferedImage.TYPE_INT_RGB);
+    private final int[] pixels = new int[MAP_SIZE * MAP_SIZE];
+
+    private JCheckBox enabledCheckBox;
+    private JCheckBox callGraphCheckBox;
+    private JComboBox<HeatmapProfiler.Metric> metricBox;
+    private JButton resetButton;
+    private JButton exportCsvButton;
+    private JButton exportBinaryButton;
+    private JButton exportCollapsedButton;
+    private JButton exportRoutinesButton;
+    private JLabel hoverLabel;
+    private HeatmapPanel heatmapPanel;
+    private Timer refreshTimer;
+    private JFileChooser fileChooser;
+
+    /**
+     * Initialize a new ProfilerWindow. The window will not be visible, and
+     * profiling is off until it is switched on in the window.
+     *
+     * @param cpu The CPU to profile.
+     */
+    public ProfilerWindow(Cpu cpu) {
+        this.cpu = cpu;
+        this.profiler = new HeatmapProfiler(cpu.getBus());
+        this.callGraphProfiler.setSymbolTable(cpu.getSymbolTable());
+        createUi();
+    }
+
+    private void createUi() {
+        setTitle("Profiler");
+
+        enabledCheckBox = new JCheckBox("Profile");
+        enabledCheckBox.addActionListener(this);
+        callGraphCheckBox = new JCheckBox("Call Graph");
+        callGraphCheckBox.addActionListener(this);
+        metricBox = new JComboBox<>(HeatmapProfiler.Metric.values());
+        metricBox.addActionListener(this);
+        resetButton = new JButton("Reset");
+        resetButton.addActionListener(this);
+
+        JPanel controlPanel = new JPanel();
+        controlPanel.add(enabledCheckBox);
+        controlPanel.add(callGraphCheckBox);
+        controlPanel.add(metricBox);
+        controlPanel.add(resetButton);
+
+        heatmapPanel = new HeatmapPanel();
+        heatmapPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
+
+        hoverLabel = new JLabel(" ");
+        exportCsvButton = new JButton("Export CSV...");
+        exportCsvButton.addActionListener(this);
+        exportBinaryButton = new JButton("Export Binary...");
+        exportBinaryButton.addActionListener(this);
+        exportCollapsedButton = new JButton("Export Flame Graph...");
+        exportCollapsedButton.addActionListener(this);
+        exportRoutinesButton = new JButton("Export Routines...");
+        exportRoutinesButton.addActionListener(this);
+
+        JPanel exportPanel = new JPanel();
+        exportPanel.add(hoverLabel);
+        exportPanel.add(exportCsvButton);
+        exportPanel.add(exportBinaryButton);
+        exportPanel.add(exportCollapsedButton);
+        exportPanel.add(exportRoutinesButton);
+
+        setLayout(new BorderLayout());
+        getContentPane().add(controlPanel, BorderLayout.NORTH);
+        getContentPane().add(heatmapPanel, BorderLayout.CENTER);
+        getContentPane().add(exportPanel, BorderLayout.SOUTH);
+
+        refreshTimer = new Timer(REFRESH_INTERVAL_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (isVisible()) {
+                    updateState();
+                }
+            }
+        });
+
+        fileChooser = new JFileChooser(System.getProperty("user.dir"));
+
+        setResizable(false);
+        pack();
+    }
+
+    public void actionPerformed(ActionEvent e) {
+        if (e.getSource() == enabledCheckBox) {
+            if (enabledCheckBox.isSelected()) {
+                cpu.setHeatmapProfiler(profiler);
+                refreshTimer.start();
+            } else {
+                cpu.setHeatmapProfiler(null);
+                refreshTimer.stop();
+            }
+        } else if (e.getSource() == callGraphCheckBox) {
+            if (callGraphCheckBox.isSelected()) {
+                // The shadow stack can't be trusted across a gap.
+                callGraphProfiler.reset();
+                cpu.setCallGraphProfiler(callGraphProfiler);
+            } else {
+                cpu.setCallGraphProfiler(null);
+            }
+        } else if (e.getSource() == resetButton) {
+            profiler.reset();
+            callGraphProfiler.reset();
+        } else if (e.getSource() == exportCsvButton) {
+            exportCsv();
+        } else if (e.getSource() == exportBinaryButton) {
+            exportBinary();
+        } else if (e.getSource() == exportCollapsedButton) {
+            exportCallGraph(true);
+        } else if (e.getSource() == exportRoutinesButton) {
+            exportCallGraph(false);
+        }
+        updateState();
+    }
+
+    /**
+     * Redraw the heatmap from the current counters.
+     */
+    public void updateState() {
+        HeatmapProfiler.Metric metric = (HeatmapProfiler.Metric) metricBox.getSelectedItem();
+        double scale = Math.log1p(profiler.getMaxCount(metric));
+
+        for (int address = 0; address < pixels.length; address++) {
+            long count = profiler.getCount(metric, address);
+            pixels[address] = count == 0 ? 0 : heat(Math.log1p(count) / scale);
+        }
+
+        image.setRGB(0, 0, MAP_SIZE, MAP_SIZE, pixels, 0, MAP_SIZE);
+        heatmapPanel.repaint();
+    }
+
+    @Override
+    public void dispose() {
+        refreshTimer.stop();
+        super.dispose();
+    }
+
+    /*
+     * Map 0.0 - 1.0 onto a dark blue, red, yellow, white color ramp.
+     */
+    private static int heat(double t) {
+        int r = (int) Math.min(255, t * 3 * 255);
+        int g = (int) Math.max(0, Math.min(255, (t * 3 - 1) * 255));
+        int b = (int) Math.max(0, Math.min(255, t < 1.0 / 3 ? 96 + t * 3 * 64 : (t * 3 - 2) * 255));
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private void exportCsv() {
+        File file = chooseExportFile();
+        if (file == null) {
+            return;
+        }
+        try (Writer out = new FileWriter(file)) {
+            profiler.writeCsv(out);
+        } catch (IOException ex) {
+            logger.error("Unable to export profile: {}", ex.getMessage());
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Failure", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void exportBinary() {
+        File file = chooseExportFile();
+        if (file == null) {
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            profiler.writeBinary(out);
+        } catch (IOException ex) {
+            logger.error("Unable to export profile: {}", ex.getMessage());
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Failure", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Export the call graph, either as collapsed stacks for flame graph tools
+     * or as a CSV of cycles per routine. The report is made in memory first,
+     * so that the running CPU only waits for the profiler to be read, not for
+     * the file to be written.
+     */
+    private void exportCallGraph(boolean collapsed) {
+        File file = chooseExportFile();
+        if (file == null) {
+            return;
+        }
+        StringWriter report = new StringWriter();
+        try {
+            if (collapsed) {
+                callGraphProfiler.writeCollapsed(report);
+            } else {
+                callGraphProfiler.writeRoutineCsv(report);
+            }
+            try (Writer out = new FileWriter(file)) {
+                out.write(report.toString());
+            }
+        } catch (IOException ex) {
+            logger.error("Unable to export call graph: {}", ex.getMessage());
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Failure", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private File chooseExportFile() {
+        if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            return fileChooser.getSelectedFile();
+        }
+        return null;
+    }
+
+    private class HeatmapPanel extends JPanel {
+
+        public HeatmapPanel() {
+            Dimension size = new Dimension(MAP_SIZE * MAP_SCALE + 20, MAP_SIZE * MAP_SCALE + 20);
+            setPreferredSize(size);
+            setBackground(Color.BLACK);
+
+            addMouseMotionListener(new MouseAdapter() {
+                @Override
+                public void mouseMoved(MouseEvent e) {
+                    int column = (e.getX() - 10) / MAP_SCALE;
+                    int row = (e.getY() - 10) / MAP_SCALE;
+                    if (column < 0 || column >= MAP_SIZE || row < 0 || row >= MAP_SIZE) {
+                        hoverLabel.setText(" ");
+                        return;
+                    }
+                    int address = (row << 8) | column;
+                    HeatmapProfiler.Metric metric = (HeatmapProfiler.Metric) metricBox.getSelectedItem();
+                    hoverLabel.setText("$" + Utils.wordToHex(address) + ": " + profiler.getCount(metric, address));
+                }
+            });
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            g.drawImage(image, 10, 10, MAP_SIZE * MAP_SCALE, MAP_SIZE * MAP_SCALE, null);
+        }
+    }
+}
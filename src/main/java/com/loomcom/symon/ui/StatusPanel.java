@@ -25,7 +25,9 @@ package com.loomcom.symon.ui;
 
 import com.loomcom.symon.Cpu;
 import com.loomcom.symon.CpuState;
+import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.util.Utils;
 
 import javax.swing.*;
 import javax.swing.border.Border;
@@ -68,6 +70,7 @@ public class StatusPanel extends JPanel {
     private JTextField aField;
     private JTextField xField;
     private JTextField yField;
+    private JTextField speedField;
 
     private Machine machine;
 
@@ -150,11 +153,13 @@ public class StatusPanel extends JPanel {
         JLabel aLabel = makeLabel("A");
         JLabel xLabel = makeLabel("X");
         JLabel yLabel = makeLabel("Y");
+        JLabel speedLabel = makeLabel("Speed");
 
         statusFlagsLabel.setToolTipText("6502 Processor Status Flags");
         opcodeLabel.setToolTipText("Instruction Register");
         pcLabel.setToolTipText("Program Counter");
         spLabel.setToolTipText("Stack Pointer");
+        speedLabel.setToolTipText("Measured Clock Speed");
 
         opcodeField = makeTextField(LARGE_TEXT_FIELD_SIZE, false);
         pcField = makeTextField(LARGE_TEXT_FIELD_SIZE, true);
@@ -162,6 +167,7 @@ public class StatusPanel extends JPanel {
         aField = makeTextField(SMALL_TEXT_FIELD_SIZE, true);
         xField = makeTextField(SMALL_TEXT_FIELD_SIZE, true);
         yField = makeTextField(SMALL_TEXT_FIELD_SIZE, true);
+        speedField = makeTextField(LARGE_TEXT_FIELD_SIZE, false);
 
         // Make fields editable
         pcField.addActionListener(new ActionListener() {
@@ -286,14 +292,34 @@ public class StatusPanel extends JPanel {
         add(xField, constraints);
         constraints.gridx = 1;
         add(yField, constraints);
+
+        constraints.insets = new Insets(5, 0, 0, 0);
+        constraints.gridwidth = 2;
+        constraints.gridx = 0;
+        constraints.gridy = 10;
+        add(speedLabel, constraints);
+
+        constraints.insets = new Insets(2, 2, 2, 2);
+        constraints.gridy = 11;
+        add(speedField, constraints);
     }
 
     /**
-     * Update the display based on the current state of the CPU.
+     * Update the display based on the current state of the CPU. Only use this
+     * while the simulator is stopped.
      */
     public void updateState() {
+        updateState(new CpuState(machine.getCpu().getCpuState()));
+    }
+
+    /**
+     * Update the display based on a snapshot of the CPU state, which must not
+     * change while it is being displayed.
+     *
+     * @param cpuState The snapshot to display.
+     */
+    public void updateState(CpuState cpuState) {
         Cpu cpu = machine.getCpu();
-        CpuState cpuState = cpu.getCpuState();
 
         // Update the Processor Status Flag display
         int status = cpuState.getStatusFlag();
@@ -309,12 +335,17 @@ public class StatusPanel extends JPanel {
         // Update the register and address displays
 
         // We always want to show the NEXT instruction that will be executed
-        opcodeField.setText(cpu.disassembleNextOp());
-        pcField.setText(cpu.getProgramCounterStatus());
-        spField.setText(cpu.getStackPointerStatus());
-        aField.setText(cpu.getAccumulatorStatus());
-        xField.setText(cpu.getXRegisterStatus());
-        yField.setText(cpu.getYRegisterStatus());
+        try {
+            opcodeField.setText(cpu.disassembleOpAtAddress(cpuState.pc));
+        } catch (MemoryAccessException ex) {
+            opcodeField.setText("???");
+        }
+        pcField.setText("$" + Utils.wordToHex(cpuState.pc));
+        spField.setText("$" + Utils.byteToHex(cpuState.sp));
+        aField.setText("$" + Utils.byteToHex(cpuState.a));
+        xField.setText("$" + Utils.byteToHex(cpuState.x));
+        yField.setText("$" + Utils.byteToHex(cpuState.y));
+        speedField.setText(String.format("%.3f MHz", cpu.getMeasuredClockFrequency() / 1000000.0));
 
         repaint();
     }
@@ -25,6 +25,8 @@
 package com.loomcom.symon.ui;
 
 import com.loomcom.symon.CpuState;
+import com.loomcom.symon.SymbolTable;
+import com.loomcom.symon.jfr.SimulatorEvents;
 import com.loomcom.symon.util.FifoRingBuffer;
 
 import javax.swing.*;
@@ -38,6 +40,7 @@ public class TraceLog extends JFrame {
 
     private final FifoRingBuffer<CpuState> traceLog;
     private final JTextArea                    traceLogTextArea;
+    private SymbolTable                        symbolTable;
 
     private static final Dimension MIN_SIZE       = new Dimension(320, 200);
     private static final Dimension PREFERRED_SIZE = new Dimension(640, 480);
@@ -68,17 +71,30 @@ public class TraceLog extends JFrame {
      * call.
      */
     public void refresh() {
+        Object refresh = SimulatorEvents.startTraceLogRefresh();
         StringBuilder logString = new StringBuilder();        
-        
+        int lines = 0;
+
         synchronized(traceLog) {
             for (CpuState state : traceLog) {
-                logString.append(state.toTraceEvent());
+                logString.append(state.toTraceEvent(symbolTable));
+                lines++;
             }
         }
 
         synchronized(traceLogTextArea) {
             traceLogTextArea.setText(logString.toString());
         }
+        SimulatorEvents.finishTraceLogRefresh(refresh, lines);
+    }
+
+    /**
+     * Set the symbols used to show operands as labels.
+     *
+     * @param symbolTable The symbols, or null for plain addresses.
+     */
+    public void setSymbolTable(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
     }
 
     /**
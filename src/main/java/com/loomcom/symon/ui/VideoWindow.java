@@ -30,22 +30,20 @@ import com.loomcom.symon.exceptions.MemoryAccessException;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static java.lang.System.*;
-
 /**
  * VideoWindow represents a graphics framebuffer backed by a 6545 CRTC.
- * Each time the window's VideoPanel is repainted, the video memory is
- * scanned and converted to the appropriate bitmap representation.
+ * The display is drawn by a {@link CrtcRenderer}, which redraws only the
+ * characters that changed since the last refresh, and only the changed
+ * part of the window is then repainted.
  * <p>
  * The graphical representation of each character is derived from a
  * character generator ROM image. For this simulation, the Commodore PET
@@ -55,54 +53,37 @@ import static java.lang.System.*;
  * It may be convenient to think of this as the View (in the MVC
  * pattern sense) to the Crtc's Model and Controller. Whenever the CRTC
  * updates state in a way that may require the view to update, it calls
- * the <tt>deviceStateChange</tt> callback on this Window.
+ * the <tt>deviceStateChange</tt> callback on this Window. Changes are
+ * applied on the next refresh, so a burst of register writes costs no more
+ * than one.
  */
 public class VideoWindow extends JFrame implements DeviceChangeListener {
 
     private static final Logger logger = Logger.getLogger(VideoWindow.class.getName());
 
-    private static final int CHAR_WIDTH = 8;
-    private static final int CHAR_HEIGHT = 8;
-
-    private final int scaleX, scaleY;
-    private final boolean shouldScale;
+    private final CrtcRenderer renderer;
 
-    private BufferedImage image;
-    private int[] charRom;
-
-    private int horizontalDisplayed;
-    private int verticalDisplayed;
-    private int scanLinesPerRow;
     private int cursorBlinkRate;
     private boolean hideCursor;
 
     private Dimension dimensions;
     private Crtc crtc;
 
+    private volatile boolean crtcStateChanged;
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+
     private ScheduledExecutorService scheduler;
     private ScheduledFuture<?> cursorBlinker;
 
+    private VideoPanel videoPanel;
+
     /**
      * A panel representing the composite video output, with fast Graphics2D painting.
      */
     private class VideoPanel extends JPanel {
         @Override
         public void paintComponent(Graphics g) {
-            try {
-                for (int i = 0; i < crtc.getPageSize(); i++) {
-                    int address = crtc.getStartAddress() + i;
-                    int originX = (i % horizontalDisplayed) * CHAR_WIDTH;
-                    int originY = (i / horizontalDisplayed) * scanLinesPerRow;
-                    image.getRaster().setPixels(originX, originY, CHAR_WIDTH, scanLinesPerRow, getGlyph(address));
-                }
-                Graphics2D g2d = (Graphics2D) g;
-                if (shouldScale) {
-                    g2d.scale(scaleX, scaleY);
-                }
-                g2d.drawImage(image, 0, 0, null);
-            } catch (MemoryAccessException ex) {
-                logger.log(Level.SEVERE, "Memory Access Exception, can't paint video window! " + ex.getMessage());
-            }
+            g.drawImage(renderer.getImage(), 0, 0, null);
         }
 
         @Override
@@ -127,7 +108,7 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
                 public void run() {
                     if (cursorBlinkRate > 0) {
                         hideCursor = !hideCursor;
-                        VideoWindow.this.repaint();
+                        refreshDisplay();
                     }
                 }
             });
@@ -139,10 +120,8 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
 
         this.scheduler = Executors.newSingleThreadScheduledExecutor();
         this.crtc = crtc;
-        this.charRom = loadCharRom("/ascii.rom");
-        this.scaleX = scaleX;
-        this.scaleY = scaleY;
-        this.shouldScale = (scaleX > 1 || scaleY > 1);
+        this.renderer = new CrtcRenderer(crtc, scaleX, scaleY);
+        this.dimensions = imageSize();
         this.cursorBlinkRate = crtc.getCursorBlinkRate();
 
         if (cursorBlinkRate > 0) {
@@ -152,43 +131,45 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
                                                                TimeUnit.MILLISECONDS);
         }
 
-        // Capture some state from the CRTC that will define the
-        // window size. When these values change, the window will
-        // need to re-pack and redraw.
-        this.horizontalDisplayed = crtc.getHorizontalDisplayed();
-        this.verticalDisplayed = crtc.getVerticalDisplayed();
-        this.scanLinesPerRow = crtc.getScanLinesPerRow();
-
-        buildImage();
-
         createAndShowUi();
 
+        refreshDisplay();
     }
 
     /**
-     * Called by the CRTC on state change.
+     * Called by the CRTC on state change. This may be called on the CPU thread
+     * for every register write, so the change is only noted here.
      */
     public void deviceStateChanged() {
+        crtcStateChanged = true;
+    }
 
-        boolean repackNeeded = false;
-
-        // TODO: I'm not entirely happy with this pattern, and I'd like to make it a bit DRY-er.
-
-        if (horizontalDisplayed != crtc.getHorizontalDisplayed()) {
-            horizontalDisplayed = crtc.getHorizontalDisplayed();
-            repackNeeded = true;
-        }
-
-        if (verticalDisplayed != crtc.getVerticalDisplayed()) {
-            verticalDisplayed = crtc.getVerticalDisplayed();
-            repackNeeded = true;
-        }
-
-        if (scanLinesPerRow != crtc.getScanLinesPerRow()) {
-            scanLinesPerRow = crtc.getScanLinesPerRow();
-            repackNeeded = true;
+    /**
+     * Bring the window up to date with the CRTC and video memory. This may be
+     * called from any thread, and any number of calls made before the event
+     * dispatch thread gets to the refresh are served by it.
+     */
+    public void refreshDisplay() {
+        if (refreshPending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    refreshPending.set(false);
+                    if (crtcStateChanged) {
+                        crtcStateChanged = false;
+                        applyCrtcState();
+                    }
+                    updateImage();
+                }
+            });
         }
+    }
 
+    /**
+     * Pick up changes to the cursor blink rate from the CRTC. Changes to the
+     * display geometry are picked up by the renderer.
+     */
+    private void applyCrtcState() {
         if (cursorBlinkRate != crtc.getCursorBlinkRate()) {
             cursorBlinkRate = crtc.getCursorBlinkRate();
 
@@ -205,14 +186,39 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
                                                               TimeUnit.MILLISECONDS);
             }
         }
+    }
+
+    /**
+     * Render the changes to the display, and repaint the part of the window
+     * they cover. If the size of the display has changed, the window is
+     * re-packed.
+     */
+    private void updateImage() {
+        renderer.setCursorHidden(hideCursor);
+        Rectangle changed;
+        try {
+            changed = renderer.update();
+        } catch (MemoryAccessException ex) {
+            logger.log(Level.SEVERE, "Memory Access Exception, can't paint video window! " + ex.getMessage());
+            return;
+        }
 
-        if (repackNeeded) {
-            buildImage();
+        Dimension size = imageSize();
+        if (!size.equals(dimensions)) {
+            dimensions = size;
             invalidate();
             pack();
+            videoPanel.repaint();
+        } else if (changed != null) {
+            videoPanel.repaint(changed);
         }
     }
 
+    private Dimension imageSize() {
+        BufferedImage image = renderer.getImage();
+        return new Dimension(image.getWidth(), image.getHeight());
+    }
+
     private void createAndShowUi() {
         setTitle("Composite Video");
 
@@ -224,90 +230,11 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
         containerPane.setLayout(new BorderLayout());
         containerPane.setBackground(Color.black);
 
-        containerPane.add(new VideoPanel(), BorderLayout.CENTER);
+        videoPanel = new VideoPanel();
+        containerPane.add(videoPanel, BorderLayout.CENTER);
 
         getContentPane().add(containerPane, BorderLayout.CENTER);
         setResizable(false);
         pack();
     }
-
-    /**
-     * Returns an array of pixels (including extra scanlines, if any) corresponding to the
-     * Character ROM plus cursor overlay (if any). The cursor overlay simulates an XOR
-     * of the Character Rom output and the 6545 Cursor output.
-     *
-     * @param address The address of the character being requested.
-     * @return An array of integers representing the pixel data.
-     */
-    private int[] getGlyph(int address) throws MemoryAccessException {
-        int chr = crtc.getCharAtAddress(address);
-        int romOffset = (chr & 0xff) * (CHAR_HEIGHT * CHAR_WIDTH);
-        int[] glyph = new int[CHAR_WIDTH * scanLinesPerRow];
-
-        // Populate the character
-        arraycopy(charRom, romOffset, glyph, 0, CHAR_WIDTH * Math.min(CHAR_HEIGHT, scanLinesPerRow));
-
-        // Overlay the cursor
-        if (!hideCursor && crtc.isCursorEnabled() && crtc.getCursorPosition() == address) {
-            int cursorStart = Math.min(glyph.length, crtc.getCursorStartLine() * CHAR_WIDTH);
-            int cursorStop = Math.min(glyph.length, (crtc.getCursorStopLine() + 1) * CHAR_WIDTH);
-
-            for (int i = cursorStart; i < cursorStop; i++) {
-                glyph[i] ^= 0xff;
-            }
-        }
-
-        return glyph;
-    }
-
-    private void buildImage() {
-        int rasterWidth = CHAR_WIDTH * horizontalDisplayed;
-        int rasterHeight = scanLinesPerRow * verticalDisplayed;
-        this.image = new BufferedImage(rasterWidth, rasterHeight, BufferedImage.TYPE_BYTE_BINARY);
-        this.dimensions = new Dimension(rasterWidth * scaleX, rasterHeight * scaleY);
-    }
-
-    /**
-     * Load a Character ROM file and convert it into an array of pixel data usable
-     * by the underlying BufferedImage's Raster.
-     * <p>
-     * Since the BufferedImage is a TYPE_BYTE_BINARY, the data must be converted
-     * into a single byte per pixel, 0 for black and 255 for white.
-
-     * @param resource The ROM file resource to load.
-     * @return An array of glyphs, each ready for insertion.
-     * @throws IOException
-     */
-    private int[] loadCharRom(String resource) throws IOException {
-        BufferedInputStream bis = null;
-        try {
-            bis = new BufferedInputStream(this.getClass().getResourceAsStream(resource));
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            while (bis.available() > 0) {
-                bos.write(bis.read());
-            }
-            bos.flush();
-            bos.close();
-
-            byte[] raw = bos.toByteArray();
-
-            // Now convert the raw ROM image into a format suitable for
-            // insertion directly into the BufferedImage.
-            int[] converted = new int[raw.length * CHAR_WIDTH];
-
-            int romIndex = 0;
-            for (int i = 0; i < converted.length;) {
-                byte charRow = raw[romIndex++];
-
-                for (int j = 7; j >= 0; j--) {
-                    converted[i++] = ((charRow & (1 << j)) == 0) ? 0 : 0xff;
-                }
-            }
-            return converted;
-        } finally {
-            if (bis != null) {
-                bis.close();
-            }
-        }
-    }
 }
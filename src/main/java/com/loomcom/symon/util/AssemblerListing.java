@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.util;
+
+import com.loomcom.symon.InstructionTable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A parsed assembler listing, in the format written by AS65 with wide
+ * listings enabled, as shipped with the test ROMs in <code>samples/tests</code>.
+ * <p>
+ * Listing lines that generated output start with a four digit hex address,
+ * a colon and the generated bytes; equates use an equals sign instead of the
+ * colon. The source statement always starts in column 24, with labels in
+ * that column and instructions indented.
+ */
+public class AssemblerListing {
+
+    private static final int SOURCE_COLUMN = 24;
+
+    private static final Set<String> mnemonics = new HashSet<>();
+
+    static {
+        for (String name : InstructionTable.opcodeNames) {
+            if (name != null) {
+                mnemonics.add(name.toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * One line of the listing.
+     */
+    public static class Line {
+        /* 1-based line number in the listing file */
+        public final int lineNumber;
+        /* Address of the line, or -1 if it has none */
+        public final int address;
+        /* Number of bytes the line generated */
+        public final int size;
+        /* Label defined on the line, or null */
+        public final String label;
+        /* True if the line is an equate rather than generated code or data */
+        public final boolean equate;
+        /* True if the line is an instruction */
+        public final boolean code;
+        /* The opcode, if the line is an instruction */
+        public final int opcode;
+
+        Line(int lineNumber, int address, int size, String label, boolean equate, boolean code, int opcode) {
+            this.lineNumber = lineNumber;
+            this.address = address;
+            this.size = size;
+            this.label = label;
+            this.equate = equate;
+            this.code = code;
+            this.opcode = opcode;
+        }
+    }
+
+    private final String name;
+    private final List<Line> lines;
+
+    private AssemblerListing(String name, List<Line> lines) {
+        this.name = name;
+        this.lines = Collections.unmodifiableList(lines);
+    }
+
+    public static AssemblerListing load(File file) throws IOException {
+        try (Reader reader = new FileReader(file)) {
+            return parse(file.getPath(), reader);
+        }
+    }
+
+    public static AssemblerListing parse(String name, Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        List<Line> lines = new ArrayList<>();
+        String text;
+        int lineNumber = 0;
+
+        while ((text = reader.readLine()) != null) {
+            lineNumber++;
+            Line line = parseLine(lineNumber, text);
+            if (line != null) {
+                lines.add(line);
+            }
+        }
+
+        return new AssemblerListing(name, lines);
+    }
+
+    /*
+     * Returns null for lines without an address.
+     */
+    private static Line parseLine(int lineNumber, String text) {
+        if (text.length() < 7 || text.charAt(4) != ' ' || text.charAt(6) != ' ') {
+            return null;
+        }
+
+        char kind = text.charAt(5);
+        if (kind != ':' && kind != '=') {
+            return null;
+        }
+
+        int address;
+        try {
+            address = Integer.parseInt(text.substring(0, 4), 16);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        String bytes = text.substring(7, Math.min(text.length(), SOURCE_COLUMN)).trim();
+        String source = text.length() > SOURCE_COLUMN ? text.substring(SOURCE_COLUMN) : "";
+
+        String label = null;
+        String statement = source;
+        if (!source.isEmpty() && isLabelStart(source.charAt(0))) {
+            int end = 0;
+            while (end < source.length() && !Character.isWhitespace(source.charAt(end))) {
+                end++;
+            }
+            label = source.substring(0, end);
+            if (label.endsWith(":")) {
+                label = label.substring(0, label.length() - 1);
+            }
+            statement = source.substring(end);
+        }
+
+        if (kind == '=') {
+            return new Line(lineNumber, address, 0, label, true, false, -1);
+        }
+
+        // Long data is truncated with "..", so only instructions have an exact size.
+        int size = bytes.endsWith("..") ? 0 : bytes.length() / 2;
+
+        statement = statement.trim();
+        int end = 0;
+        while (end < statement.length() && !Character.isWhitespace(statement.charAt(end))) {
+            end++;
+        }
+        boolean code = size > 0 && mnemonics.contains(statement.substring(0, end).toLowerCase());
+        int opcode = code ? Integer.parseInt(bytes.substring(0, 2), 16) : -1;
+
+        return new Line(lineNumber, address, size, label, false, code, opcode);
+    }
+
+    private static boolean isLabelStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '.' || c == '@';
+    }
+
+    /**
+     * @return The name of the listing, usually its path.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return All lines that have an address, in listing order.
+     */
+    public List<Line> getLines() {
+        return lines;
+    }
+}
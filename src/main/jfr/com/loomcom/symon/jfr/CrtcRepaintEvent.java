@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.jfr;
+
+import jdk.jfr.*;
+
+@Name("com.loomcom.symon.CrtcRepaint")
+@Label("CRTC Repaint")
+@Category("Symon")
+@Description("An update of the CRTC video image, redrawing the characters that changed")
+@Enabled(false)
+@StackTrace(false)
+class CrtcRepaintEvent extends Event {
+
+    @Label("Characters Redrawn")
+    int characters;
+
+    static Object start() {
+        CrtcRepaintEvent event = new CrtcRepaintEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void finish(Object repaint, int characters) {
+        CrtcRepaintEvent event = (CrtcRepaintEvent) repaint;
+        event.end();
+        if (event.shouldCommit()) {
+            event.characters = characters;
+            event.commit();
+        }
+    }
+}
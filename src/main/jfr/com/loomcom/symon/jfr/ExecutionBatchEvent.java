@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon.jfr;
+
+import jdk.jfr.*;
+
+@Name("com.loomcom.symon.ExecutionBatch")
+@Label("Execution Batch")
+@Category("Symon")
+@Description("A run of guest instructions between two UI updates")
+@Enabled(false)
+@StackTrace(false)
+class ExecutionBatchEvent extends Event {
+
+    @Label("Instructions")
+    long instructions;
+
+    @Label("Cycles")
+    long cycles;
+
+    // Counters at the start of the batch, not recorded.
+    private transient long startInstructions;
+    private transient long startCycles;
+
+    static Object start(long instructions, long cycles) {
+        ExecutionBatchEvent event = new ExecutionBatchEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.startInstructions = instructions;
+        event.startCycles = cycles;
+        event.begin();
+        return event;
+    }
+
+    static void finish(Object batch, long instructions, long cycles) {
+        ExecutionBatchEvent event = (ExecutionBatchEvent) batch;
+        event.end();
+        if (event.shouldCommit()) {
+            event.instructions = instructions - event.startInstructions;
+            event.cycles = cycles - event.startCycles;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.loomcom.symon.jfr;
+
+/**
+ * Emits the simulator's events as JDK Flight Recorder events. This is
+ * loaded by name from {@link SimulatorEvents}, and only when Flight Recorder
+ * is present.
+ */
+class JfrEventSink implements EventSink {
+
+    public Object startExecutionBatch(long instructions, long cycles) {
+        return ExecutionBatchEvent.start(instructions, cycles);
+    }
+
+    public void finishExecutionBatch(Object batch, long instructions, long cycles) {
+        ExecutionBatchEvent.finish(batch, instructions, cycles);
+    }
+
+    public void interrupt(boolean nmi, int returnAddress, int handlerAddress) {
+        InterruptEvent.emit(nmi, returnAddress, handlerAddress);
+    }
+
+    public void breakpointHit(int address) {
+        BreakpointEvent.emit(address);
+    }
+
+    public Object startSdTransfer() {
+        return SdTransferEvent.start();
+    }
+
+    public void finishSdTransfer(Object transfer, boolean write, int sector) {
+        SdTransferEvent.finish(transfer, write, sector);
+    }
+
+    public Object startCrtcRepaint() {
+        return CrtcRepaintEvent.start();
+    }
+
+    public void finishCrtcRepaint(Object repaint, int characters) {
+        CrtcRepaintEvent.finish(repaint, characters);
+    }
+
+    public Object startTraceLogRefresh() {
+        return TraceLogRefreshEvent.start();
+    }
+
+    public void finishTraceLogRefresh(Object refresh, int lines) {
+        TraceLogRefreshEvent.finish(refresh, lines);
+    }
+}
@@ -0,0 +1,98 @@
+package com.loomcom.symon;
+
+import junit.framework.*;
+
+/**
+ * Exhaustively compare the ADC/SBC tables against the arithmetic they
+ * replaced, so that a change to the tables can't silently change results.
+ * The arithmetic itself is checked by the functional test images run in
+ * {@link BlockCacheTest}.
+ */
+public class AluTablesTest extends TestCase {
+
+    public AluTablesTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AluTablesTest.class);
+    }
+
+    private static int flags(int result, boolean c, boolean v, boolean n) {
+        return (c ? AluTables.C_FLAG : 0) |
+               (result == 0 ? AluTables.Z_FLAG : 0) |
+               (v ? AluTables.V_FLAG : 0) |
+               (n ? AluTables.N_FLAG : 0);
+    }
+
+    private static int referenceAdc(int carry, int acc, int operand) {
+        int result = (operand & 0xff) + (acc & 0xff) + carry;
+        int carry6 = (operand & 0x7f) + (acc & 0x7f) + carry;
+        boolean c = (result & 0x100) != 0;
+        boolean v = c ^ ((carry6 & 0x80) != 0);
+        result &= 0xff;
+        return result | flags(result, c, v, (result & 0x80) != 0);
+    }
+
+    private static int referenceAdcDecimal(int carry, int acc, int operand, boolean cmos) {
+        int l, h, result;
+        l = (acc & 0x0f) + (operand & 0x0f) + carry;
+        if ((l & 0xff) > 9) l += 6;
+        h = (acc >> 4) + (operand >> 4) + (l > 15 ? 1 : 0);
+        if ((h & 0xff) > 9) h += 6;
+        result = ((l & 0x0f) | (h << 4)) & 0xff;
+        return result | flags(result, h > 15, false, cmos && (result & 0x80) != 0);
+    }
+
+    private static int referenceSbcDecimal(int carry, int acc, int operand, boolean cmos) {
+        int l, h, result;
+        l = (acc & 0x0f) - (operand & 0x0f) - (carry == 1 ? 0 : 1);
+        if ((l & 0x10) != 0) l -= 6;
+        h = (acc >> 4) - (operand >> 4) - ((l & 0x10) != 0 ? 1 : 0);
+        if ((h & 0x10) != 0) h -= 6;
+        result = ((l & 0x0f) | (h << 4)) & 0xff;
+        return result | flags(result, (h & 0xff) < 15, false, cmos && (result & 0x80) != 0);
+    }
+
+    public void testBinaryAdc() {
+        char[] table = AluTables.binaryAdc();
+        for (int c = 0; c <= 1; c++) {
+            for (int a = 0; a < 0x100; a++) {
+                for (int m = 0; m < 0x100; m++) {
+                    assertEquals(referenceAdc(c, a, m), table[AluTables.index(c, a, m)]);
+                }
+            }
+        }
+    }
+
+    public void testDecimalTables() {
+        InstructionTable.CpuBehavior[] behaviors = {
+            InstructionTable.CpuBehavior.NMOS_6502,
+            InstructionTable.CpuBehavior.CMOS_6502
+        };
+
+        for (InstructionTable.CpuBehavior behavior : behaviors) {
+            boolean cmos = behavior == InstructionTable.CpuBehavior.CMOS_6502;
+            char[] adc = AluTables.decimalAdc(behavior);
+            char[] sbc = AluTables.decimalSbc(behavior);
+            for (int c = 0; c <= 1; c++) {
+                for (int a = 0; a < 0x100; a++) {
+                    for (int m = 0; m < 0x100; m++) {
+                        int i = AluTables.index(c, a, m);
+                        assertEquals(referenceAdcDecimal(c, a, m, cmos), adc[i]);
+                        assertEquals(referenceSbcDecimal(c, a, m, cmos), sbc[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testTablesAreSharedBetweenSimilarBehaviors() {
+        assertSame(AluTables.decimalAdc(InstructionTable.CpuBehavior.NMOS_6502),
+                   AluTables.decimalAdc(InstructionTable.CpuBehavior.NMOS_WITH_ROR_BUG));
+        assertSame(AluTables.decimalSbc(InstructionTable.CpuBehavior.CMOS_6502),
+                   AluTables.decimalSbc(InstructionTable.CpuBehavior.CMOS_65816));
+        assertNotSame(AluTables.decimalAdc(InstructionTable.CpuBehavior.NMOS_6502),
+                      AluTables.decimalAdc(InstructionTable.CpuBehavior.CMOS_6502));
+    }
+}
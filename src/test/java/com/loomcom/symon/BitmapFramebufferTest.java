@@ -0,0 +1,133 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.BitmapFramebuffer;
+import com.loomcom.symon.ui.FramebufferRenderer;
+import junit.framework.TestCase;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+/**
+ * Tests the bitmap framebuffer device, and rendering it without a window.
+ */
+public class BitmapFramebufferTest extends TestCase {
+
+    private static final int BASE = 0x9800;
+    private static final int WINDOW = BASE + BitmapFramebuffer.WINDOW_OFFSET;
+
+    private Bus bus;
+    private BitmapFramebuffer framebuffer;
+    private FramebufferRenderer renderer;
+
+    protected void setUp() throws Exception {
+        bus = new Bus(0x0000, 0xffff);
+        framebuffer = new BitmapFramebuffer(BASE);
+        bus.addDevice(framebuffer);
+        renderer = new FramebufferRenderer(framebuffer);
+    }
+
+    public void testMemoryMap() throws Exception {
+        assertEquals(0x9800, framebuffer.startAddress());
+        assertEquals(0xbfff, framebuffer.endAddress());
+        assertEquals(32000, BitmapFramebuffer.VIDEO_MEMORY_SIZE);
+    }
+
+    public void testBankedWindow() throws Exception {
+        bus.write(WINDOW, 0x11);
+        bus.write(BASE + BitmapFramebuffer.BANK_REG, 1);
+        assertEquals(1, bus.read(BASE + BitmapFramebuffer.BANK_REG, true));
+        bus.write(WINDOW, 0x22);
+        assertEquals(0x22, bus.read(WINDOW, true));
+
+        bus.write(BASE + BitmapFramebuffer.BANK_REG, 0);
+        assertEquals(0x11, bus.read(WINDOW, true));
+
+        byte[] memory = framebuffer.getVideoMemory();
+        assertEquals(0x11, memory[0]);
+        assertEquals(0x22, memory[BitmapFramebuffer.WINDOW_SIZE]);
+
+        // The last bank is only partly backed by video memory
+        bus.write(BASE + BitmapFramebuffer.BANK_REG, 3);
+        bus.write(0xbfff, 0x33);
+        assertEquals(0xff, bus.read(0xbfff, true));
+    }
+
+    public void testFirstUpdateDrawsEverything() throws Exception {
+        assertEquals(new Rectangle(0, 0, 320, 200), renderer.update());
+        assertNull(renderer.update());
+    }
+
+    public void testOnlyDirtyLinesAreRedrawn() throws Exception {
+        renderer.update();
+
+        // 1 bpp: 40 bytes per line
+        bus.write(WINDOW + 10 * 40, 0x80);
+        assertEquals(new Rectangle(0, 10, 320, 1), renderer.update());
+
+        bus.write(WINDOW + 3 * 40 + 39, 0x01);
+        bus.write(WINDOW + 7 * 40, 0x01);
+        assertEquals(new Rectangle(0, 3, 320, 5), renderer.update());
+
+        // Writing the same value again changes nothing
+        bus.write(WINDOW + 10 * 40, 0x80);
+        assertNull(renderer.update());
+    }
+
+    public void testOneBitPerPixel() throws Exception {
+        bus.write(WINDOW, 0xa0);
+        renderer.update();
+
+        BufferedImage image = renderer.getImage();
+        assertEquals(framebuffer.getPaletteColor(1), image.getRGB(0, 0) & 0xffffff);
+        assertEquals(framebuffer.getPaletteColor(0), image.getRGB(1, 0) & 0xffffff);
+        assertEquals(framebuffer.getPaletteColor(1), image.getRGB(2, 0) & 0xffffff);
+        assertEquals(framebuffer.getPaletteColor(0), image.getRGB(3, 0) & 0xffffff);
+    }
+
+    public void testFourBitsPerPixel() throws Exception {
+        bus.write(BASE + BitmapFramebuffer.MODE_REG, 2);
+        assertEquals(4, framebuffer.getBitsPerPixel());
+        assertEquals(160, framebuffer.getBytesPerLine());
+
+        // Second line, first two pixels
+        bus.write(WINDOW + 160, 0x2f);
+        assertEquals(new Rectangle(0, 0, 320, 200), renderer.update());
+
+        BufferedImage image = renderer.getImage();
+        assertEquals(framebuffer.getPaletteColor(2), image.getRGB(0, 1) & 0xffffff);
+        assertEquals(framebuffer.getPaletteColor(15), image.getRGB(1, 1) & 0xffffff);
+        assertEquals(framebuffer.getPaletteColor(0), image.getRGB(2, 1) & 0xffffff);
+    }
+
+    public void testTwoBitsPerPixel() throws Exception {
+        bus.write(BASE + BitmapFramebuffer.MODE_REG, 1);
+        renderer.update();
+
+        // The last byte of the last line is in the second bank
+        bus.write(BASE + BitmapFramebuffer.BANK_REG, 1);
+        bus.write(WINDOW + 80 * 199 + 79 - BitmapFramebuffer.WINDOW_SIZE, 0x1b);
+        assertEquals(new Rectangle(0, 199, 320, 1), renderer.update());
+
+        BufferedImage image = renderer.getImage();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(framebuffer.getPaletteColor(i), image.getRGB(316 + i, 199) & 0xffffff);
+        }
+    }
+
+    public void testPaletteRegisters() throws Exception {
+        renderer.update();
+
+        bus.write(BASE + BitmapFramebuffer.PALETTE_INDEX_REG, 1);
+        bus.write(BASE + BitmapFramebuffer.PALETTE_DATA_REG, 0x12);
+        bus.write(BASE + BitmapFramebuffer.PALETTE_DATA_REG, 0x34);
+        bus.write(BASE + BitmapFramebuffer.PALETTE_DATA_REG, 0x56);
+        assertEquals(0x123456, framebuffer.getPaletteColor(1));
+        assertEquals(2, bus.read(BASE + BitmapFramebuffer.PALETTE_INDEX_REG, true));
+
+        // A palette change redraws the whole display
+        bus.write(WINDOW, 0x80);
+        assertEquals(new Rectangle(0, 0, 320, 200), renderer.update());
+        assertEquals(0x123456, renderer.getImage().getRGB(0, 0) & 0xffffff);
+    }
+
+}
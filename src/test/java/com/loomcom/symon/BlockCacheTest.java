@@ -0,0 +1,272 @@
+package com.loomcom.symon;
+
+import junit.framework.*;
+
+import com.loomcom.symon.devices.*;
+import com.loomcom.symon.exceptions.*;
+
+import java.io.File;
+
+/**
+ *
+ */
+public class BlockCacheTest extends TestCase {
+
+    private Cpu    cpu;
+    private Bus    bus;
+    private Memory mem;
+
+    public BlockCacheTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(BlockCacheTest.class);
+    }
+
+    public void setUp() throws MemoryRangeException, MemoryAccessException {
+        this.cpu = new Cpu();
+        this.bus = new Bus(0x0000, 0xffff);
+        this.mem = new Memory(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(mem);
+
+        cpu.setClockPeriodInNs(0);
+        cpu.setBlockCacheEnabled(true);
+
+        // All test programs start at 0x0200;
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+
+        cpu.reset();
+    }
+
+    /*
+     * A loop that rewrites the operand of its own LDA instruction
+     * on every pass.
+     */
+    private void loadSelfModifyingProgram() throws MemoryAccessException {
+        bus.loadProgram(0xa0, 0x00,        // LDY #$00
+                        0xa9, 0x00,        // LDA #$00    ; operand at $0203
+                        0x18,              // CLC
+                        0x69, 0x01,        // ADC #$01
+                        0x8d, 0x03, 0x02,  // STA $0203
+                        0x99, 0x00, 0x30,  // STA $3000,Y
+                        0xc8,              // INY
+                        0xd0, 0xf2,        // BNE $0202
+                        0x4c, 0x10, 0x02); // JMP $0210
+    }
+
+    public void testSelfModifyingCode() throws MemoryAccessException {
+        loadSelfModifyingProgram();
+
+        while (cpu.getProgramCounter() != 0x0210) {
+            cpu.stepBlock();
+        }
+
+        for (int i = 0; i < 0x100; i++) {
+            assertEquals((i + 1) & 0xff, bus.read(0x3000 + i, false));
+        }
+
+        assertTrue(cpu.getBlockCache().getCompiledBlockCount() > 0);
+        assertTrue(cpu.getBlockCache().getInvalidationCount() > 0);
+    }
+
+    /*
+     * A loop made of instruction pairs that are run by fused handlers.
+     */
+    private void loadFusionProgram() throws MemoryAccessException {
+        bus.write(0x3000, 0x5a);
+        bus.loadProgram(0xa9, 0x00,        // $0200  LDA #$00
+                        0x85, 0x10,        // $0202  STA $10
+                        0x85, 0x12,        // $0204  STA $12
+                        0xa9, 0x30,        // $0206  LDA #$30
+                        0x85, 0x11,        // $0208  STA $11
+                        0xa9, 0x31,        // $020A  LDA #$31
+                        0x85, 0x13,        // $020C  STA $13
+                        0xa2, 0x40,        // $020E  LDX #$40
+                        0xb1, 0x10,        // $0210  LDA ($10),Y
+                        0x91, 0x12,        // $0212  STA ($12),Y
+                        0xad, 0x00, 0x30,  // $0214  LDA $3000
+                        0x8d, 0x00, 0x32,  // $0217  STA $3200
+                        0xe6, 0x20,        // $021A  INC $20
+                        0xd0, 0x00,        // $021C  BNE $021E
+                        0xc9, 0x05,        // $021E  CMP #$05
+                        0xf0, 0x00,        // $0220  BEQ $0222
+                        0xc9, 0x5a,        // $0222  CMP #$5A
+                        0xd0, 0x00,        // $0224  BNE $0226
+                        0xa0, 0x03,        // $0226  LDY #$03
+                        0x88,              // $0228  DEY
+                        0xd0, 0xfd,        // $0229  BNE $0228
+                        0xca,              // $022B  DEX
+                        0xd0, 0xe2,        // $022C  BNE $0210
+                        0x4c, 0x2e, 0x02); // $022E  JMP $022E
+    }
+
+    /*
+     * Reset the machine, load a program, and run it to the given address,
+     * either with or without the block cache.
+     */
+    private CpuState runProgram(boolean fusionProgram, boolean useBlocks, int endAddress)
+            throws MemoryAccessException {
+        cpu.setBlockCacheEnabled(useBlocks);
+        mem.fill(0);
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+        cpu.reset();
+
+        if (fusionProgram) {
+            loadFusionProgram();
+        } else {
+            loadSelfModifyingProgram();
+        }
+
+        while (cpu.getProgramCounter() != endAddress) {
+            if (useBlocks) {
+                cpu.stepBlock();
+            } else {
+                cpu.step();
+            }
+        }
+
+        return new CpuState(cpu.getCpuState());
+    }
+
+    private void assertSameState(CpuState expected, CpuState actual) {
+        assertEquals(expected.a, actual.a);
+        assertEquals(expected.x, actual.x);
+        assertEquals(expected.y, actual.y);
+        assertEquals(expected.sp, actual.sp);
+        assertEquals(expected.getStatusFlag(), actual.getStatusFlag());
+        assertEquals(expected.stepCounter, actual.stepCounter);
+        assertEquals(expected.cycleCounter, actual.cycleCounter);
+    }
+
+    public void testBlocksMatchInterpreter() throws MemoryAccessException {
+        CpuState interpreted = runProgram(false, false, 0x0210);
+        CpuState blocks = runProgram(false, true, 0x0210);
+
+        assertSameState(interpreted, blocks);
+    }
+
+    public void testFusedPairsMatchInterpreter() throws MemoryAccessException {
+        CpuState interpreted = runProgram(true, false, 0x022e);
+        int incremented = bus.read(0x20, false);
+        int copied = bus.read(0x3100, false);
+
+        CpuState blocks = runProgram(true, true, 0x022e);
+
+        assertSameState(interpreted, blocks);
+        assertEquals(incremented, bus.read(0x20, false));
+        assertEquals(copied, bus.read(0x3100, false));
+        assertEquals(0x5a, bus.read(0x3200, false));
+
+        for (BlockCache.Fusion fusion : BlockCache.Fusion.values()) {
+            assertTrue(fusion.toString(), cpu.getBlockCache().getFusionHits(fusion) > 0);
+        }
+    }
+
+    public void testInterruptTakenAtBlockBoundary() throws MemoryAccessException {
+        // IRQ vector points to a NOP at $0300
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x03);
+        bus.write(0x0300, 0xea);
+
+        bus.loadProgram(0xe8,              // INX
+                        0xe8,              // INX
+                        0x4c, 0x00, 0x02); // JMP $0200
+
+        do {
+            cpu.stepBlock();
+        } while (cpu.getBlockCache().getCompiledBlockCount() == 0 ||
+                 cpu.getProgramCounter() != 0x0200);
+
+        // A whole block runs at once, without stopping mid-loop.
+        assertEquals(3, cpu.stepBlock());
+        assertEquals(0x0200, cpu.getProgramCounter());
+
+        // The interrupt is taken, then the first handler instruction runs.
+        cpu.assertIrq();
+        cpu.stepBlock();
+
+        assertEquals(0x0301, cpu.getProgramCounter());
+        assertTrue(cpu.getIrqDisableFlag());
+    }
+
+    public void testBlockEndsAfterDeviceWrite() throws Exception {
+        Acia acia = new Acia6551(0x8800);
+        Memory low = new Memory(0x0000, 0x7fff);
+        bus.removeDevice(mem);
+        bus.addDevice(low);
+        bus.addDevice(acia);
+        bus.addDevice(new Memory(0xc000, 0xffff));
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+        cpu.reset();
+
+        // Two characters written back to back, without waiting for TDRE
+        bus.loadProgram(0xa9, 'O',               // LDA #'O'
+                        0x8d, 0x00, 0x88,        // STA $8800
+                        0xa9, 'K',               // LDA #'K'
+                        0x8d, 0x00, 0x88,        // STA $8800
+                        0x4c, 0x00, 0x02);       // JMP $0200
+
+        StringBuilder output = new StringBuilder();
+        while (output.length() < 4 * BlockCache.HOT_THRESHOLD) {
+            cpu.stepBlock();
+            if (acia.hasTxChar()) {
+                output.append((char) acia.txRead(true));
+            }
+        }
+
+        assertTrue(cpu.getBlockCache().getCompiledBlockCount() > 0);
+        for (int i = 0; i < output.length(); i += 2) {
+            assertEquals("OK", output.substring(i, i + 2));
+        }
+    }
+
+    public void testFunctionalTest() throws Exception {
+        Memory program = new Memory(0x0000, 0xffff);
+        program.loadFromFile(new File("samples/tests/6502_functional_test.bin"));
+        bus.removeDevice(mem);
+        bus.addDevice(program);
+
+        cpu.setBehavior(InstructionTable.CpuBehavior.NMOS_6502);
+        cpu.reset();
+        cpu.setProgramCounter(0x0400);
+
+        int lastPc;
+        do {
+            lastPc = cpu.getProgramCounter();
+            cpu.stepBlock();
+        } while (cpu.getProgramCounter() != lastPc);
+
+        // The test ends by jumping to itself; $3399 is the success trap.
+        assertEquals(0x3399, cpu.getProgramCounter());
+    }
+
+    /*
+     * The 65C02 extended opcode test image, which includes an exhaustive test
+     * of decimal mode ADC and SBC (with the 65C02's valid N and Z flags), run
+     * through the ALU tables.
+     */
+    public void testExtendedOpcodesTest() throws Exception {
+        Memory program = new Memory(0x0000, 0xffff);
+        program.loadFromFile(new File("samples/tests/65C02_extended_opcodes_test.bin"));
+        bus.removeDevice(mem);
+        bus.addDevice(program);
+
+        cpu.setBehavior(InstructionTable.CpuBehavior.CMOS_6502);
+        cpu.reset();
+        cpu.setProgramCounter(0x0400);
+
+        int lastPc;
+        do {
+            lastPc = cpu.getProgramCounter();
+            cpu.stepBlock();
+        } while (cpu.getProgramCounter() != lastPc);
+
+        // The test ends by jumping to itself; $24A8 is the success trap.
+        assertEquals(0x24a8, cpu.getProgramCounter());
+    }
+}
@@ -135,4 +135,21 @@ public class BusTest extends TestCase {
         assertFalse(c.getCpuState().nmiAsserted);
     }
 
+    public void testPageVersionOnlyChangesWhenMemoryChanges() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(new Memory(0x0000, 0xffff));
+
+        int version = b.getPageVersion(0x0200);
+        b.write(0x0210, 0x00);
+        assertEquals(version, b.getPageVersion(0x0210));
+
+        b.write(0x0210, 0xa9);
+        assertFalse(version == b.getPageVersion(0x0210));
+
+        version = b.getPageVersion(0x0210);
+        b.write(0x0210, 0xa9);
+        assertEquals(version, b.getPageVersion(0x0210));
+        assertEquals(0xa9, b.read(0x0210, false));
+    }
+
 }
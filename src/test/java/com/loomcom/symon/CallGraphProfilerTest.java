@@ -0,0 +1,204 @@
+package com.loomcom.symon;
+
+import junit.framework.*;
+
+import com.loomcom.symon.devices.*;
+import com.loomcom.symon.exceptions.*;
+import com.loomcom.symon.profiler.CallGraphProfiler;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *
+ */
+public class CallGraphProfilerTest extends TestCase {
+
+    private Cpu               cpu;
+    private Bus               bus;
+    private CallGraphProfiler profiler;
+
+    public CallGraphProfilerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(CallGraphProfilerTest.class);
+    }
+
+    public void setUp() throws MemoryRangeException, MemoryAccessException {
+        this.cpu = new Cpu();
+        this.bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+
+        cpu.setClockPeriodInNs(0);
+
+        // All test programs start at 0x0200;
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+
+        // IRQ handler at 0x0400
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x04);
+
+        cpu.reset();
+
+        this.profiler = new CallGraphProfiler();
+        cpu.setCallGraphProfiler(profiler);
+    }
+
+    private void write(int address, int... bytes) throws MemoryAccessException {
+        for (int i = 0; i < bytes.length; i++) {
+            bus.write(address + i, bytes[i]);
+        }
+    }
+
+    public void testNestedCalls() throws Exception {
+        write(0x0200, 0x20, 0x00, 0x03,  // JSR $0300
+                      0xea);             // NOP
+        write(0x0300, 0x20, 0x10, 0x03,  // JSR $0310
+                      0x60);             // RTS
+        write(0x0310, 0xea,              // NOP
+                      0x60);             // RTS
+
+        cpu.step();
+        cpu.step();
+        assertEquals(2, profiler.getDepth());
+        assertEquals(0x0310, profiler.getCurrentRoutine());
+
+        for (int i = 0; i < 4; i++) {
+            cpu.step();
+        }
+        assertEquals(0, profiler.getDepth());
+        assertEquals(0x0204, cpu.getProgramCounter());
+
+        StringWriter out = new StringWriter();
+        profiler.writeCollapsed(out);
+        String collapsed = out.toString();
+        assertTrue(collapsed.contains("root 8\n"));
+        assertTrue(collapsed.contains("root;$0300 12\n"));
+        assertTrue(collapsed.contains("root;$0300;$0310 8\n"));
+
+        List<CallGraphProfiler.RoutineStats> stats = profiler.getRoutineStats();
+        assertEquals(2, stats.size());
+        assertEquals(0x0300, stats.get(0).address);
+        assertEquals(1, stats.get(0).calls);
+        assertEquals(20, stats.get(0).inclusiveCycles);
+        assertEquals(12, stats.get(0).exclusiveCycles);
+        assertEquals(0x0310, stats.get(1).address);
+        assertEquals(8, stats.get(1).inclusiveCycles);
+        assertEquals(8, stats.get(1).exclusiveCycles);
+    }
+
+    public void testRecursionIsCountedOnceInclusive() throws Exception {
+        // A routine that calls itself once: LDX #$01 before the first call,
+        // DEX; BMI out; JSR self; out: RTS
+        write(0x0200, 0xa2, 0x01,        // LDX #$01
+                      0x20, 0x00, 0x03); // JSR $0300
+        write(0x0300, 0xca,              // DEX
+                      0x30, 0x03,        // BMI +3
+                      0x20, 0x00, 0x03,  // JSR $0300
+                      0x60);             // RTS
+
+        while (cpu.getProgramCounter() != 0x0205) {
+            cpu.step();
+        }
+
+        List<CallGraphProfiler.RoutineStats> stats = profiler.getRoutineStats();
+        assertEquals(1, stats.size());
+        assertEquals(2, stats.get(0).calls);
+        assertEquals(stats.get(0).exclusiveCycles, stats.get(0).inclusiveCycles);
+    }
+
+    public void testDiscardedReturnAddressReturnsToCaller() throws Exception {
+        write(0x0200, 0x20, 0x00, 0x03); // JSR $0300
+        write(0x0300, 0x68,              // PLA
+                      0x68);             // PLA
+
+        cpu.step();
+        assertEquals(1, profiler.getDepth());
+        cpu.step();
+        cpu.step();
+        assertEquals(0, profiler.getDepth());
+        assertEquals(-1, profiler.getCurrentRoutine());
+    }
+
+    public void testRtsAsComputedJumpStaysInRoutine() throws Exception {
+        write(0x0200, 0x20, 0x00, 0x03); // JSR $0300
+        write(0x0300, 0xa9, 0x03,        // LDA #$03
+                      0x48,              // PHA
+                      0xa9, 0x0f,        // LDA #$0F
+                      0x48,              // PHA
+                      0x60);             // RTS, to $0310
+
+        for (int i = 0; i < 6; i++) {
+            cpu.step();
+        }
+
+        assertEquals(0x0310, cpu.getProgramCounter());
+        assertEquals(1, profiler.getDepth());
+        assertEquals(0x0300, profiler.getCurrentRoutine());
+    }
+
+    public void testInterruptFrames() throws Exception {
+        write(0x0200, 0x58,              // CLI
+                      0xea,              // NOP
+                      0xea);             // NOP
+        write(0x0400, 0xea,              // NOP
+                      0x40);             // RTI
+
+        cpu.step();
+        cpu.assertIrq();
+        cpu.step();
+        cpu.clearIrq();
+        assertEquals(1, profiler.getDepth());
+        assertEquals(0x0400, profiler.getCurrentRoutine());
+
+        cpu.step();
+        assertEquals(0, profiler.getDepth());
+
+        StringWriter out = new StringWriter();
+        profiler.writeCollapsed(out);
+        assertTrue(out.toString().contains("root;IRQ:$0400 "));
+    }
+
+    public void testReportWhileRunning() throws Exception {
+        final CallGraphProfiler shared = new CallGraphProfiler();
+        final Throwable[] failure = new Throwable[1];
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        // Calls to many different routines keep adding to the call tree.
+        Thread runThread = new Thread() {
+            public void run() {
+                try {
+                    int i = 0;
+                    while (running.get()) {
+                        shared.instructionExecuted(0x20, i++ & 0xffff, 0xfd, 6);
+                        shared.instructionExecuted(0x60, 0x0203, 0xff, 6);
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        runThread.start();
+
+        try {
+            for (int i = 0; i < 200; i++) {
+                shared.writeCollapsed(new StringWriter());
+                shared.writeRoutineCsv(new StringWriter());
+                if (i % 5 == 0) {
+                    shared.reset();
+                }
+            }
+        } finally {
+            running.set(false);
+            runThread.join();
+        }
+
+        assertNull(failure[0]);
+        assertTrue(shared.getDepth() <= 1);
+    }
+}
@@ -0,0 +1,165 @@
+package com.loomcom.symon;
+
+import junit.framework.*;
+
+/**
+ *
+ */
+public class ClockPacerTest extends TestCase {
+
+    /**
+     * A pacer with a fake clock, which moves on by a microsecond whenever it
+     * is read, and by the full amount when sleeping.
+     */
+    private static class FakeClockPacer extends ClockPacer {
+        long now = 1000000000L;
+        long slept;
+        int sleeps;
+
+        FakeClockPacer(long frequency) {
+            super(frequency);
+        }
+
+        @Override
+        long nanoTime() {
+            return now += 1000;
+        }
+
+        @Override
+        void sleep(long ns) {
+            slept += ns;
+            sleeps++;
+            now += ns;
+        }
+    }
+
+    public ClockPacerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ClockPacerTest.class);
+    }
+
+    public void testUnthrottledNeverSleeps() {
+        FakeClockPacer pacer = new FakeClockPacer(0);
+        for (long cycles = 0; cycles < 10000000; cycles += 4) {
+            pacer.pace(cycles);
+        }
+        assertEquals(0, pacer.sleeps);
+    }
+
+    public void testTracksWallClockWithoutDrift() {
+        // 3 MHz has no exact period in nanoseconds
+        FakeClockPacer pacer = new FakeClockPacer(3000000);
+        long start = pacer.now;
+        long cycles = 0;
+        while (cycles < 30000000) {
+            cycles += 3;
+            pacer.pace(cycles);
+        }
+        long elapsed = pacer.now - start;
+
+        // Ten simulated seconds, give or take one slice
+        assertTrue("Elapsed " + elapsed, Math.abs(elapsed - 10000000000L) <= ClockPacer.SLICE_NS);
+        // The thread sleeps once per slice, rather than once per instruction
+        assertTrue("Sleeps " + pacer.sleeps, pacer.sleeps <= 10000);
+        assertTrue(pacer.slept > 9000000000L);
+    }
+
+    public void testCatchesUpWhenBehind() {
+        FakeClockPacer pacer = new FakeClockPacer(1000000);
+        long cycles = 0;
+        for (int i = 0; i < 1000; i++) {
+            pacer.pace(cycles += 4);
+        }
+
+        // The host falls 50ms behind, less than the lag that is given up on.
+        pacer.now += 50000000;
+        int sleeps = pacer.sleeps;
+        long start = pacer.now;
+        while (cycles < 100000) {
+            pacer.pace(cycles += 4);
+        }
+
+        // The 50ms are made up by running without sleeping for a while.
+        long elapsed = pacer.now - start;
+        assertTrue("Elapsed " + elapsed, elapsed < 50000000L);
+        assertTrue(pacer.sleeps > sleeps);
+    }
+
+    public void testGivesUpWhenFarBehind() {
+        FakeClockPacer pacer = new FakeClockPacer(1000000);
+        long cycles = 0;
+        for (int i = 0; i < 1000; i++) {
+            pacer.pace(cycles += 4);
+        }
+
+        // Stopped for a second, e.g. at a breakpoint
+        pacer.now += 1000000000L;
+        long start = pacer.now;
+        long startCycles = cycles;
+        while (cycles < startCycles + 100000) {
+            pacer.pace(cycles += 4);
+        }
+
+        // The next 100ms of simulated time take 100ms again.
+        long elapsed = pacer.now - start;
+        assertTrue("Elapsed " + elapsed, Math.abs(elapsed - 100000000L) <= 2 * ClockPacer.SLICE_NS);
+    }
+
+    public void testChangingFrequency() {
+        FakeClockPacer pacer = new FakeClockPacer(1000000);
+        long cycles = 0;
+        while (cycles < 1000000) {
+            pacer.pace(cycles += 4);
+        }
+
+        pacer.setFrequency(8000000);
+        assertEquals(8000000, pacer.getFrequency());
+        long start = pacer.now;
+        long startCycles = cycles;
+        while (cycles < startCycles + 8000000) {
+            pacer.pace(cycles += 4);
+        }
+
+        long elapsed = pacer.now - start;
+        assertTrue("Elapsed " + elapsed, Math.abs(elapsed - 1000000000L) <= ClockPacer.SLICE_NS);
+        assertEquals(8000000, pacer.getMeasuredFrequency(), 80000);
+    }
+
+    public void testResetAfterCycleCounterReset() {
+        FakeClockPacer pacer = new FakeClockPacer(1000000);
+        long cycles = 0;
+        while (cycles < 100000) {
+            pacer.pace(cycles += 4);
+        }
+
+        // The cycle counter starts again from zero.
+        pacer.reset();
+        long start = pacer.now;
+        cycles = 0;
+        while (cycles < 100000) {
+            pacer.pace(cycles += 4);
+        }
+
+        long elapsed = pacer.now - start;
+        assertTrue("Elapsed " + elapsed, Math.abs(elapsed - 100000000L) <= 2 * ClockPacer.SLICE_NS);
+    }
+
+    public void testCpuClockFrequency() {
+        Cpu cpu = new Cpu();
+        assertEquals(Cpu.DEFAULT_CLOCK_FREQUENCY, cpu.getClockFrequency());
+        assertEquals(Cpu.DEFAULT_CLOCK_PERIOD_IN_NS, cpu.getClockPeriodInNs());
+
+        cpu.setClockFrequency(1843200);
+        assertEquals(1843200, cpu.getClockFrequency());
+
+        cpu.setClockPeriodInNs(250);
+        assertEquals(4000000, cpu.getClockFrequency());
+
+        cpu.setClockPeriodInNs(0);
+        assertEquals(0, cpu.getClockFrequency());
+        assertEquals(0, cpu.getClockPeriodInNs());
+    }
+}
@@ -0,0 +1,188 @@
+package com.loomcom.symon;
+
+import junit.framework.*;
+
+import com.loomcom.symon.devices.*;
+import com.loomcom.symon.exceptions.*;
+import com.loomcom.symon.profiler.CoverageRecorder;
+import com.loomcom.symon.profiler.CoverageReport;
+import com.loomcom.symon.util.AssemblerListing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ *
+ */
+public class CoverageRecorderTest extends TestCase {
+
+    private static final String LISTING =
+            "AS65 Assembler for R6502 [1.42].\n" +
+            "0010 =                  counter = $10\n" +
+            "0200 =                          org $200\n" +
+            "0200 : a202             start   ldx #2\n" +
+            "0202 :                  loop\n" +
+            "0202 : ca                       dex\n" +
+            "0203 : d0fd                     bne loop        ;back to loop\n" +
+            "0205 : f002                     beq done\n" +
+            "0207 : ea               unused  nop\n" +
+            "0208 : 00               table   db  0\n" +
+            "0209 : 4c0902           done    jmp done\n";
+
+    private Cpu              cpu;
+    private Bus              bus;
+    private CoverageRecorder recorder;
+
+    public CoverageRecorderTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(CoverageRecorderTest.class);
+    }
+
+    public void setUp() throws MemoryRangeException, MemoryAccessException {
+        this.cpu = new Cpu();
+        this.bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+
+        cpu.setClockPeriodInNs(0);
+
+        // All test programs start at 0x0200;
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+
+        cpu.reset();
+
+        this.recorder = new CoverageRecorder();
+        cpu.setCoverageRecorder(recorder);
+    }
+
+    private void runListingProgram() throws MemoryAccessException {
+        bus.loadProgram(0xa2, 0x02,
+                        0xca,
+                        0xd0, 0xfd,
+                        0xf0, 0x02,
+                        0xea,
+                        0x00,
+                        0x4c, 0x09, 0x02);
+        for (int i = 0; i < 7; i++) {
+            cpu.step();
+        }
+        assertEquals(0x0209, cpu.getProgramCounter());
+    }
+
+    public void testParseListing() throws Exception {
+        AssemblerListing listing = AssemblerListing.parse("test.lst", new StringReader(LISTING));
+
+        // Every line with an address, including equates and label-only lines.
+        assertEquals(10, listing.getLines().size());
+
+        AssemblerListing.Line equate = listing.getLines().get(0);
+        assertTrue(equate.equate);
+        assertEquals("counter", equate.label);
+        assertEquals(0x10, equate.address);
+
+        AssemblerListing.Line start = listing.getLines().get(2);
+        assertEquals(4, start.lineNumber);
+        assertEquals("start", start.label);
+        assertTrue(start.code);
+        assertEquals(2, start.size);
+        assertEquals(0xa2, start.opcode);
+
+        AssemblerListing.Line table = listing.getLines().get(8);
+        assertEquals("table", table.label);
+        assertFalse(table.code);
+    }
+
+    public void testRecordsExecutionAndBranchOutcomes() throws Exception {
+        runListingProgram();
+
+        assertTrue(recorder.isExecuted(0x0200));
+        assertTrue(recorder.isExecuted(0x0203));
+        assertFalse(recorder.isExecuted(0x0204));
+        assertFalse(recorder.isExecuted(0x0207));
+
+        assertTrue(recorder.isBranchTaken(0x0203));
+        assertTrue(recorder.isBranchNotTaken(0x0203));
+        assertTrue(recorder.isBranchTaken(0x0205));
+        assertFalse(recorder.isBranchNotTaken(0x0205));
+
+        assertEquals(5, recorder.getExecutedCount());
+    }
+
+    public void testReport() throws Exception {
+        runListingProgram();
+
+        AssemblerListing listing = AssemblerListing.parse("test.lst", new StringReader(LISTING));
+        CoverageReport report = new CoverageReport(listing, recorder);
+
+        assertEquals(6, report.getLinesFound());
+        assertEquals(5, report.getLinesHit());
+        assertEquals(4, report.getBranchesFound());
+        assertEquals(3, report.getBranchesHit());
+
+        assertEquals(4, report.getRoutines().size());
+        assertEquals("loop", report.getRoutines().get(1).label);
+        assertEquals(3, report.getRoutines().get(1).instructions);
+
+        StringWriter lcov = new StringWriter();
+        report.writeLcov(lcov, "listing");
+        String text = lcov.toString();
+        assertTrue(text.startsWith("TN:listing\nSF:test.lst\n"));
+        assertTrue(text.contains("FN:5,loop\n"));
+        assertTrue(text.contains("FNDA:0,unused\n"));
+        assertTrue(text.contains("BRDA:7,0,0,1\nBRDA:7,0,1,1\n"));
+        assertTrue(text.contains("BRDA:8,0,0,1\nBRDA:8,0,1,0\n"));
+        assertTrue(text.contains("DA:9,0\n"));
+        assertTrue(text.endsWith("LF:6\nLH:5\nend_of_record\n"));
+    }
+
+    public void testMergeAndSave() throws Exception {
+        CoverageRecorder other = new CoverageRecorder();
+        other.instructionExecuted(0x1234, 0xea, 0x1235);
+        other.instructionExecuted(0x2000, 0xd0, 0x2002);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        other.write(out);
+        CoverageRecorder loaded = CoverageRecorder.read(new ByteArrayInputStream(out.toByteArray()));
+
+        recorder.instructionExecuted(0x2000, 0xd0, 0x2010);
+        recorder.merge(loaded);
+
+        assertTrue(recorder.isExecuted(0x1234));
+        assertTrue(recorder.isBranchTaken(0x2000));
+        assertTrue(recorder.isBranchNotTaken(0x2000));
+        assertEquals(2, recorder.getExecutedCount());
+    }
+
+    public void testFunctionalTestCoverage() throws Exception {
+        Memory program = new Memory(0x0000, 0xffff);
+        program.loadFromFile(new File("samples/tests/6502_functional_test.bin"));
+        bus.removeDevice(bus.getDevices().first());
+        bus.addDevice(program);
+
+        cpu.reset();
+        cpu.setProgramCounter(0x0400);
+
+        int lastPc;
+        do {
+            lastPc = cpu.getProgramCounter();
+            cpu.step();
+        } while (cpu.getProgramCounter() != lastPc);
+        assertEquals(0x3399, cpu.getProgramCounter());
+
+        AssemblerListing listing = AssemblerListing.load(new File("samples/tests/6502_functional_test.lst"));
+        CoverageReport report = new CoverageReport(listing, recorder);
+
+        assertEquals("start", report.getRoutines().get(0).label);
+        assertEquals(0x0400, report.getRoutines().get(0).address);
+        assertTrue(report.getLinesHit() > report.getLinesFound() / 2);
+        // The error traps are never reached.
+        assertTrue(report.getLinesHit() < report.getLinesFound());
+    }
+}
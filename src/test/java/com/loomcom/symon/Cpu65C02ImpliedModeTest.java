@@ -249,4 +249,103 @@ public class Cpu65C02ImpliedModeTest extends TestCase {
         assertFalse(cpu.getDecimalModeFlag());
     }
 
+
+    public void test_WAI() throws Exception {
+        makeCmosCpu();
+        cpu.setClockPeriodInNs(0);
+        bus.loadProgram(0xcb,  // WAI
+                        0xea); // NOP
+
+        cpu.step();
+        assertTrue(cpu.isWaiting());
+        assertEquals(0x201, cpu.getProgramCounter());
+
+        // Nothing is executed while waiting.
+        cpu.step();
+        assertTrue(cpu.isWaiting());
+        assertEquals(0x201, cpu.getProgramCounter());
+        assertEquals(1, cpu.getCpuState().stepCounter);
+
+        // With IRQs disabled, an IRQ ends the wait without being taken.
+        cpu.setIrqDisableFlag();
+        cpu.assertIrq();
+        cpu.step();
+        assertFalse(cpu.isWaiting());
+        assertEquals(0x202, cpu.getProgramCounter());
+    }
+
+    public void test_WAIResumesOnIrqFromAnotherThread() throws Exception {
+        makeCmosCpu();
+        cpu.setClockPeriodInNs(0);
+        // IRQ vector points to a NOP at $0300
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x03);
+        bus.write(0x0300, 0xea);
+        bus.loadProgram(0xcb); // WAI
+
+        cpu.step();
+        assertTrue(cpu.isWaiting());
+
+        Thread device = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                cpu.assertIrq();
+            }
+        };
+        device.start();
+
+        while (cpu.isWaiting()) {
+            cpu.step();
+        }
+        device.join();
+
+        // Interrupt was taken, and the handler's first instruction run.
+        assertEquals(0x301, cpu.getProgramCounter());
+        assertTrue(cpu.getIrqDisableFlag());
+    }
+
+    public void test_WAIRequiresCmosCpu() throws Exception {
+        makeNmosCpu();
+        bus.loadProgram(0xcb); // WAI
+
+        cpu.step();
+        assertFalse(cpu.isWaiting());
+        assertTrue(cpu.getCpuState().opTrap);
+    }
+
+    public void test_STP() throws Exception {
+        makeCmosCpu();
+        cpu.setClockPeriodInNs(0);
+        bus.loadProgram(0xdb,  // STP
+                        0xea); // NOP
+
+        cpu.step();
+        assertTrue(cpu.isStopped());
+        assertEquals(0x201, cpu.getProgramCounter());
+
+        // Interrupts don't help, only reset does.
+        cpu.assertIrq();
+        cpu.step();
+        assertTrue(cpu.isStopped());
+        assertEquals(0x201, cpu.getProgramCounter());
+
+        cpu.reset();
+        assertFalse(cpu.isStopped());
+        cpu.step();
+        assertEquals(0x201, cpu.getProgramCounter());
+    }
+
+    public void test_STPRequiresCmosCpu() throws Exception {
+        makeNmosCpu();
+        bus.loadProgram(0xdb); // STP
+
+        cpu.step();
+        assertFalse(cpu.isStopped());
+        assertTrue(cpu.getCpuState().opTrap);
+    }
+
 }
@@ -346,6 +346,56 @@ public class CpuTest extends TestCase {
         assertFalse(cpu.getNegativeFlag());
     }
 
+    public void testProcessorStatusRoundTrip() {
+        for (int p = 0; p < 0x100; p++) {
+            cpu.setProcessorStatus(p);
+            assertEquals(p | 0x20, cpu.getProcessorStatus());
+        }
+    }
+
+    public void testNegativeAndZeroFlagsSetIndependently() {
+        cpu.setNegativeFlag();
+        cpu.setZeroFlag();
+        assertTrue(cpu.getNegativeFlag());
+        assertTrue(cpu.getZeroFlag());
+
+        cpu.clearNegativeFlag();
+        assertFalse(cpu.getNegativeFlag());
+        assertTrue(cpu.getZeroFlag());
+
+        cpu.setNegativeFlag();
+        cpu.clearZeroFlag();
+        assertTrue(cpu.getNegativeFlag());
+        assertFalse(cpu.getZeroFlag());
+    }
+
+    public void testStepReadsOnlyTheInstruction() throws Exception {
+        // A device that counts CPU reads, standing in for memory at $0200-$02ff
+        final int[] cpuReads = new int[1];
+        Device counter = new Device(0x0200, 0x02ff, "Counter") {
+            public void write(int address, int data) {}
+
+            public int read(int address, boolean cpuAccess) {
+                if (cpuAccess) {
+                    cpuReads[0]++;
+                }
+                return 0xea; // NOP
+            }
+
+            public String toString() {
+                return "Counter";
+            }
+        };
+        bus.addDevice(counter, 1);
+
+        cpu.step();
+        assertEquals(1, cpuReads[0]);
+
+        // Disassembling the next instruction is not a CPU access.
+        assertEquals("NOP", cpu.disassembleNextOp());
+        assertEquals(1, cpuReads[0]);
+    }
+
     public void testIrq() throws Exception {
         // Ensure the IRQ disable flag is cleared
         cpu.clearIrqDisableFlag();
@@ -0,0 +1,170 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Crtc;
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.ui.CrtcRenderer;
+import junit.framework.TestCase;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Tests rendering the CRTC's display without a window.
+ */
+public class CrtcRendererTest extends TestCase {
+
+    private static final int VIDEO_RAM = 0x7000;
+
+    private Memory memory;
+    private Crtc crtc;
+    private CrtcRenderer renderer;
+
+    protected void setUp() throws Exception {
+        memory = new Memory(0x0000, 0x7fff);
+        crtc = new Crtc(0x9000, memory);
+        memory.fill(0x20);
+        renderer = new CrtcRenderer(crtc);
+        renderer.setCursorHidden(true);
+    }
+
+    private void print(int column, int row, String text) throws Exception {
+        int address = VIDEO_RAM + row * crtc.getHorizontalDisplayed() + column;
+        for (int i = 0; i < text.length(); i++) {
+            memory.write(address + i, text.charAt(i));
+        }
+    }
+
+    public void testRendersWholeScreenFirst() throws Exception {
+        BufferedImage image = renderer.getImage();
+        assertEquals(40 * 8, image.getWidth());
+        assertEquals(25 * 9, image.getHeight());
+
+        Rectangle changed = renderer.update();
+        assertEquals(new Rectangle(0, 0, 40 * 8, 25 * 9), changed);
+        assertNull(renderer.update());
+    }
+
+    public void testOnlyChangedCellsAreRedrawn() throws Exception {
+        renderer.update();
+
+        print(3, 2, "A");
+        assertEquals(new Rectangle(3 * 8, 2 * 9, 8, 9), renderer.update());
+
+        print(1, 1, "HI");
+        print(5, 4, "!");
+        assertEquals(new Rectangle(8, 9, 5 * 8, 4 * 9), renderer.update());
+    }
+
+    public void testText() throws Exception {
+        print(0, 0, "HELLO");
+        print(38, 24, "OK");
+        renderer.update();
+
+        String[] lines = renderer.getText().split("\n");
+        assertEquals(25, lines.length);
+        assertTrue(lines[0].startsWith("HELLO "));
+        assertTrue(lines[24].endsWith(" OK"));
+        assertEquals('H', renderer.getCharacter(0, 0));
+        assertEquals(' ', renderer.getCharacter(5, 0));
+    }
+
+    public void testPixels() throws Exception {
+        print(0, 0, "W");
+        renderer.update();
+
+        BufferedImage image = renderer.getImage();
+        boolean lit = false;
+        for (int y = 0; y < 9; y++) {
+            for (int x = 0; x < 8; x++) {
+                // A space is blank
+                assertEquals(CrtcRenderer.BACKGROUND, image.getRGB(8 + x, y) & 0xffffff);
+                lit |= (image.getRGB(x, y) & 0xffffff) == CrtcRenderer.FOREGROUND;
+            }
+        }
+        assertTrue(lit);
+    }
+
+    public void testScaledRendering() throws Exception {
+        CrtcRenderer scaled = new CrtcRenderer(crtc, 2, 3);
+        assertEquals(40 * 16, scaled.getImage().getWidth());
+        assertEquals(25 * 27, scaled.getImage().getHeight());
+
+        scaled.update();
+        print(1, 0, "X");
+        assertEquals(new Rectangle(16, 0, 16, 27), scaled.update());
+    }
+
+    public void testCursor() throws Exception {
+        renderer.update();
+        long hidden = renderer.getFrameHash();
+
+        renderer.setCursorHidden(false);
+        assertEquals(new Rectangle(0, 0, 8, 9), renderer.update());
+        assertEquals(CrtcRenderer.FOREGROUND, renderer.getImage().getRGB(0, 0) & 0xffffff);
+        assertTrue(renderer.getFrameHash() != hidden);
+
+        renderer.setCursorHidden(true);
+        renderer.update();
+        assertEquals(hidden, renderer.getFrameHash());
+    }
+
+    public void testFrameHash() throws Exception {
+        renderer.update();
+        long blank = renderer.getFrameHash();
+
+        print(10, 10, "READY.");
+        renderer.update();
+        long ready = renderer.getFrameHash();
+        assertTrue(ready != blank);
+
+        CrtcRenderer other = new CrtcRenderer(crtc);
+        other.setCursorHidden(true);
+        other.update();
+        assertEquals(ready, other.getFrameHash());
+
+        print(10, 10, "      ");
+        renderer.update();
+        assertEquals(blank, renderer.getFrameHash());
+    }
+
+    public void testUndrawnCellsHashDifferentlyFromCharacters() throws Exception {
+        long undrawn = renderer.getFrameHash();
+
+        memory.fill(0xff);
+        renderer.update();
+        assertTrue(renderer.getFrameHash() != undrawn);
+    }
+
+    public void testGeometryChange() throws Exception {
+        renderer.update();
+
+        crtc.write(Crtc.REGISTER_SELECT, Crtc.HORIZONTAL_DISPLAYED);
+        crtc.write(Crtc.REGISTER_RW, 80);
+        renderer.update();
+
+        assertEquals(80, renderer.getColumns());
+        assertEquals(80 * 8, renderer.getImage().getWidth());
+    }
+
+    public void testWritePng() throws Exception {
+        print(0, 0, "PNG");
+        renderer.update();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        renderer.writePng(out);
+
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        BufferedImage image = renderer.getImage();
+        assertEquals(image.getWidth(), read.getWidth());
+        assertEquals(image.getHeight(), read.getHeight());
+        for (int y = 0; y < 9; y++) {
+            for (int x = 0; x < 24; x++) {
+                assertEquals(image.getRGB(x, y), read.getRGB(x, y));
+            }
+        }
+    }
+
+}
@@ -125,6 +125,17 @@ public class CrtcTest {
         verify(changeListener, times(1)).deviceStateChanged();
     }
 
+    @Test
+    public void rewritingRegisterWithSameValueDoesNotTriggerCallback() throws Exception {
+        crtc.write(0, 14);
+
+        crtc.write(1, 0x73);
+        crtc.write(1, 0x73);
+        crtc.write(1, 0x73);
+
+        verify(changeListener, times(1)).deviceStateChanged();
+    }
+
     @Test
     public void cursorStartLineRegisterChangesCursorVisibility() throws Exception {
         crtc.write(0, 10);
@@ -0,0 +1,107 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Crtc;
+import com.loomcom.symon.devices.Memory;
+import junit.framework.TestCase;
+
+/**
+ * Tests the CRTC's frame timing, which follows the CPU's cycle counter.
+ */
+public class CrtcTimingTest extends TestCase {
+
+    private Cpu cpu;
+    private Bus bus;
+    private Crtc crtc;
+
+    // With the default registers: 64 character times per line, 29 rows of 9 lines.
+    private static final int CYCLES_PER_FRAME = 64 * 29 * 9;
+    private static final int DISPLAYED_CYCLES = 64 * 25 * 9;
+
+    protected void setUp() throws Exception {
+        cpu = new Cpu();
+        bus = new Bus(0x0000, 0xffff);
+        Memory memory = new Memory(0x0000, 0x7fff);
+        crtc = new Crtc(0x9000, memory);
+        bus.addCpu(cpu);
+        bus.addDevice(memory);
+        bus.addDevice(crtc);
+        bus.addDevice(new Memory(0xc000, 0xffff));
+        cpu.setClockPeriodInNs(0);
+
+        // All test programs start at 0x0200;
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+        cpu.reset();
+        cpu.getCpuState().cycleCounter = 0;
+    }
+
+    public void testFramesFollowCycleCounter() {
+        assertEquals(CYCLES_PER_FRAME, crtc.getCyclesPerFrame());
+        assertEquals(0, crtc.getFrameCount());
+
+        cpu.getCpuState().cycleCounter = CYCLES_PER_FRAME - 1;
+        assertEquals(0, crtc.getFrameCount());
+        cpu.getCpuState().cycleCounter = CYCLES_PER_FRAME;
+        assertEquals(1, crtc.getFrameCount());
+        cpu.getCpuState().cycleCounter = 10L * CYCLES_PER_FRAME + 5;
+        assertEquals(10, crtc.getFrameCount());
+    }
+
+    public void testStatusRegisterShowsVerticalBlanking() throws Exception {
+        cpu.getCpuState().cycleCounter = 0;
+        assertEquals(0, bus.read(0x9000, true) & Crtc.STATUS_VERTICAL_BLANK);
+
+        cpu.getCpuState().cycleCounter = DISPLAYED_CYCLES;
+        assertEquals(Crtc.STATUS_VERTICAL_BLANK, bus.read(0x9000, true) & Crtc.STATUS_VERTICAL_BLANK);
+
+        cpu.getCpuState().cycleCounter = CYCLES_PER_FRAME;
+        assertEquals(0, bus.read(0x9000, true) & Crtc.STATUS_VERTICAL_BLANK);
+    }
+
+    public void testGuestCanWaitForVerticalBlanking() throws Exception {
+        // loop: LDA $9000; AND #$20; BEQ loop; BRK
+        bus.loadProgram(0xad, 0x00, 0x90,
+                        0x29, 0x20,
+                        0xf0, 0xf9,
+                        0x00);
+
+        int steps = 0;
+        while (cpu.getProgramCounter() != 0x0207 && steps < 100000) {
+            cpu.step();
+            steps++;
+        }
+
+        assertEquals(0x0207, cpu.getProgramCounter());
+        long cycles = cpu.getCpuState().cycleCounter;
+        assertTrue(cycles >= DISPLAYED_CYCLES);
+        assertTrue(cycles < DISPLAYED_CYCLES + 20);
+    }
+
+    public void testZeroScanLinesPerRowCountsAsOne() throws Exception {
+        crtc.write(Crtc.REGISTER_SELECT, Crtc.SCAN_LINE);
+        crtc.write(Crtc.REGISTER_RW, 0);
+        assertEquals(64 * 29, crtc.getCyclesPerFrame());
+
+        cpu.getCpuState().cycleCounter = 64 * 25 - 1;
+        assertFalse(crtc.isVerticalBlanking());
+        cpu.getCpuState().cycleCounter = 64 * 25;
+        assertTrue(crtc.isVerticalBlanking());
+        cpu.getCpuState().cycleCounter = 64 * 29;
+        assertFalse(crtc.isVerticalBlanking());
+        assertEquals(1, crtc.getFrameCount());
+    }
+
+    public void testChangingTotalsKeepsFrameCount() throws Exception {
+        cpu.getCpuState().cycleCounter = 3L * CYCLES_PER_FRAME;
+        assertEquals(3, crtc.getFrameCount());
+
+        // Halve the line length.
+        crtc.write(Crtc.REGISTER_SELECT, Crtc.HORIZONTAL_TOTAL);
+        crtc.write(Crtc.REGISTER_RW, 31);
+        assertEquals(32 * 29 * 9, crtc.getCyclesPerFrame());
+
+        cpu.getCpuState().cycleCounter += CYCLES_PER_FRAME;
+        assertEquals(5, crtc.getFrameCount());
+    }
+
+}
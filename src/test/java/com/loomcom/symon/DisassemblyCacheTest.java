@@ -0,0 +1,91 @@
+package com.loomcom.symon;
+
+import junit.framework.*;
+
+import com.loomcom.symon.devices.*;
+import com.loomcom.symon.exceptions.*;
+
+/**
+ *
+ */
+public class DisassemblyCacheTest extends TestCase {
+
+    private Cpu              cpu;
+    private Bus              bus;
+    private DisassemblyCache cache;
+
+    public DisassemblyCacheTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(DisassemblyCacheTest.class);
+    }
+
+    public void setUp() throws MemoryRangeException, MemoryAccessException {
+        this.cpu = new Cpu();
+        this.bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0x87ff));
+        bus.addDevice(new Acia6551(0x8800));
+        bus.addDevice(new Memory(0x8804, 0xffff));
+        this.cache = new DisassemblyCache(cpu);
+    }
+
+    public void testDisassemblerFormats() {
+        StringBuilder sb = new StringBuilder();
+        assertEquals("LDA $1234", Disassembler.appendOp(sb, 0xad, 0x34, 0x12).toString());
+        sb.setLength(0);
+        assertEquals("LDA ($20),Y", Disassembler.appendOp(sb, 0xb1, 0x20, 0).toString());
+        sb.setLength(0);
+        assertEquals("LDA ($20,X)", Disassembler.appendOp(sb, 0xa1, 0x20, 0).toString());
+        sb.setLength(0);
+        assertEquals("LDX #$0A", Disassembler.appendOp(sb, 0xa2, 0x0a, 0).toString());
+        sb.setLength(0);
+        assertEquals("STA $FF,X", Disassembler.appendOp(sb, 0x95, 0xff, 0).toString());
+        sb.setLength(0);
+        assertEquals("JMP ($ABCD)", Disassembler.appendOp(sb, 0x6c, 0xcd, 0xab).toString());
+        sb.setLength(0);
+        assertEquals("NOP", Disassembler.appendOp(sb, 0xea, 0, 0).toString());
+    }
+
+    public void testAbsoluteIndexedIndirectIsNotDoubled() {
+        assertEquals("JMP ($1234,X)", Cpu.disassembleOp(0x7c, new int[] {0x34, 0x12}));
+    }
+
+    public void testLinesAreCachedUntilMemoryChanges() throws MemoryAccessException {
+        bus.write(0x0300, 0xa9); // LDA #$01
+        bus.write(0x0301, 0x01);
+
+        String line = cache.getLine(0x0300);
+        assertEquals("LDA #$01", line);
+        assertSame(line, cache.getLine(0x0300));
+
+        bus.write(0x0301, 0x02);
+        assertEquals("LDA #$02", cache.getLine(0x0300));
+    }
+
+    public void testOperandInNextPageInvalidatesLine() throws MemoryAccessException {
+        bus.write(0x03fe, 0xad); // LDA $1234
+        bus.write(0x03ff, 0x34);
+        bus.write(0x0400, 0x12);
+        assertEquals("LDA $1234", cache.getLine(0x03fe));
+
+        bus.write(0x0400, 0x56);
+        assertEquals("LDA $5634", cache.getLine(0x03fe));
+    }
+
+    public void testIoSpaceIsNotCached() {
+        String line = cache.getLine(0x8800);
+        assertNotSame(line, cache.getLine(0x8800));
+    }
+
+    public void testInstructionSize() throws MemoryAccessException {
+        bus.write(0x0300, 0xad);
+        bus.write(0x0303, 0xea);
+        bus.write(0x0304, 0xa0); // LDY #
+        assertEquals(3, cache.getInstructionSize(0x0300));
+        assertEquals(1, cache.getInstructionSize(0x0303));
+        assertEquals(2, cache.getInstructionSize(0x0304));
+    }
+}
@@ -0,0 +1,112 @@
+package com.loomcom.symon;
+
+import junit.framework.*;
+
+import com.loomcom.symon.devices.*;
+import com.loomcom.symon.exceptions.*;
+import com.loomcom.symon.profiler.HeatmapProfiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+
+import static com.loomcom.symon.profiler.HeatmapProfiler.Metric.*;
+
+/**
+ *
+ */
+public class HeatmapProfilerTest extends TestCase {
+
+    private Cpu             cpu;
+    private Bus             bus;
+    private HeatmapProfiler profiler;
+
+    public HeatmapProfilerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(HeatmapProfilerTest.class);
+    }
+
+    public void setUp() throws MemoryRangeException, MemoryAccessException {
+        this.cpu = new Cpu();
+        this.bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+
+        cpu.setClockPeriodInNs(0);
+
+        // All test programs start at 0x0200;
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+
+        cpu.reset();
+
+        // Profile only what the tests run, not the setup above.
+        this.profiler = new HeatmapProfiler(bus);
+        cpu.setHeatmapProfiler(profiler);
+    }
+
+    public void testCountsExecutionsCyclesReadsAndWrites() throws MemoryAccessException {
+        // LDX #$03; loop: STX $10; DEX; BNE loop
+        bus.loadProgram(0xa2, 0x03,
+                        0x86, 0x10,
+                        0xca,
+                        0xd0, 0xfb);
+        profiler.reset();
+
+        for (int i = 0; i < 10; i++) {
+            cpu.step();
+        }
+
+        assertEquals(1, profiler.getCount(EXECUTIONS, 0x0200));
+        assertEquals(3, profiler.getCount(EXECUTIONS, 0x0202));
+        assertEquals(3, profiler.getCount(EXECUTIONS, 0x0205));
+        assertEquals(3 * 3, profiler.getCount(CYCLES, 0x0202));
+        assertEquals(3, profiler.getCount(WRITES, 0x0010));
+        // The opcode fetches count as reads.
+        assertEquals(3, profiler.getCount(READS, 0x0204));
+        assertEquals(0, profiler.getCount(READS, 0x0010));
+    }
+
+    public void testBlockStepsAreCountedOneInstructionAtATime() throws MemoryAccessException {
+        cpu.setBlockCacheEnabled(true);
+        bus.loadProgram(0xa2, 0x00,
+                        0xca,
+                        0xd0, 0xfd);
+        profiler.reset();
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1, cpu.stepBlock());
+        }
+
+        assertEquals(50, profiler.getCount(EXECUTIONS, 0x0202));
+    }
+
+    public void testDetachedProfilerCountsNothing() throws MemoryAccessException {
+        bus.loadProgram(0xea, 0xea);
+        profiler.reset();
+        cpu.setHeatmapProfiler(null);
+
+        cpu.step();
+        bus.write(0x0300, 0x01);
+
+        assertEquals(0, profiler.getMaxCount(EXECUTIONS));
+        assertEquals(0, profiler.getMaxCount(WRITES));
+    }
+
+    public void testExport() throws Exception {
+        bus.loadProgram(0xea);
+        profiler.reset();
+        cpu.step();
+
+        StringWriter csv = new StringWriter();
+        profiler.writeCsv(csv);
+        assertEquals("address,executions,cycles,reads,writes\n" +
+                     "0200,1,2,1,0\n", csv.toString());
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        profiler.writeBinary(binary);
+        assertEquals(16 + 4 * 0x10000 * 8, binary.size());
+    }
+}
@@ -0,0 +1,113 @@
+package com.loomcom.symon;
+
+import junit.framework.*;
+
+import com.loomcom.symon.devices.*;
+import com.loomcom.symon.exceptions.*;
+
+/**
+ *
+ */
+public class IdleLoopDetectorTest extends TestCase {
+
+    private Cpu       cpu;
+    private Bus       bus;
+    private Acia6551  acia;
+
+    public IdleLoopDetectorTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(IdleLoopDetectorTest.class);
+    }
+
+    public void setUp() throws MemoryRangeException, MemoryAccessException {
+        this.cpu = new Cpu();
+        this.bus = new Bus(0x0000, 0xffff);
+        this.acia = new Acia6551(0x8800);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0x87ff));
+        bus.addDevice(acia);
+        bus.addDevice(new Memory(0x8804, 0xffff));
+
+        cpu.setClockPeriodInNs(0);
+        cpu.setIdleDetectionEnabled(true);
+
+        // All test programs start at 0x0200;
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+
+        cpu.reset();
+    }
+
+    private void loadPollingProgram() throws MemoryAccessException {
+        bus.loadProgram(0xad, 0x01, 0x88,  // $0200  LDA $8801
+                        0x29, 0x08,        // $0203  AND #$08
+                        0xf0, 0xf9,        // $0205  BEQ $0200
+                        0xad, 0x00, 0x88,  // $0207  LDA $8800
+                        0x4c, 0x0a, 0x02); // $020A  JMP $020A
+    }
+
+    public void testPollingLoopIsIdle() throws MemoryAccessException {
+        loadPollingProgram();
+
+        cpu.step(300);
+
+        assertTrue(cpu.getIdleLoopDetector().getIdleCount() > 0);
+
+        // Time spent parked is accounted for as cycles spent in the loop.
+        assertTrue(cpu.getCpuState().cycleCounter > 300 * 4);
+        assertEquals(0, cpu.getCpuState().cycleCounter % 8);
+    }
+
+    public void testLoopWithSideEffectsIsNotIdle() throws MemoryAccessException {
+        bus.loadProgram(0xad, 0x01, 0x88,  // $0200  LDA $8801
+                        0x8d, 0x00, 0x30,  // $0203  STA $3000
+                        0x29, 0x08,        // $0206  AND #$08
+                        0xf0, 0xf6);       // $0208  BEQ $0200
+
+        cpu.step(300);
+
+        assertEquals(0, cpu.getIdleLoopDetector().getIdleCount());
+    }
+
+    public void testLoopMakingProgressIsNotIdle() throws MemoryAccessException {
+        bus.loadProgram(0xe8,              // $0200  INX
+                        0xd0, 0xfd,        // $0201  BNE $0200
+                        0x4c, 0x03, 0x02); // $0203  JMP $0203
+
+        cpu.step(300);
+
+        assertEquals(0, cpu.getIdleLoopDetector().getIdleCount());
+    }
+
+    public void testWakeUpOnInput() throws Exception {
+        loadPollingProgram();
+
+        Thread typist = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                acia.rxWrite('A');
+                cpu.wakeUp();
+            }
+        };
+        typist.start();
+
+        long start = System.nanoTime();
+        while (cpu.getProgramCounter() != 0x020a) {
+            cpu.step();
+        }
+        typist.join();
+
+        assertEquals('A', cpu.getAccumulator());
+        assertTrue(cpu.getIdleLoopDetector().getIdleCount() > 0);
+        // Without idling, 50ms of polling would be tens of thousands of steps.
+        assertTrue(cpu.getCpuState().stepCounter < 10000);
+        assertTrue(System.nanoTime() - start < 5000000000L);
+    }
+}
@@ -0,0 +1,160 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.SymonMachine;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests running many machines at once, headless.
+ */
+public class MachinePoolTest extends TestCase {
+
+    private static final int ACIA_DATA = 0x8800;
+    private static final int ACIA_STATUS = 0x8801;
+
+    private MachinePool pool;
+
+    protected void setUp() throws Exception {
+        pool = new MachinePool(4, 1000);
+    }
+
+    protected void tearDown() throws Exception {
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Make a machine with a program at 0x0200, reset and ready to run.
+     */
+    private Machine makeMachine(int... program) throws Exception {
+        Machine machine = new SymonMachine();
+        Bus bus = machine.getBus();
+        bus.write(Cpu.RST_VECTOR_L, 0x00);
+        bus.write(Cpu.RST_VECTOR_H, 0x02);
+        machine.getCpu().reset();
+        bus.loadProgram(program);
+        return machine;
+    }
+
+    /**
+     * A program that prints a character, then breaks.
+     */
+    private Machine makePrinter(char c) throws Exception {
+        return makeMachine(0xa9, c,                              // LDA #c
+                           0x8d, ACIA_DATA & 0xff, ACIA_DATA >> 8, // STA ACIA_DATA
+                           0xa9, '\n',                           // LDA #'\n'
+                           0x8d, ACIA_DATA & 0xff, ACIA_DATA >> 8, // STA ACIA_DATA
+                           0x00);                                // BRK
+    }
+
+    public void testOutputAndState() throws Exception {
+        MachinePool.Result result = pool.submit(makePrinter('A'), 1000000).get();
+
+        assertEquals(MachinePool.StopReason.BREAK, result.getStopReason());
+        assertEquals("A\n", result.getOutput());
+        assertEquals(5, result.getSteps());
+        assertEquals(2 + 4 + 2 + 4 + 7, result.getCycles());
+        assertEquals(0x00, result.getCpuState().ir);
+        assertEquals('\n', result.getCpuState().a);
+    }
+
+    public void testUnpolledWrites() throws Exception {
+        // Write "ABC" 100 times, without waiting for the ACIA to be ready.
+        // The loop soon runs from the block cache.
+        Machine machine = makeMachine(0xa2, 100,                                // LDX #100
+                                      0xa9, 'A',                                // loop: LDA #'A'
+                                      0x8d, ACIA_DATA & 0xff, ACIA_DATA >> 8,   //       STA ACIA_DATA
+                                      0xa9, 'B',                                //       LDA #'B'
+                                      0x8d, ACIA_DATA & 0xff, ACIA_DATA >> 8,   //       STA ACIA_DATA
+                                      0xa9, 'C',                                //       LDA #'C'
+                                      0x8d, ACIA_DATA & 0xff, ACIA_DATA >> 8,   //       STA ACIA_DATA
+                                      0xca,                                     //       DEX
+                                      0xd0, 0xee,                               //       BNE loop
+                                      0x00);                                    //       BRK
+        MachinePool.Result result = pool.submit(machine, 1000000).get();
+
+        assertEquals(MachinePool.StopReason.BREAK, result.getStopReason());
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            expected.append("ABC");
+        }
+        assertEquals(expected.toString(), result.getOutput());
+        assertTrue(machine.getCpu().getBlockCache().getBlockExecutionCount() > 0);
+    }
+
+    public void testCycleLimit() throws Exception {
+        // loop: INX; JMP loop
+        Machine machine = makeMachine(0xe8, 0x4c, 0x00, 0x02);
+        MachinePool.Result result = pool.submit(machine, 50000).get();
+
+        assertEquals(MachinePool.StopReason.CYCLE_LIMIT, result.getStopReason());
+        assertTrue(result.getCycles() >= 50000);
+        assertTrue(result.getCycles() < 50010);
+        // Run in slices of 1000 cycles
+        assertTrue(result.getSlices() >= 50);
+    }
+
+    public void testInput() throws Exception {
+        // loop: LDA ACIA_STATUS; AND #$08; BEQ loop
+        //       LDA ACIA_DATA; STA ACIA_DATA; CMP #'.'; BNE loop; BRK
+        Machine machine = makeMachine(0xad, ACIA_STATUS & 0xff, ACIA_STATUS >> 8,
+                                      0x29, 0x08,
+                                      0xf0, 0xf9,
+                                      0xad, ACIA_DATA & 0xff, ACIA_DATA >> 8,
+                                      0x8d, ACIA_DATA & 0xff, ACIA_DATA >> 8,
+                                      0xc9, '.',
+                                      0xd0, 0xef,
+                                      0x00);
+        MachinePool.Result result = pool.submit(machine, 1000000, "HELLO.IGNORED").get();
+
+        assertEquals(MachinePool.StopReason.BREAK, result.getStopReason());
+        assertEquals("HELLO.", result.getOutput());
+    }
+
+    public void testManyMachinesShareThePool() throws Exception {
+        List<Future<MachinePool.Result>> loops = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            loops.add(pool.submit(makeMachine(0xe8, 0x4c, 0x00, 0x02), 200000));
+        }
+        List<Future<MachinePool.Result>> printers = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            printers.add(pool.submit(makePrinter((char) ('A' + i)), 1000000));
+        }
+
+        for (int i = 0; i < printers.size(); i++) {
+            assertEquals((char) ('A' + i) + "\n", printers.get(i).get(10, TimeUnit.SECONDS).getOutput());
+        }
+        for (Future<MachinePool.Result> loop : loops) {
+            MachinePool.Result result = loop.get(10, TimeUnit.SECONDS);
+            assertEquals(MachinePool.StopReason.CYCLE_LIMIT, result.getStopReason());
+            assertTrue(result.getCycles() >= 200000);
+        }
+    }
+
+    public void testMemoryAccessExceptionFailsTheRun() throws Exception {
+        // JMP $8100, where there is no device
+        Future<MachinePool.Result> future = pool.submit(makeMachine(0x4c, 0x00, 0x81), 1000000);
+        try {
+            future.get();
+            fail("Expected ExecutionException");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof MemoryAccessException);
+        }
+    }
+
+    public void testCancel() throws Exception {
+        Future<MachinePool.Result> future = pool.submit(makeMachine(0xe8, 0x4c, 0x00, 0x02), Long.MAX_VALUE / 2);
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertTrue(future.isDone());
+        assertFalse(future.cancel(false));
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.loomcom.symon;
+
+import junit.framework.*;
+
+import com.loomcom.symon.devices.*;
+import com.loomcom.symon.exceptions.*;
+import com.loomcom.symon.metrics.CpuMetrics;
+import com.loomcom.symon.metrics.MetricsRegistry;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+/**
+ *
+ */
+public class MetricsTest extends TestCase {
+
+    private Cpu         cpu;
+    private Bus         bus;
+    private Memory      memory;
+    private Acia6551    acia;
+    private MBeanServer server;
+
+    public MetricsTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(MetricsTest.class);
+    }
+
+    public void setUp() throws MemoryRangeException, MemoryAccessException {
+        this.cpu = new Cpu();
+        this.bus = new Bus(0x0000, 0xffff);
+        this.memory = new Memory(0x0000, 0x7fff);
+        this.acia = new Acia6551(0x8800);
+        bus.addCpu(cpu);
+        bus.addDevice(memory);
+        bus.addDevice(acia);
+        bus.addDevice(new Memory(0xc000, 0xffff));
+
+        cpu.setClockPeriodInNs(0);
+
+        // All test programs start at 0x0200;
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+        // IRQ handler at 0x0300 is an RTI
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x03);
+        bus.write(0x0300, 0x40);
+
+        cpu.reset();
+
+        this.server = MBeanServerFactory.newMBeanServer();
+    }
+
+    public void testDeviceCounts() throws Exception {
+        bus.loadProgram(0xad, 0x00, 0x10,  // LDA $1000
+                        0x8d, 0x01, 0x10,  // STA $1001
+                        0xad, 0x01, 0x88); // LDA $8801
+        long reads = memory.getBusReadCount();
+        long writes = memory.getBusWriteCount();
+        cpu.step(3);
+
+        // Instruction fetches count as reads.
+        assertEquals(reads + 9 + 1, memory.getBusReadCount());
+        assertEquals(writes + 1, memory.getBusWriteCount());
+        assertEquals(1, acia.getBusReadCount());
+        assertEquals(0, acia.getBusWriteCount());
+    }
+
+    public void testIrqCount() throws Exception {
+        bus.loadProgram(0x58,  // CLI
+                        0xea,  // NOP
+                        0xea); // NOP
+        cpu.step();
+        cpu.assertIrq();
+        cpu.step();
+        cpu.clearIrq();
+        cpu.step(2);
+
+        assertEquals(1, cpu.getIrqCount());
+        assertEquals(0, cpu.getNmiCount());
+    }
+
+    public void testRatesSurviveCpuReset() throws Exception {
+        CpuMetrics metrics = new CpuMetrics(cpu);
+        bus.loadProgram(0xea,  // NOP
+                        0xea,  // NOP
+                        0xea,  // NOP
+                        0xea); // NOP
+
+        metrics.sample(1000000L);
+        cpu.step(4);
+        metrics.sample(2000000L);
+        double mips = metrics.getMips();
+        double clock = metrics.getEffectiveClockMHz();
+        assertTrue(mips > 0);
+
+        cpu.reset();
+        metrics.sample(3000000L);
+        assertEquals(mips, metrics.getMips());
+        assertEquals(clock, metrics.getEffectiveClockMHz());
+        assertEquals(0.0, metrics.getIrqRate());
+
+        cpu.step(2);
+        metrics.sample(4000000L);
+        assertEquals(mips / 2, metrics.getMips());
+    }
+
+    public void testRegistration() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry(server);
+        registry.register("Test", cpu, bus);
+
+        ObjectName cpuName = new ObjectName("com.loomcom.symon:type=Cpu,machine=\"Test\"");
+        assertTrue(server.isRegistered(cpuName));
+        assertEquals(4, registry.getNames().size());
+
+        bus.loadProgram(0xea, 0xea);
+        cpu.step(2);
+        assertEquals(2L, server.getAttribute(cpuName, "Instructions"));
+
+        ObjectName aciaName = new ObjectName("com.loomcom.symon:type=Device,machine=\"Test\",name=" +
+                                             ObjectName.quote(acia.toString()));
+        assertEquals(0L, server.getAttribute(aciaName, "Overruns"));
+
+        // A second machine with the same name gets its own MBeans.
+        MetricsRegistry other = new MetricsRegistry(server);
+        other.register("Test", cpu, bus);
+        assertTrue(server.isRegistered(new ObjectName("com.loomcom.symon:type=Cpu,machine=\"Test #2\"")));
+
+        registry.unregister();
+        assertFalse(server.isRegistered(cpuName));
+        assertTrue(registry.getNames().isEmpty());
+        other.unregister();
+    }
+}
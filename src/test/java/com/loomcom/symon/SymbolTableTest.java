@@ -0,0 +1,128 @@
+package com.loomcom.symon;
+
+import junit.framework.*;
+
+import com.loomcom.symon.devices.*;
+import com.loomcom.symon.exceptions.*;
+
+import java.io.File;
+import java.io.StringReader;
+
+/**
+ *
+ */
+public class SymbolTableTest extends TestCase {
+
+    private SymbolTable symbols;
+
+    public SymbolTableTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(SymbolTableTest.class);
+    }
+
+    public void setUp() {
+        this.symbols = new SymbolTable();
+    }
+
+    public void testSymbolize() {
+        symbols.add(0x0200, "start");
+        symbols.add(0x0210, "loop");
+        symbols.add(0x0210, "other");
+
+        assertNull(symbols.symbolize(0x01ff));
+        assertEquals("start", symbols.symbolize(0x0200));
+        assertEquals("start+15", symbols.symbolize(0x020f));
+        assertEquals("loop", symbols.symbolize(0x0210));
+        assertEquals("loop+255", symbols.symbolize(0x030f));
+        assertNull(symbols.symbolize(0x0310));
+
+        assertEquals(0x0210, symbols.getAddress("other"));
+        assertEquals(-1, symbols.getAddress("missing"));
+
+        // Adding symbols invalidates the index.
+        symbols.add(0x0300, "late");
+        assertEquals("late+15", symbols.symbolize(0x030f));
+    }
+
+    public void testLoadViceLabels() throws Exception {
+        int count = symbols.loadViceLabels(new StringReader(
+                "al C000 .reset\n" +
+                "al 00C010 .irq\n" +
+                "\n"));
+
+        assertEquals(2, count);
+        assertEquals("reset", symbols.getName(0xc000));
+        assertEquals("irq", symbols.getName(0xc010));
+    }
+
+    public void testLoadLd65Map() throws Exception {
+        int count = symbols.loadLd65Map(new StringReader(
+                "Segment list:\n" +
+                "-------------\n" +
+                "CODE                  00C000  00C0FF  000100  00001\n" +
+                "\n" +
+                "Exports list by name:\n" +
+                "---------------------\n" +
+                "__CODE_SIZE__             000100 REA    _main                     00C000 RLA    \n" +
+                "_print                    00C020 RLA    \n" +
+                "\n" +
+                "Exports list by value:\n" +
+                "----------------------\n" +
+                "_main                     00C000 RLA    \n"));
+
+        assertEquals(2, count);
+        assertEquals("_main", symbols.getName(0xc000));
+        assertEquals("_print", symbols.getName(0xc020));
+        assertNull(symbols.getName(0x0100));
+    }
+
+    public void testLoadListing() throws Exception {
+        int count = symbols.load(new File("samples/tests/6502_functional_test.lst"));
+
+        assertTrue(count > 100);
+        assertEquals("start", symbols.getName(0x0400));
+        // Equates are not loaded.
+        assertEquals(-1, symbols.getAddress("ROM_vectors"));
+    }
+
+    public void testDisassemblyUsesSymbols() throws Exception {
+        Cpu cpu = new Cpu();
+        Bus bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+
+        bus.write(0x0200, 0xad); // LDA $1234
+        bus.write(0x0201, 0x34);
+        bus.write(0x0202, 0x12);
+        bus.write(0x0203, 0xd0); // BNE $0200
+        bus.write(0x0204, 0xfb);
+        bus.write(0x0205, 0xb1); // LDA ($20),Y
+        bus.write(0x0206, 0x20);
+
+        assertEquals("LDA $1234", cpu.disassembleOpAtAddress(0x0200));
+
+        cpu.getSymbolTable().add(0x0200, "loop");
+        cpu.getSymbolTable().add(0x1230, "table");
+        cpu.getSymbolTable().add(0x0020, "ptr");
+
+        assertEquals("LDA table+4", cpu.disassembleOpAtAddress(0x0200));
+        assertEquals("BNE loop", cpu.disassembleOpAtAddress(0x0203));
+        assertEquals("LDA (ptr),Y", cpu.disassembleOpAtAddress(0x0205));
+    }
+
+    public void testTraceEventUsesSymbols() {
+        CpuState state = new CpuState();
+        state.lastPc = 0x0200;
+        state.ir = 0x4c; // JMP $0200
+        state.args[0] = 0x00;
+        state.args[1] = 0x02;
+
+        assertTrue(state.toTraceEvent().contains("JMP $0200"));
+
+        symbols.add(0x0200, "spin");
+        assertTrue(state.toTraceEvent(symbols).contains("JMP spin"));
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2016 Seth J. Morabito <web@loomcom.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.loomcom.symon;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.loomcom.symon.jterminal.vt100.AnsiControlSequenceParser;
+import com.loomcom.symon.jterminal.vt100.AnsiStreamListener;
+import com.loomcom.symon.jterminal.vt100.Vt100TerminalModel;
+
+/**
+ * A throughput test for the {@link AnsiControlSequenceParser}, in the style of
+ * a JMH benchmark: a large stream of terminal output, like that of a BASIC
+ * program listing itself in color, is parsed a few times to warm up and then
+ * measured, in the same 4K chunks that the simulator hands to the console.
+ */
+public class TestAnsiParserThroughput implements AnsiStreamListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(TestAnsiParserThroughput.class);
+
+	private static final int LINES = 20000;
+	private static final int CHUNK_SIZE = 4096;
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int MEASUREMENT_ITERATIONS = 5;
+
+	/**
+	 * The stream, and the number of sequences and printable characters in it.
+	 */
+	private static char[] stream;
+	private static int streamSequences;
+	private static int streamCharacters;
+
+	private int sequences;
+	private int characters;
+	private long parameterSum;
+
+	@Before
+	public void setUp() {
+		if (stream == null) {
+			buildStream();
+		}
+		sequences = 0;
+		characters = 0;
+		parameterSum = 0;
+	}
+
+	private static void buildStream() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\u001b[2J\u001b[H");
+		streamSequences = 2;
+		for (int i = 0; i < LINES; i++) {
+			String line = (10 * (i + 1)) + " PRINT \"LINE " + i + "\":GOSUB " + (i % 500) + "\r\n";
+			sb.append("\u001b[").append(31 + i % 7).append(";40m");
+			sb.append(line);
+			streamSequences++;
+			streamCharacters += line.length();
+			if (i % 25 == 24) {
+				sb.append("\u001b[0m\u001b[").append(i % 24 + 1).append(';').append(i % 80 + 1).append('H');
+				streamSequences += 2;
+			}
+		}
+		stream = sb.toString().toCharArray();
+	}
+
+	private void parseStream(AnsiControlSequenceParser parser) {
+		for (int offset = 0; offset < stream.length; offset += CHUNK_SIZE) {
+			parser.parse(stream, offset, Math.min(CHUNK_SIZE, stream.length - offset));
+		}
+	}
+
+	@Override
+	public void parsedControlSequence(char command, int[] parameters, int count) {
+		sequences++;
+		for (int i = 0; i < count; i++) {
+			parameterSum += parameters[i];
+		}
+	}
+
+	@Override
+	public void parsedCharacters(char[] chars, int offset, int length) {
+		characters += length;
+	}
+
+	/**
+	 * Tests that sequences split across chunks are parsed, and measures the
+	 * parser on its own.
+	 */
+	@Test
+	public void testParserThroughput() {
+		AnsiControlSequenceParser parser = new AnsiControlSequenceParser(this);
+
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			parseStream(parser);
+		}
+
+		sequences = 0;
+		characters = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+			parseStream(parser);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		assertEquals(MEASUREMENT_ITERATIONS * streamSequences, sequences);
+		assertEquals(MEASUREMENT_ITERATIONS * streamCharacters, characters);
+		report("parser", elapsed);
+	}
+
+	/**
+	 * Tests that the parser creates no objects once it is running.
+	 */
+	@Test
+	public void testParserDoesNotAllocate() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		long thread = Thread.currentThread().getId();
+
+		AnsiControlSequenceParser parser = new AnsiControlSequenceParser(this);
+		parseStream(parser);
+
+		long before = threads.getThreadAllocatedBytes(thread);
+		parseStream(parser);
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+		// The stream is over a megabyte; allow a little for the measurement itself.
+		assertTrue("Allocated " + allocated + " bytes", allocated < 16 * 1024);
+	}
+
+	/**
+	 * Tests that printing to the terminal model, including scrolling through
+	 * its scrollback, creates no objects.
+	 */
+	@Test
+	public void testModelDoesNotAllocate() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		long thread = Thread.currentThread().getId();
+
+		Vt100TerminalModel model = new Vt100TerminalModel(80, 25, 1025);
+		printStream(model);
+
+		long before = threads.getThreadAllocatedBytes(thread);
+		printStream(model);
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+		assertTrue("Allocated " + allocated + " bytes", allocated < 16 * 1024);
+		assertEquals(1000, model.getScrollbackSize());
+	}
+
+	/**
+	 * Measures the parser and the terminal model together.
+	 */
+	@Test
+	public void testModelThroughput() {
+		Vt100TerminalModel model = new Vt100TerminalModel(80, 25);
+
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			printStream(model);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+			printStream(model);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// The stream ends by moving the cursor.
+		assertEquals((LINES - 1) % 24, model.getCursorRow());
+		assertEquals((LINES - 1) % 80, model.getCursorColumn());
+		report("model", elapsed);
+	}
+
+	private void printStream(Vt100TerminalModel model) {
+		for (int offset = 0; offset < stream.length; offset += CHUNK_SIZE) {
+			model.print(stream, offset, Math.min(CHUNK_SIZE, stream.length - offset));
+		}
+	}
+
+	private void report(String name, long elapsedNs) {
+		double megabytes = (double) stream.length * MEASUREMENT_ITERATIONS / (1024 * 1024);
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("ANSI %s throughput: %.1f MB/s", name, megabytes / (elapsedNs / 1e9)));
+		}
+	}
+
+}
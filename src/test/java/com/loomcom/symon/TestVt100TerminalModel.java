@@ -100,6 +100,76 @@ public class TestVt100TerminalModel {
 		assertNull(model.getCell(23, 1));
 	}
 
+	/**
+	 * Tests that lines scrolled off the screen are kept in the scrollback,
+	 * up to the size of the buffer.
+	 */
+	@Test
+	public void testScrollback() {
+		model = new Vt100TerminalModel(model.getColumns(), 2, 4);
+		assertEquals(0, model.getScrollbackSize());
+
+		model.print("one\r\ntwo\r\nthree\r\nfour");
+		assertEquals(2, model.getScrollbackSize());
+		assertEquals('o', model.getCell(0, -2).getCharacter());
+		assertEquals('t', model.getCharacter(0, -1));
+		assertEquals('h', model.getCharacter(1, 0));
+		assertEquals('f', model.getCharacter(0, 1));
+		assertEquals(1, model.getCursorRow());
+
+		model.print("\r\nfive\r\nsix");
+		assertEquals(2, model.getScrollbackSize());
+		assertEquals('t', model.getCharacter(0, -2));
+		assertEquals('h', model.getCharacter(1, -2));
+		assertEquals('s', model.getCharacter(0, 1));
+		assertEquals(0, model.getCharacter(3, 1));
+
+		try {
+			model.getCell(0, -3);
+			fail();
+		} catch (IndexOutOfBoundsException expected) {
+		}
+	}
+
+	/**
+	 * Tests erasing parts of a line.
+	 */
+	@Test
+	public void testEraseInLine() {
+		model.print("Hello\r\nWorld");
+		model.print("\u009B1;3H\u009BK");
+		assertEquals('e', model.getCharacter(1, 0));
+		assertEquals(0, model.getCharacter(2, 0));
+		assertEquals('W', model.getCharacter(0, 1));
+
+		model.print("\u009B2;2H\u009B1K");
+		assertEquals(0, model.getCharacter(1, 1));
+		assertEquals('r', model.getCharacter(2, 1));
+	}
+
+	/**
+	 * Tests that the model tracks which parts of the screen have changed.
+	 */
+	@Test
+	public void testDirtyRegions() {
+		model = new Vt100TerminalModel(model.getColumns(), 3, 3);
+		model.clearDirty();
+		assertTrue(model.getDirtyStart(0) >= model.getDirtyEnd(0));
+
+		model.print("\u009B2;5Hab");
+		assertEquals(4, model.getDirtyStart(1));
+		assertEquals(6, model.getDirtyEnd(1));
+		assertTrue(model.getDirtyStart(0) >= model.getDirtyEnd(0));
+		assertTrue(model.getDirtyStart(2) >= model.getDirtyEnd(2));
+
+		model.clearDirty();
+		model.print("\r\n\r\nc");
+		for (int row = 0; row < 3; row++) {
+			assertEquals(0, model.getDirtyStart(row));
+			assertEquals(model.getColumns(), model.getDirtyEnd(row));
+		}
+	}
+
 	/**
 	 * Tests the erase functionality.
 	 */
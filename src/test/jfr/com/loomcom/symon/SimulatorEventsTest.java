@@ -0,0 +1,115 @@
+package com.loomcom.symon;
+
+import junit.framework.*;
+
+import com.loomcom.symon.devices.*;
+import com.loomcom.symon.exceptions.*;
+import com.loomcom.symon.jfr.SimulatorEvents;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ *
+ */
+public class SimulatorEventsTest extends TestCase {
+
+    private Cpu cpu;
+    private Bus bus;
+
+    public SimulatorEventsTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(SimulatorEventsTest.class);
+    }
+
+    public void setUp() throws MemoryRangeException, MemoryAccessException {
+        this.cpu = new Cpu();
+        this.bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+
+        cpu.setClockPeriodInNs(0);
+
+        // All test programs start at 0x0200;
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x02);
+        // IRQ handler at 0x0300
+        bus.write(0xfffe, 0x00);
+        bus.write(0xffff, 0x03);
+
+        cpu.reset();
+    }
+
+    public void testNothingStartedWhenNotRecording() {
+        assertNull(SimulatorEvents.startExecutionBatch(0, 0));
+        assertNull(SimulatorEvents.startSdTransfer());
+        assertNull(SimulatorEvents.startCrtcRepaint());
+        assertNull(SimulatorEvents.startTraceLogRefresh());
+
+        // Finishing an event that was never started does nothing.
+        SimulatorEvents.finishExecutionBatch(null, 0, 0);
+        SimulatorEvents.finishTraceLogRefresh(null, 0);
+    }
+
+    public void testRecordsEnabledEvents() throws Exception {
+        if (!SimulatorEvents.isAvailable()) {
+            return;
+        }
+
+        File file = File.createTempFile("symon", ".jfr");
+        file.deleteOnExit();
+
+        Recording recording = new Recording();
+        recording.enable("com.loomcom.symon.Interrupt");
+        recording.enable("com.loomcom.symon.ExecutionBatch");
+        recording.start();
+
+        bus.loadProgram(0x58,  // CLI
+                        0xea,  // NOP
+                        0xea); // NOP
+        Object batch = SimulatorEvents.startExecutionBatch(cpu.getCpuState().stepCounter,
+                                                           cpu.getCpuState().cycleCounter);
+        assertNotNull(batch);
+        cpu.step();
+        cpu.assertIrq();
+        cpu.step();
+        SimulatorEvents.finishExecutionBatch(batch, cpu.getCpuState().stepCounter,
+                                             cpu.getCpuState().cycleCounter);
+
+        // Not enabled in this recording.
+        assertNull(SimulatorEvents.startCrtcRepaint());
+
+        recording.stop();
+        recording.dump(file.toPath());
+        recording.close();
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+        assertEquals(2, events.size());
+
+        RecordedEvent interrupt = findEvent(events, "com.loomcom.symon.Interrupt");
+        assertEquals("IRQ", interrupt.getString("type"));
+        assertEquals(0x0201, interrupt.getInt("returnAddress"));
+        assertEquals(0x0300, interrupt.getInt("handlerAddress"));
+
+        RecordedEvent executionBatch = findEvent(events, "com.loomcom.symon.ExecutionBatch");
+        assertEquals(2L, executionBatch.getLong("instructions"));
+
+        file.delete();
+    }
+
+    private RecordedEvent findEvent(List<RecordedEvent> events, String name) {
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                return event;
+            }
+        }
+        fail("No " + name + " event recorded");
+        return null;
+    }
+}